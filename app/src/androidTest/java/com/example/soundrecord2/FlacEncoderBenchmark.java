@@ -0,0 +1,104 @@
+package com.example.soundrecord2;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes half an hour of generated audio with {@link FlacEncoder}, once
+ * block by block on the calling thread as while recording and once on a
+ * pool as for conversions. The recording path has to beat real time on one
+ * core. Results go to logcat under the FlacEncoderBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FlacEncoderBenchmark {
+    private static final String TAG = "FlacEncoderBenchmark";
+
+    // 30 minutes at 8kHz
+    private static final int BLOCKS = 30 * 60 * PcmCapture.SAMPLE_RATE
+            / PcmCapture.BLOCK_SAMPLES;
+
+    @Test
+    public void serialVersusParallel() throws IOException {
+        short[][] blocks = generate();
+        Context context = InstrumentationRegistry.getInstrumentation()
+                .getTargetContext();
+        File serial = new File(context.getCacheDir(), "bench-serial.flac");
+        File parallel = new File(context.getCacheDir(), "bench-parallel.flac");
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime()
+                .availableProcessors());
+        try {
+            long serialNanos = encode(new FlacEncoder(), serial, blocks);
+            long parallelNanos = encode(new FlacEncoder(pool), parallel,
+                    blocks);
+
+            // same frames either way
+            assertEquals(serial.length(), parallel.length());
+            long samples = (long) BLOCKS * PcmCapture.BLOCK_SAMPLES;
+            FlacFile flac = FlacFile.read(serial);
+            flac.walk(serial);
+            assertEquals(samples, flac.mTotalSamples);
+            assertEquals(samples, flac.mFrameSamples);
+            assertEquals(serial.length(), flac.mEnd);
+
+            long audioNanos = samples * 1000000000L / PcmCapture.SAMPLE_RATE;
+            assertTrue("slower than real time", serialNanos < audioNanos);
+            Log.i(TAG, String.format("%d%% of WAV, serial %.0fx real time, "
+                    + "parallel on %d cores %.0fx", serial.length() * 100
+                    / (WavWriter.HEADER_BYTES + samples * 2),
+                    (double) audioNanos / serialNanos,
+                    pool.getParallelism(),
+                    (double) audioNanos / parallelNanos));
+        } finally {
+            pool.shutdown();
+            serial.delete();
+            parallel.delete();
+        }
+    }
+
+    /*
+     * Two drifting tones with some noise, and stretches of silence.
+     */
+    private static short[][] generate() {
+        Random random = new Random(1);
+        short[][] blocks = new short[BLOCKS][PcmCapture.BLOCK_SAMPLES];
+        long n = 0;
+        for (short[] block : blocks) {
+            boolean silent = random.nextInt(4) == 0;
+            for (int i = 0; i < block.length; i++, n++) {
+                if (silent)
+                    continue;
+                double t = (double) n / PcmCapture.SAMPLE_RATE;
+                block[i] = (short) (6000 * Math.sin(2 * Math.PI * 180 * t)
+                        + 2000 * Math.sin(2 * Math.PI * (900 + 300
+                                * Math.sin(t)) * t)
+                        + random.nextGaussian() * 150);
+            }
+        }
+        return blocks;
+    }
+
+    private static long encode(FlacEncoder encoder, File file,
+            short[][] blocks) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        encoder.open(file, PcmCapture.SAMPLE_RATE);
+        for (short[] block : blocks)
+            encoder.encode(block, block.length);
+        encoder.close();
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
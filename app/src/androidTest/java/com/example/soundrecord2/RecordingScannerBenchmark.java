@@ -0,0 +1,174 @@
+package com.example.soundrecord2;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scans a generated library of AMR, 3GPP and WAV files, one file in every
+ * TRUNCATE_EVERY cut short, once on a single thread and once with
+ * {@link RecordingScanner#scanAll}. Results go to logcat under the
+ * RecordingScannerBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecordingScannerBenchmark {
+    private static final String TAG = "RecordingScannerBenchmark";
+
+    private static final int FILES = 3000;
+    private static final int TRUNCATE_EVERY = 50;
+    // 10 seconds of AMR, 2 seconds of WAV
+    private static final int AMR_FRAMES = 500;
+    private static final int WAV_SAMPLES = 2 * PcmCapture.SAMPLE_RATE;
+    // MR122
+    private static final byte FRAME_HEADER = 0x3C;
+
+    private File mDir;
+    private final List<File> mFiles = new ArrayList<File>();
+    private final List<Long> mDurations = new ArrayList<Long>();
+    private final List<Integer> mStatus = new ArrayList<Integer>();
+
+    @Before
+    public void createLibrary() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation()
+                .getTargetContext();
+        mDir = new File(context.getCacheDir(), "scan-corpus");
+        mDir.mkdirs();
+        File amr = new File(mDir, "frames.amr");
+        writeAmr(amr);
+        short[] block = new short[PcmCapture.BLOCK_SAMPLES];
+        for (int i = 0; i < FILES; i++) {
+            boolean truncate = i % TRUNCATE_EVERY == 0;
+            File file;
+            long millis;
+            switch (i % 3) {
+            case 0:
+                file = new File(mDir, "recording" + i + ".amr");
+                writeAmr(file);
+                millis = AMR_FRAMES * AmrIndex.FRAME_MILLIS;
+                if (truncate) {
+                    // into the last frame
+                    cut(file, 5);
+                    millis -= AmrIndex.FRAME_MILLIS;
+                }
+                break;
+            case 1:
+                file = new File(mDir, "recording" + i + ".3gpp");
+                int[] sizes = new int[AMR_FRAMES];
+                Arrays.fill(sizes, AmrFileWriter.FRAME_SIZES[7]);
+                ThreeGppFile.Builder builder = new ThreeGppFile.Builder(
+                        ThreeGppFile.amrNbTemplate());
+                builder.addRun(amr, AmrFileWriter.AMR_MAGIC.length, sizes,
+                        AMR_FRAMES, AmrFileWriter.FRAME_SAMPLES);
+                builder.writeTo(file);
+                millis = AMR_FRAMES * AmrIndex.FRAME_MILLIS;
+                if (truncate) {
+                    // mdat comes last, the final frame loses its tail
+                    cut(file, 5);
+                    millis -= AmrIndex.FRAME_MILLIS;
+                }
+                break;
+            default:
+                file = new File(mDir, "recording" + i + ".wav");
+                WavWriter writer = new WavWriter();
+                writer.open(file, PcmCapture.SAMPLE_RATE);
+                for (int n = 0; n < WAV_SAMPLES; n += block.length)
+                    writer.encode(block, block.length);
+                writer.close();
+                millis = WAV_SAMPLES * 1000L / PcmCapture.SAMPLE_RATE;
+                if (truncate) {
+                    cut(file, PcmCapture.SAMPLE_RATE);
+                    millis -= 500;
+                }
+                break;
+            }
+            mFiles.add(file);
+            mDurations.add(millis);
+            mStatus.add(truncate ? RecordingScanner.STATUS_TRUNCATED
+                    : RecordingScanner.STATUS_OK);
+        }
+        amr.delete();
+    }
+
+    @After
+    public void deleteLibrary() {
+        for (File file : mFiles)
+            file.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void serialVersusParallel() {
+        RecordingScanner.clearCache();
+        long start = SystemClock.elapsedRealtimeNanos();
+        RecordingScanner.Result[] serial = new RecordingScanner.Result[FILES];
+        for (int i = 0; i < FILES; i++)
+            serial[i] = RecordingScanner.scan(mFiles.get(i));
+        long serialNanos = SystemClock.elapsedRealtimeNanos() - start;
+        check(serial);
+
+        RecordingScanner.clearCache();
+        start = SystemClock.elapsedRealtimeNanos();
+        RecordingScanner.Result[] parallel = RecordingScanner.scanAll(mFiles);
+        long parallelNanos = SystemClock.elapsedRealtimeNanos() - start;
+        check(parallel);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        RecordingScanner.scanAll(mFiles);
+        long cachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, FILES + " files on "
+                + Runtime.getRuntime().availableProcessors() + " cores: serial "
+                + serialNanos / 1000000 + "ms, parallel "
+                + parallelNanos / 1000000 + "ms, cached "
+                + cachedNanos / 1000000 + "ms");
+    }
+
+    private void check(RecordingScanner.Result[] results) {
+        for (int i = 0; i < FILES; i++) {
+            String name = mFiles.get(i).getName();
+            assertEquals(name, (long) mDurations.get(i),
+                    results[i].mDurationMillis);
+            assertEquals(name, (int) mStatus.get(i), results[i].mStatus);
+        }
+    }
+
+    private static void writeAmr(File file) throws IOException {
+        byte[] frame = new byte[AmrFileWriter.FRAME_SIZES[7]];
+        frame[0] = FRAME_HEADER;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(AmrFileWriter.AMR_MAGIC);
+            for (int i = 0; i < AMR_FRAMES; i++)
+                out.write(frame);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void cut(File file, long bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.soundrecord2;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the mapped {@link WavWriter} against writing every capture block
+ * with a plain FileOutputStream, on the directories the app records to.
+ * Results go to logcat under the WavWriterBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WavWriterBenchmark {
+    private static final String TAG = "WavWriterBenchmark";
+
+    // 30 minutes at 8kHz
+    private static final int BLOCKS = 30 * 60 * PcmCapture.SAMPLE_RATE
+            / PcmCapture.BLOCK_SAMPLES;
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void mappedVersusStream() throws IOException {
+        short[] block = new short[PcmCapture.BLOCK_SAMPLES];
+        for (int i = 0; i < block.length; i++)
+            block[i] = (short) (Math.sin(i * 0.1) * 8000);
+
+        for (File dir : recordingDirs()) {
+            File mapped = new File(dir, "bench-mapped.wav");
+            File stream = new File(dir, "bench-stream.wav");
+            try {
+                long mappedNanos = Long.MAX_VALUE;
+                long streamNanos = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    mappedNanos = Math.min(mappedNanos, writeMapped(mapped, block));
+                    streamNanos = Math.min(streamNanos, writeStream(stream, block));
+                }
+                long bytes = (long) BLOCKS * block.length * 2;
+                assertEquals(WavWriter.HEADER_BYTES + bytes, mapped.length());
+                assertEquals(WavWriter.HEADER_BYTES + bytes, stream.length());
+                Log.i(TAG, dir + ": mapped " + mbPerSecond(bytes, mappedNanos)
+                        + " MB/s, stream " + mbPerSecond(bytes, streamNanos)
+                        + " MB/s");
+            } finally {
+                mapped.delete();
+                stream.delete();
+            }
+        }
+    }
+
+    private static List<File> recordingDirs() {
+        Context context = InstrumentationRegistry.getInstrumentation()
+                .getTargetContext();
+        List<File> dirs = new ArrayList<File>();
+        dirs.add(context.getFilesDir());
+        File external = SoundRecorder.getExternalStorageDirectory();
+        if (external != null && external.canWrite())
+            dirs.add(external);
+        else if (context.getExternalFilesDir(null) != null)
+            dirs.add(context.getExternalFilesDir(null));
+        return dirs;
+    }
+
+    private static long writeMapped(File file, short[] block) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        WavWriter writer = new WavWriter();
+        writer.open(file, PcmCapture.SAMPLE_RATE);
+        for (int i = 0; i < BLOCKS; i++)
+            writer.encode(block, block.length);
+        writer.close();
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /*
+     * What a straightforward writer would do: one write per capture block,
+     * header rewritten at the end.
+     */
+    private static long writeStream(File file, short[] block) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        ByteBuffer bytes = ByteBuffer.allocate(block.length * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[WavWriter.HEADER_BYTES]);
+            for (int i = 0; i < BLOCKS; i++) {
+                bytes.clear();
+                bytes.asShortBuffer().put(block);
+                out.write(bytes.array());
+            }
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static String mbPerSecond(long bytes, long nanos) {
+        return String.format("%.1f", bytes / 1048576.0 / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes AMR-NB frames in the RFC 4867 storage format, i.e. the "#!AMR\n"
+ * magic followed by the frames exactly as they come out of the encoder. The
+ * frame headers go into an {@link AmrIndex} that is saved on close. Given a
+ * size limit the file ends on the last whole frame that fits, and so it does
+ * when space is reserved ahead and the disk runs out. Frames go to the file
+ * through a {@link WriteBehindOutput}.
+ */
+class AmrFileWriter {
+	static final byte[] AMR_MAGIC = { '#', '!', 'A', 'M', 'R', '\n' };
+	// frame length including the header byte, by frame type
+	static final int[] FRAME_SIZES = { 13, 14, 16, 18, 20, 21, 27, 32, 6, 1,
+			1, 1, 1, 1, 1, 1 };
+	static final int FRAME_SAMPLES = 160;
+	// header of a NO_DATA frame, 20ms of nothing in one byte
+	static final byte NO_DATA = 0x7C;
+
+	private final ByteBuffer mNoData = ByteBuffer.allocate(50);
+	private FileOutputStream mOut;
+	private FileChannel mChannel;
+	private WriteBehindOutput mOutput;
+	private WriteBehindOutput.Policy mSyncPolicy;
+	private Executor mWriter;
+	private long mBytesWritten;
+	private long mFramesWritten;
+	private File mFile;
+	private AmrIndex mIndex;
+	private long mMaxBytes;
+	private boolean mPreallocate;
+	private Preallocator mPreallocator;
+	private volatile boolean mFull;
+	private volatile boolean mOutOfSpace;
+
+	/**
+	 * Largest file to write, 0 for none. Takes effect on the next open.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * When the frames are synced to the device, from the next open on.
+	 * Defaults to on close only.
+	 */
+	public void setSyncPolicy(WriteBehindOutput.Policy policy) {
+		mSyncPolicy = policy;
+	}
+
+	/**
+	 * Thread the frames are written on from the next open on, null for one
+	 * of the file's own.
+	 */
+	public void setWriter(Executor writer) {
+		mWriter = writer;
+	}
+
+	/**
+	 * Reserves space ahead of the frames from the next open on.
+	 */
+	public void setPreallocate(boolean preallocate) {
+		mPreallocate = preallocate;
+	}
+
+	/**
+	 * True once a frame was dropped because it would have crossed the limit.
+	 */
+	public boolean isFull() {
+		return mFull;
+	}
+
+	public boolean isOutOfSpace() {
+		return mOutOfSpace;
+	}
+
+	public void open(File file) throws IOException {
+		mFile = file;
+		// a limit below the magic can't be met, the file is still valid
+		mFull = mMaxBytes > 0 && mMaxBytes < AMR_MAGIC.length;
+		mOutOfSpace = false;
+		mPreallocator = null;
+		mIndex = new AmrIndex();
+		mOut = new FileOutputStream(file);
+		mChannel = mOut.getChannel();
+		try {
+			if (mPreallocate) {
+				mPreallocator = new Preallocator(mOut.getFD(), mChannel,
+						mMaxBytes);
+				mPreallocator.start(0);
+			}
+		} catch (IOException e) {
+			mOut.close();
+			mOut = null;
+			mChannel = null;
+			throw e;
+		}
+		mOutput = new WriteBehindOutput(mChannel, 0, mSyncPolicy, mWriter);
+		mOutput.write(ByteBuffer.wrap(AMR_MAGIC));
+		mBytesWritten = AMR_MAGIC.length;
+		mFramesWritten = 0;
+	}
+
+	/**
+	 * Appends the remaining bytes of the buffer, which must hold whole frames.
+	 * Once a frame doesn't fit the limit it and all later frames are dropped,
+	 * the buffer is consumed either way.
+	 */
+	public void write(ByteBuffer frames) throws IOException {
+		int limit = frames.limit();
+		if (mFull) {
+			frames.position(limit);
+			return;
+		}
+		long offset = mBytesWritten - frames.position();
+		int end = frames.position();
+		while (end < limit) {
+			int size = frameSize(frames.get(end));
+			if (mMaxBytes > 0 && offset + end + size > mMaxBytes) {
+				mFull = true;
+				break;
+			}
+			if (mPreallocator != null
+					&& !mPreallocator.ensure(offset + end + size)) {
+				mOutOfSpace = true;
+				mFull = true;
+				break;
+			}
+			mIndex.addFrame(offset + end);
+			mFramesWritten++;
+			end += size;
+		}
+		frames.limit(end);
+		mBytesWritten += frames.remaining();
+		mOutput.write(frames);
+		frames.limit(limit);
+		frames.position(limit);
+	}
+
+	/**
+	 * Appends frames NO_DATA frames, which players render as silence.
+	 */
+	public void writeNoData(int frames) throws IOException {
+		while (frames > 0) {
+			int n = Math.min(frames, mNoData.capacity());
+			mNoData.clear();
+			while (mNoData.position() < n)
+				mNoData.put(NO_DATA);
+			mNoData.flip();
+			write(mNoData);
+			frames -= n;
+		}
+	}
+
+	/**
+	 * Length of the frame starting with the given header byte.
+	 */
+	static int frameSize(byte header) {
+		return FRAME_SIZES[(header >> 3) & 0x0F];
+	}
+
+	/**
+	 * Playing time of a complete raw AMR file, from its seek table, which is
+	 * built and saved if the file has none yet.
+	 */
+	static long durationMillis(File file) throws IOException {
+		return AmrIndex.load(file).durationMillis();
+	}
+
+	public long bytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * Frames in the file, the dropped ones don't count.
+	 */
+	public long framesWritten() {
+		return mFramesWritten;
+	}
+
+	public void close() throws IOException {
+		if (mOut == null)
+			return;
+		try {
+			// also releases the reserved space that wasn't used
+			mOutput.close(mBytesWritten);
+		} finally {
+			mOut.close();
+			mOut = null;
+			mChannel = null;
+			mOutput = null;
+		}
+		mIndex.finish(mBytesWritten, mBytesWritten);
+		mIndex.save(mFile);
+	}
+}
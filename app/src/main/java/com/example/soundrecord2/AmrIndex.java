@@ -0,0 +1,206 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Seek table of a raw AMR-NB file: the byte offset of every INTERVAL-th
+ * frame, so any time is found with one array lookup and a walk over at most
+ * INTERVAL - 1 frame headers read in a single small block. Ten hours take
+ * under 500KB. The table is built by {@link AmrFileWriter} while recording,
+ * or by scanning the frame headers on first use, and kept in a hidden
+ * sidecar that is only trusted while the file keeps the length it was built
+ * for.
+ * <p>
+ * Sidecar layout: magic, interval, frame count, end of the frames, file
+ * length, offsets.
+ */
+class AmrIndex {
+	static final String TAG = "AmrIndex";
+
+	private static final int MAGIC = 0x414D4931; // "AMI1"
+	// 16 frames, 320ms
+	static final int INTERVAL = 16;
+	static final int FRAME_MILLIS = AmrFileWriter.FRAME_SAMPLES * 1000
+			/ PcmCapture.SAMPLE_RATE;
+	private static final int MAX_FRAME_BYTES = 32;
+	private static final int READ_BYTES = 64 * 1024;
+
+	private int[] mOffsets;
+	private int mFrameCount;
+	// end of the last whole frame
+	private long mEnd;
+	// length of the file the table was made for
+	private long mFileLength;
+
+	AmrIndex() {
+		mOffsets = new int[256];
+	}
+
+	static File sidecar(File recording) {
+		return new File(recording.getParentFile(), "." + recording.getName()
+				+ ".amri");
+	}
+
+	/**
+	 * Records a frame starting at the given offset. Frames are added in file
+	 * order.
+	 */
+	void addFrame(long offset) {
+		if (mFrameCount % INTERVAL == 0) {
+			int entry = mFrameCount / INTERVAL;
+			if (entry == mOffsets.length)
+				mOffsets = Arrays.copyOf(mOffsets, entry * 2);
+			mOffsets[entry] = (int) offset;
+		}
+		mFrameCount++;
+	}
+
+	/**
+	 * Ends the table. A file can go on past the last whole frame.
+	 */
+	void finish(long end, long fileLength) {
+		mEnd = end;
+		mFileLength = fileLength;
+	}
+
+	public int frameCount() {
+		return mFrameCount;
+	}
+
+	public long durationMillis() {
+		return (long) mFrameCount * FRAME_MILLIS;
+	}
+
+	/**
+	 * Byte offset of a frame, frameCount() gives the end of the last one.
+	 */
+	public long frameOffset(RandomAccessFile file, int frame)
+			throws IOException {
+		if (frame >= mFrameCount)
+			return mEnd;
+		int entry = frame / INTERVAL;
+		long offset = mOffsets[entry] & 0xFFFFFFFFL;
+		int walk = frame - entry * INTERVAL;
+		if (walk == 0)
+			return offset;
+		byte[] block = new byte[walk * MAX_FRAME_BYTES];
+		file.seek(offset);
+		int read = file.read(block);
+		int pos = 0;
+		for (int i = 0; i < walk; i++) {
+			if (pos >= read)
+				throw new IOException("file changed under the index");
+			pos += AmrFileWriter.frameSize(block[pos]);
+		}
+		return offset + pos;
+	}
+
+	/**
+	 * The index of the file from its sidecar, or from a scan of the file that
+	 * is then saved. Never null, a file that ends in a partial frame is
+	 * indexed up to it.
+	 */
+	static AmrIndex load(File recording) throws IOException {
+		AmrIndex index = read(recording);
+		if (index != null)
+			return index;
+		index = scan(recording);
+		index.save(recording);
+		return index;
+	}
+
+	private static AmrIndex read(File recording) {
+		File file = sidecar(recording);
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != INTERVAL)
+					return null;
+				AmrIndex index = new AmrIndex();
+				index.mFrameCount = in.readInt();
+				index.mEnd = in.readLong();
+				index.mFileLength = in.readLong();
+				if (index.mFileLength != recording.length())
+					return null;
+				int entries = (index.mFrameCount + INTERVAL - 1) / INTERVAL;
+				index.mOffsets = new int[Math.max(1, entries)];
+				for (int i = 0; i < entries; i++)
+					index.mOffsets[i] = in.readInt();
+				return index;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "ignoring " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Streams over the frame headers, skipping the frame bodies.
+	 */
+	private static AmrIndex scan(File recording) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(recording), READ_BYTES));
+		try {
+			byte[] magic = new byte[AmrFileWriter.AMR_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, AmrFileWriter.AMR_MAGIC))
+				throw new IOException("not an AMR file: " + recording);
+			AmrIndex index = new AmrIndex();
+			long pos = magic.length;
+			int header;
+			while ((header = in.read()) >= 0) {
+				int skip = AmrFileWriter.frameSize((byte) header) - 1;
+				if (in.skipBytes(skip) < skip)
+					break;
+				index.addFrame(pos);
+				pos += skip + 1;
+			}
+			index.finish(pos, recording.length());
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the sidecar, a failure only costs a rescan next time.
+	 */
+	void save(File recording) {
+		File file = sidecar(recording);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(INTERVAL);
+				out.writeInt(mFrameCount);
+				out.writeLong(mEnd);
+				out.writeLong(mFileLength);
+				int entries = (mFrameCount + INTERVAL - 1) / INTERVAL;
+				for (int i = 0; i < entries; i++)
+					out.writeInt(mOffsets[i]);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "can't save " + file + ": " + e);
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * AMR-NB encoder stage built on the platform MediaCodec encoder, writing a raw
+ * .amr file through {@link AmrFileWriter}. Silence skipped by a
+ * {@link VoiceActivityDetector} is written as NO_DATA frames, in order with
+ * the frames still inside the codec.
+ */
+class AmrNbEncoder implements PcmEncoder, PcmEncoder.SizeLimited,
+		PcmEncoder.Durable, VoiceActivityDetector.SilenceSink {
+	static final String TAG = "AmrNbEncoder";
+
+	private static final long TIMEOUT_US = 10000;
+	private static final int EOS_RETRIES = 100;
+	private static final long FRAME_US = 20000;
+	private static final int MAX_GAPS = 16;
+
+	private final AmrFileWriter mWriter = new AmrFileWriter();
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private MediaCodec mCodec;
+	private int mSampleRate;
+	private long mSamplesQueued;
+	// end of the audio written to the file so far
+	private long mOutputEndUs;
+	// silence runs waiting for the codec to hand out the frames before them
+	private final long[] mGapStartUs = new long[MAX_GAPS];
+	private final int[] mGapFrames = new int[MAX_GAPS];
+	private int mGapCount;
+
+	public void open(File file, int sampleRate) throws IOException {
+		mSampleRate = sampleRate;
+		mSamplesQueued = 0;
+		mOutputEndUs = 0;
+		mGapCount = 0;
+
+		MediaFormat format = MediaFormat.createAudioFormat(
+				MediaFormat.MIMETYPE_AUDIO_AMR_NB, sampleRate, 1);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, SoundRecorder.BITRATE_AMR);
+		try {
+			mCodec = MediaCodec
+					.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AMR_NB);
+			mCodec.configure(format, null, null,
+					MediaCodec.CONFIGURE_FLAG_ENCODE);
+			mCodec.start();
+		} catch (RuntimeException e) {
+			releaseCodec();
+			throw new IOException("AMR-NB encoder unavailable: " + e);
+		}
+
+		try {
+			mWriter.open(file);
+		} catch (IOException e) {
+			releaseCodec();
+			throw e;
+		}
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		mWriter.setMaxBytes(maxBytes);
+	}
+
+	public void setPreallocate(boolean preallocate) {
+		mWriter.setPreallocate(preallocate);
+	}
+
+	public void setSyncPolicy(WriteBehindOutput.Policy policy) {
+		mWriter.setSyncPolicy(policy);
+	}
+
+	public void setWriter(Executor writer) {
+		mWriter.setWriter(writer);
+	}
+
+	public boolean isFull() {
+		return mWriter.isFull();
+	}
+
+	public boolean isOutOfSpace() {
+		return mWriter.isOutOfSpace();
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		// nothing more goes into a full file
+		if (mWriter.isFull())
+			return;
+		int offset = 0;
+		while (offset < count) {
+			int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+			if (index < 0) {
+				drain(false);
+				continue;
+			}
+			ByteBuffer in = mCodec.getInputBuffer(index);
+			in.clear();
+			in.order(ByteOrder.LITTLE_ENDIAN);
+			int n = Math.min(count - offset, in.remaining() / 2);
+			for (int i = 0; i < n; i++) {
+				in.putShort(pcm[offset + i]);
+			}
+			mCodec.queueInputBuffer(index, 0, n * 2, presentationTimeUs(), 0);
+			mSamplesQueued += n;
+			offset += n;
+		}
+		drain(false);
+	}
+
+	public void encodeSilence(int samples) throws IOException {
+		if (mWriter.isFull())
+			return;
+		drain(false);
+		long startUs = presentationTimeUs();
+		mSamplesQueued += samples;
+		int frames = (int) ((presentationTimeUs() - startUs) / FRAME_US);
+		if (frames == 0)
+			return;
+		if (mGapCount == 0 && mOutputEndUs >= startUs) {
+			// codec is caught up, nothing to keep the order with
+			mWriter.writeNoData(frames);
+			mOutputEndUs = startUs + frames * FRAME_US;
+			return;
+		}
+		int last = mGapCount - 1;
+		boolean contiguous = last >= 0
+				&& mGapStartUs[last] + mGapFrames[last] * FRAME_US == startUs;
+		if (contiguous || mGapCount == MAX_GAPS) {
+			// a full queue only shifts the silence a little
+			mGapFrames[last] += frames;
+		} else {
+			mGapStartUs[mGapCount] = startUs;
+			mGapFrames[mGapCount] = frames;
+			mGapCount++;
+		}
+	}
+
+	public long bytesWritten() {
+		return mWriter.bytesWritten();
+	}
+
+	/**
+	 * Samples in the frames written, NO_DATA frames included. What the codec
+	 * still holds counts once close has drained it.
+	 */
+	public long samplesWritten() {
+		return mWriter.framesWritten() * AmrFileWriter.FRAME_SAMPLES;
+	}
+
+	public void close() throws IOException {
+		if (mCodec == null)
+			return;
+		try {
+			int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+			if (index >= 0) {
+				mCodec.queueInputBuffer(index, 0, 0, presentationTimeUs(),
+						MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				drain(true);
+			} else {
+				Log.w(TAG, "no input buffer for end of stream");
+			}
+			writeGaps(Long.MAX_VALUE);
+		} catch (IllegalStateException e) {
+			Log.w(TAG, "encoder failed to flush: " + e);
+		} finally {
+			releaseCodec();
+			mWriter.close();
+		}
+	}
+
+	/*
+	 * Writes the pending silence runs that start before the given time.
+	 */
+	private void writeGaps(long beforeUs) throws IOException {
+		int done = 0;
+		while (done < mGapCount && mGapStartUs[done] <= beforeUs) {
+			mWriter.writeNoData(mGapFrames[done]);
+			mOutputEndUs = Math.max(mOutputEndUs, mGapStartUs[done]
+					+ mGapFrames[done] * FRAME_US);
+			done++;
+		}
+		if (done == 0)
+			return;
+		mGapCount -= done;
+		System.arraycopy(mGapStartUs, done, mGapStartUs, 0, mGapCount);
+		System.arraycopy(mGapFrames, done, mGapFrames, 0, mGapCount);
+	}
+
+	private long presentationTimeUs() {
+		return mSamplesQueued * 1000000L / mSampleRate;
+	}
+
+	private void drain(boolean endOfStream) throws IOException {
+		int retries = 0;
+		while (true) {
+			int index = mCodec.dequeueOutputBuffer(mInfo,
+					endOfStream ? TIMEOUT_US : 0);
+			if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				if (!endOfStream || ++retries > EOS_RETRIES)
+					return;
+				continue;
+			}
+			if (index < 0) {
+				// format or buffer change, nothing to write
+				continue;
+			}
+			ByteBuffer out = mCodec.getOutputBuffer(index);
+			if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+					&& mInfo.size > 0) {
+				writeGaps(mInfo.presentationTimeUs);
+				int end = mInfo.offset + mInfo.size;
+				int frames = 0;
+				for (int pos = mInfo.offset; pos < end; pos += AmrFileWriter
+						.frameSize(out.get(pos)))
+					frames++;
+				out.limit(end);
+				out.position(mInfo.offset);
+				mWriter.write(out);
+				mOutputEndUs = Math.max(mOutputEndUs, mInfo.presentationTimeUs
+						+ frames * FRAME_US);
+			}
+			mCodec.releaseOutputBuffer(index, false);
+			if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+				return;
+		}
+	}
+
+	private void releaseCodec() {
+		if (mCodec == null)
+			return;
+		try {
+			mCodec.stop();
+		} catch (IllegalStateException e) {
+			// never started
+		}
+		mCodec.release();
+		mCodec = null;
+	}
+}
@@ -0,0 +1,392 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writes 16 bit mono PCM as a FLAC stream, in pure Java. Samples collect in
+ * preallocated int blocks of BLOCK_SIZE, each full block becomes one frame
+ * through {@link FlacFrameEncoder}. While recording that happens on the
+ * encoding thread, one frame at a time. Given a ForkJoinPool, for offline
+ * conversions, a batch of blocks is encoded at once, a frame per task, and
+ * the frames are written in order.
+ * <p>
+ * The sample count in STREAMINFO is patched about once a second, so a crash
+ * leaves a file that plays up to that point; the frame sizes and the MD5 are
+ * filled in on close. Given a size limit the file ends on the last whole
+ * frame that fits, and so it does when space is reserved ahead and the disk
+ * runs out. Frames and header patches go to the file through a
+ * {@link WriteBehindOutput}.
+ */
+class FlacEncoder implements PcmEncoder, PcmEncoder.SizeLimited,
+		PcmEncoder.Durable, VoiceActivityDetector.SilenceSink {
+	static final String TAG = "FlacEncoder";
+
+	// half a second at 8kHz
+	static final int BLOCK_SIZE = 4096;
+	// blocks per batch and pool thread
+	private static final int BATCH_PER_THREAD = 4;
+	// the long in STREAMINFO that ends with the sample count
+	private static final int RATE_AND_SAMPLES_OFFSET = FlacFile.STREAMINFO_OFFSET
+			+ 10;
+
+	private static ForkJoinPool sOfflinePool;
+
+	private final ForkJoinPool mPool;
+	private final int[][] mBlocks;
+	private final int[] mCounts;
+	private final int[] mLengths;
+	private final FlacFrameEncoder[] mFrameEncoders;
+	private final byte[] mMd5Bytes = new byte[BLOCK_SIZE * 2];
+	private int mBlock;
+	private int mFill;
+
+	private RandomAccessFile mFile;
+	private WriteBehindOutput mOutput;
+	private WriteBehindOutput.Policy mSyncPolicy;
+	private Executor mWriter;
+	private MessageDigest mMd5;
+	private int mSampleRate;
+	private int mRateCode;
+	private long mFrameNumber;
+	private long mSamples;
+	private long mPatchedSamples;
+	private long mBytes;
+	private int mMinFrame;
+	private int mMaxFrame;
+	private int mLastCount;
+	private long mMaxBytes;
+	private boolean mPreallocate;
+	private Preallocator mPreallocator;
+	private volatile boolean mFull;
+	private volatile boolean mOutOfSpace;
+
+	/**
+	 * Encodes on the calling thread, for recording.
+	 */
+	FlacEncoder() {
+		this(null);
+	}
+
+	/**
+	 * Encodes batches of frames on the pool, for offline work.
+	 */
+	FlacEncoder(ForkJoinPool pool) {
+		mPool = pool;
+		int blocks = pool != null ? pool.getParallelism() * BATCH_PER_THREAD
+				: 1;
+		mBlocks = new int[blocks][BLOCK_SIZE];
+		mCounts = new int[blocks];
+		mLengths = new int[blocks];
+		mFrameEncoders = new FlacFrameEncoder[blocks];
+		for (int i = 0; i < mFrameEncoders.length; i++)
+			mFrameEncoders[i] = new FlacFrameEncoder(BLOCK_SIZE);
+	}
+
+	/**
+	 * An encoder on the pool shared by conversions, one thread per core.
+	 */
+	static FlacEncoder offline() {
+		synchronized (FlacEncoder.class) {
+			if (sOfflinePool == null)
+				sOfflinePool = new ForkJoinPool(Runtime.getRuntime()
+						.availableProcessors());
+		}
+		return new FlacEncoder(sOfflinePool);
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	public void setSyncPolicy(WriteBehindOutput.Policy policy) {
+		mSyncPolicy = policy;
+	}
+
+	public void setWriter(Executor writer) {
+		mWriter = writer;
+	}
+
+	public void setPreallocate(boolean preallocate) {
+		mPreallocate = preallocate;
+	}
+
+	public boolean isFull() {
+		return mFull;
+	}
+
+	public boolean isOutOfSpace() {
+		return mOutOfSpace;
+	}
+
+	public void open(File file, int sampleRate) throws IOException {
+		try {
+			mMd5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			mMd5 = null;
+		}
+		mSampleRate = sampleRate;
+		mRateCode = rateCode(sampleRate);
+		mBlock = 0;
+		mFill = 0;
+		mFrameNumber = 0;
+		mSamples = 0;
+		mPatchedSamples = 0;
+		mMinFrame = Integer.MAX_VALUE;
+		mMaxFrame = 0;
+		mLastCount = 0;
+		mFull = mMaxBytes > 0 && mMaxBytes < FlacFile.HEADER_BYTES;
+		mOutOfSpace = false;
+		mPreallocator = null;
+
+		mFile = new RandomAccessFile(file, "rw");
+		try {
+			mFile.setLength(0);
+			if (mPreallocate) {
+				mPreallocator = new Preallocator(mFile.getFD(),
+						mFile.getChannel(), mMaxBytes);
+				mPreallocator.start(0);
+			}
+		} catch (IOException e) {
+			mFile.close();
+			mFile = null;
+			throw e;
+		}
+		mOutput = new WriteBehindOutput(mFile.getChannel(), 0, mSyncPolicy,
+				mWriter);
+		mOutput.write(ByteBuffer.wrap(header(null)));
+		mBytes = FlacFile.HEADER_BYTES;
+	}
+
+	/*
+	 * The sample rate codes a frame header can carry, or 0 for the rate in
+	 * STREAMINFO.
+	 */
+	private static int rateCode(int sampleRate) {
+		switch (sampleRate) {
+		case 8000:
+			return 4;
+		case 16000:
+			return 5;
+		case 22050:
+			return 6;
+		case 24000:
+			return 7;
+		case 32000:
+			return 8;
+		case 44100:
+			return 9;
+		case 48000:
+			return 10;
+		case 96000:
+			return 11;
+		default:
+			return 0;
+		}
+	}
+
+	/*
+	 * Magic and STREAMINFO, the only metadata block. Without a digest the
+	 * frame sizes and sample count are still unknown.
+	 */
+	private byte[] header(byte[] md5) {
+		ByteBuffer b = ByteBuffer.allocate(FlacFile.HEADER_BYTES);
+		b.put(FlacFile.MAGIC);
+		// last block, type 0
+		b.putInt(0x80000000 | FlacFile.STREAMINFO_BYTES);
+		int minBlock = BLOCK_SIZE;
+		int maxBlock = BLOCK_SIZE;
+		if (md5 != null && mFrameNumber == 1)
+			minBlock = maxBlock = mLastCount;
+		b.putShort((short) minBlock);
+		b.putShort((short) maxBlock);
+		int minFrame = md5 != null && mMaxFrame > 0 ? mMinFrame : 0;
+		int maxFrame = md5 != null ? mMaxFrame : 0;
+		putInt24(b, minFrame);
+		putInt24(b, maxFrame);
+		b.putLong(rateAndSamples(md5 != null ? mSamples : 0));
+		if (md5 != null)
+			b.put(md5);
+		return b.array();
+	}
+
+	/*
+	 * Rate, mono (0), 16 bits (15), sample count.
+	 */
+	private long rateAndSamples(long samples) {
+		return (long) mSampleRate << 44 | 15L << 36
+				| (samples & 0xFFFFFFFFFL);
+	}
+
+	private static void putInt24(ByteBuffer b, int v) {
+		b.put((byte) (v >>> 16));
+		b.put((byte) (v >>> 8));
+		b.put((byte) v);
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		if (mFull)
+			return;
+		int offset = 0;
+		while (offset < count) {
+			int[] block = mBlocks[mBlock];
+			int n = Math.min(count - offset, BLOCK_SIZE - mFill);
+			for (int i = 0; i < n; i++)
+				block[mFill + i] = pcm[offset + i];
+			offset += n;
+			mFill += n;
+			if (mFill == BLOCK_SIZE)
+				nextBlock();
+		}
+	}
+
+	/**
+	 * Zeros code as constant subframes, a few bytes per frame.
+	 */
+	public void encodeSilence(int samples) throws IOException {
+		if (mFull)
+			return;
+		while (samples > 0) {
+			int[] block = mBlocks[mBlock];
+			int n = Math.min(samples, BLOCK_SIZE - mFill);
+			for (int i = 0; i < n; i++)
+				block[mFill + i] = 0;
+			samples -= n;
+			mFill += n;
+			if (mFill == BLOCK_SIZE)
+				nextBlock();
+		}
+	}
+
+	private void nextBlock() throws IOException {
+		mCounts[mBlock++] = mFill;
+		mFill = 0;
+		if (mBlock == mBlocks.length)
+			flushBlocks();
+	}
+
+	/*
+	 * Encodes the collected blocks and writes their frames in order.
+	 */
+	private void flushBlocks() throws IOException {
+		int count = mBlock;
+		if (count == 0)
+			return;
+		if (mPool != null && count > 1) {
+			mPool.invoke(new EncodeTask(0, count));
+		} else {
+			for (int i = 0; i < count; i++)
+				encodeBlock(i);
+		}
+		for (int i = 0; i < count; i++) {
+			if (mMaxBytes > 0 && mBytes + mLengths[i] > mMaxBytes) {
+				// the frame that doesn't fit ends the file
+				mFull = true;
+				break;
+			}
+			if (mPreallocator != null
+					&& !mPreallocator.ensure(mBytes + mLengths[i])) {
+				mOutOfSpace = true;
+				mFull = true;
+				break;
+			}
+			writeFrame(mFrameEncoders[i].bytes(), mLengths[i], mBlocks[i],
+					mCounts[i]);
+		}
+		mBlock = 0;
+		if (mSamples - mPatchedSamples >= mSampleRate) {
+			mOutput.patch(RATE_AND_SAMPLES_OFFSET, ByteBuffer.allocate(8)
+					.putLong(rateAndSamples(mSamples)).array());
+			mPatchedSamples = mSamples;
+		}
+	}
+
+	private void encodeBlock(int i) {
+		mLengths[i] = mFrameEncoders[i].encode(mBlocks[i], mCounts[i],
+				mFrameNumber + i, mRateCode);
+	}
+
+	private void writeFrame(byte[] frame, int length, int[] block, int count)
+			throws IOException {
+		mOutput.write(frame, 0, length);
+		mBytes += length;
+		if (mMd5 != null) {
+			for (int i = 0; i < count; i++) {
+				mMd5Bytes[2 * i] = (byte) block[i];
+				mMd5Bytes[2 * i + 1] = (byte) (block[i] >> 8);
+			}
+			mMd5.update(mMd5Bytes, 0, count * 2);
+		}
+		mMinFrame = Math.min(mMinFrame, length);
+		mMaxFrame = Math.max(mMaxFrame, length);
+		mLastCount = count;
+		mSamples += count;
+		mFrameNumber++;
+	}
+
+	/*
+	 * Splits a batch in halves down to single frames.
+	 */
+	private class EncodeTask extends RecursiveAction {
+		private final int mFrom;
+		private final int mTo;
+
+		EncodeTask(int from, int to) {
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (mTo - mFrom == 1) {
+				encodeBlock(mFrom);
+				return;
+			}
+			int mid = (mFrom + mTo) >>> 1;
+			invokeAll(new EncodeTask(mFrom, mid), new EncodeTask(mid, mTo));
+		}
+	}
+
+	public long bytesWritten() {
+		return mBytes;
+	}
+
+	/**
+	 * Samples in the frames written, a block still being collected counts
+	 * once close has written it.
+	 */
+	public long samplesWritten() {
+		return mSamples;
+	}
+
+	public void close() throws IOException {
+		if (mFile == null)
+			return;
+		try {
+			if (mFill > 0) {
+				// the last frame may be short
+				mCounts[mBlock++] = mFill;
+				mFill = 0;
+			}
+			flushBlocks();
+			mOutput.patch(0, header(mMd5 != null ? mMd5.digest()
+					: new byte[16]));
+		} finally {
+			try {
+				// also releases the reserved space that wasn't used
+				mOutput.close(mBytes);
+			} finally {
+				mFile.close();
+				mFile = null;
+				mOutput = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The parts of the FLAC container this app needs: the STREAMINFO block and
+ * a walk over the frames that finds where the last complete one ends. The
+ * walk does not decode anything, a frame ends where the next valid header
+ * starts and the CRC-16 of the bytes in between checks out.
+ */
+class FlacFile {
+	static final byte[] MAGIC = { 'f', 'L', 'a', 'C' };
+	// magic, block header, STREAMINFO
+	static final int STREAMINFO_OFFSET = 8;
+	static final int STREAMINFO_BYTES = 34;
+	static final int HEADER_BYTES = STREAMINFO_OFFSET + STREAMINFO_BYTES;
+	// sample count and MD5 at the end of STREAMINFO
+	static final int TOTAL_SAMPLES_OFFSET = STREAMINFO_OFFSET + 13;
+	static final int MD5_OFFSET = STREAMINFO_OFFSET + 18;
+	// the longest frame header, sync to CRC-8
+	static final int MAX_FRAME_HEADER = 16;
+	private static final int MIN_FRAME = 8;
+
+	private static final int READ_BYTES = 64 * 1024;
+
+	private static final int[] CRC8 = new int[256];
+	private static final int[] CRC16 = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c8 = i;
+			int c16 = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+				c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+			}
+			CRC8[i] = c8 & 0xFF;
+			CRC16[i] = c16 & 0xFFFF;
+		}
+	}
+
+	int mSampleRate;
+	int mMinBlockSize;
+	int mMaxBlockSize;
+	// as STREAMINFO says, 0 if unknown
+	long mTotalSamples;
+	boolean mHasMd5;
+	long mFirstFrame;
+	// filled in by walk()
+	long mFrameSamples;
+	long mEnd;
+
+	static int crc8(byte[] b, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++)
+			crc = CRC8[crc ^ (b[i] & 0xFF)];
+		return crc;
+	}
+
+	static int crc16(int crc, byte[] b, int offset, int length) {
+		for (int i = offset; i < offset + length; i++)
+			crc = ((crc << 8) ^ CRC16[(crc >>> 8) ^ (b[i] & 0xFF)]) & 0xFFFF;
+		return crc;
+	}
+
+	/**
+	 * Reads the metadata blocks, the frames are left alone.
+	 */
+	static FlacFile read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("not a FLAC file");
+			FlacFile flac = new FlacFile();
+			long pos = MAGIC.length;
+			boolean last = false;
+			boolean streamInfo = false;
+			while (!last) {
+				int header = in.readInt();
+				last = (header & 0x80000000) != 0;
+				int type = (header >>> 24) & 0x7F;
+				int length = header & 0xFFFFFF;
+				pos += 4 + length;
+				if (type == 0 && length >= STREAMINFO_BYTES) {
+					byte[] info = new byte[length];
+					in.readFully(info);
+					flac.parseStreamInfo(ByteBuffer.wrap(info));
+					streamInfo = true;
+				} else if (in.skipBytes(length) < length) {
+					throw new EOFException("metadata cut short");
+				}
+			}
+			if (!streamInfo)
+				throw new IOException("no STREAMINFO");
+			flac.mFirstFrame = pos;
+			return flac;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void parseStreamInfo(ByteBuffer b) {
+		mMinBlockSize = b.getShort(0) & 0xFFFF;
+		mMaxBlockSize = b.getShort(2) & 0xFFFF;
+		long packed = b.getLong(10);
+		mSampleRate = (int) (packed >>> 44);
+		mTotalSamples = packed & 0xFFFFFFFFFL;
+		for (int i = 18; i < STREAMINFO_BYTES; i++)
+			mHasMd5 |= b.get(i) != 0;
+	}
+
+	long durationMillis(long samples) {
+		return mSampleRate > 0 ? samples * 1000 / mSampleRate : 0;
+	}
+
+	/**
+	 * Counts the samples in the complete frames and sets mEnd to where the
+	 * last of them ends. Zeros after a frame are taken for the unused part
+	 * of a preallocated file and end the walk.
+	 */
+	void walk(File file) throws IOException {
+		mFrameSamples = 0;
+		mEnd = mFirstFrame;
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				READ_BYTES);
+		try {
+			if (in.skip(mFirstFrame) < mFirstFrame)
+				return;
+			byte[] header = new byte[MAX_FRAME_HEADER];
+			in.mark(MAX_FRAME_HEADER);
+			int blockSamples = frameSamples(header, in.read(header));
+			in.reset();
+			if (blockSamples <= 0)
+				return;
+			long pos = mFirstFrame;
+			int crc = 0;
+			int size = 0;
+			int b;
+			while ((b = in.read()) >= 0) {
+				crc = ((crc << 8) ^ CRC16[(crc >>> 8) ^ b]) & 0xFFFF;
+				pos++;
+				// a frame is at least its header and the CRC-16
+				if (++size < MIN_FRAME || crc != 0)
+					continue;
+				in.mark(MAX_FRAME_HEADER);
+				int n = in.read(header);
+				in.reset();
+				int next = n < 0 ? 0 : frameSamples(header, n);
+				boolean tail = n > 0 && next <= 0 && zeros(header, n);
+				if (n > 0 && next <= 0 && !tail)
+					continue;
+				// at a frame boundary, or at the end of a complete frame
+				mFrameSamples += blockSamples;
+				mEnd = pos;
+				blockSamples = next;
+				crc = 0;
+				size = 0;
+				if (n < 0 || tail)
+					break;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean zeros(byte[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (b[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Samples in the frame whose header starts the buffer, or -1 if it is
+	 * not a valid frame header.
+	 */
+	static int frameSamples(byte[] h, int length) {
+		if (length < 6 || (h[0] & 0xFF) != 0xFF || (h[1] & 0xFE) != 0xF8)
+			return -1;
+		int blockCode = (h[2] & 0xFF) >>> 4;
+		int rateCode = h[2] & 0x0F;
+		if (blockCode == 0 || rateCode == 15 || (h[3] & 1) != 0)
+			return -1;
+		// the frame or sample number, UTF-8 coded
+		int pos = 4;
+		int lead = h[pos] & 0xFF;
+		int extra;
+		if (lead < 0x80)
+			extra = 0;
+		else if (lead >= 0xC0 && lead < 0xE0)
+			extra = 1;
+		else if (lead >= 0xE0 && lead < 0xF0)
+			extra = 2;
+		else if (lead >= 0xF0 && lead < 0xF8)
+			extra = 3;
+		else if (lead >= 0xF8 && lead < 0xFC)
+			extra = 4;
+		else if (lead >= 0xFC && lead < 0xFE)
+			extra = 5;
+		else if (lead == 0xFE)
+			extra = 6;
+		else
+			return -1;
+		pos += 1 + extra;
+		int samples;
+		if (blockCode == 1) {
+			samples = 192;
+		} else if (blockCode <= 5) {
+			samples = 576 << (blockCode - 2);
+		} else if (blockCode == 6) {
+			if (pos + 1 > length)
+				return -1;
+			samples = (h[pos++] & 0xFF) + 1;
+		} else if (blockCode == 7) {
+			if (pos + 2 > length)
+				return -1;
+			samples = ((h[pos] & 0xFF) << 8 | (h[pos + 1] & 0xFF)) + 1;
+			pos += 2;
+		} else {
+			samples = 256 << (blockCode - 8);
+		}
+		if (rateCode == 12)
+			pos += 1;
+		else if (rateCode == 13 || rateCode == 14)
+			pos += 2;
+		if (pos + 1 > length || crc8(h, 0, pos) != (h[pos] & 0xFF))
+			return -1;
+		return samples;
+	}
+
+	/**
+	 * Writes the sample count into STREAMINFO in place.
+	 */
+	static void patchTotalSamples(RandomAccessFile raf, long samples)
+			throws IOException {
+		byte[] b = new byte[5];
+		raf.seek(TOTAL_SAMPLES_OFFSET);
+		raf.readFully(b);
+		b[0] = (byte) ((b[0] & 0xF0) | ((samples >>> 32) & 0x0F));
+		b[1] = (byte) (samples >>> 24);
+		b[2] = (byte) (samples >>> 16);
+		b[3] = (byte) (samples >>> 8);
+		b[4] = (byte) samples;
+		raf.seek(TOTAL_SAMPLES_OFFSET);
+		raf.write(b);
+	}
+}
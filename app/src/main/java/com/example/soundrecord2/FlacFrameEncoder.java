@@ -0,0 +1,515 @@
+package com.example.soundrecord2;
+
+/**
+ * Turns one block of 16 bit mono samples into a FLAC frame. Tries a
+ * constant subframe, the best fixed predictor and an LPC predictor of up to
+ * MAX_LPC_ORDER, and keeps whichever codes smallest with partitioned Rice
+ * coding, falling back to verbatim. All scratch space is allocated up
+ * front, one instance per thread.
+ */
+class FlacFrameEncoder {
+	static final int MAX_FIXED_ORDER = 4;
+	// enough for speech at 8kHz, and keeps the sums within an int
+	static final int MAX_LPC_ORDER = 8;
+	private static final int LPC_PRECISION = 12;
+	private static final int MAX_PARTITION_ORDER = 8;
+	// 15 is the escape code
+	private static final int MAX_RICE_PARAM = 14;
+	private static final int BITS_PER_SAMPLE = 16;
+	// sample size code for 16 bits, mono, in the frame header
+	private static final int CHANNELS_AND_SIZE = 0x08;
+
+	private static final int SUBFRAME_CONSTANT = 0;
+	private static final int SUBFRAME_VERBATIM = 1;
+	private static final int SUBFRAME_FIXED = 2;
+	private static final int SUBFRAME_LPC = 3;
+
+	/*
+	 * A partition order and the Rice parameter of every partition.
+	 */
+	private static class Rice {
+		int mOrder;
+		final int[] mParams = new int[1 << MAX_PARTITION_ORDER];
+	}
+
+	private final int mBlockSize;
+	private final BitWriter mOut;
+	// residual and Rice choice of the best predictor so far, and a trial
+	private int[] mResidual;
+	private int[] mTrial;
+	private Rice mRice = new Rice();
+	private Rice mTrialRice = new Rice();
+	private final long[] mSums = new long[2 << MAX_PARTITION_ORDER];
+
+	private final double[] mWindow;
+	private int mWindowSize;
+	private final double[] mWindowed;
+	private final double[] mAutoc = new double[MAX_LPC_ORDER + 1];
+	private final double[] mLpc = new double[MAX_LPC_ORDER];
+	private final double[][] mCoefs = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+	private final double[] mError = new double[MAX_LPC_ORDER];
+	private final int[] mQuantized = new int[MAX_LPC_ORDER];
+	private final int[] mBestQuantized = new int[MAX_LPC_ORDER];
+
+	private int mType;
+	private int mOrder;
+	private int mShift;
+
+	FlacFrameEncoder(int blockSize) {
+		mBlockSize = blockSize;
+		// verbatim worst case plus headers
+		mOut = new BitWriter(blockSize * 2 + 64);
+		mResidual = new int[blockSize];
+		mTrial = new int[blockSize];
+		mWindow = new double[blockSize];
+		mWindowed = new double[blockSize];
+	}
+
+	byte[] bytes() {
+		return mOut.mBuf;
+	}
+
+	/**
+	 * Encodes count samples as the given frame and returns its length in
+	 * bytes().
+	 */
+	int encode(int[] x, int count, long frameNumber, int rateCode) {
+		if (count <= 0 || count > mBlockSize)
+			throw new IllegalArgumentException("block of " + count);
+		BitWriter out = mOut;
+		out.reset();
+		out.write(0xFFF8, 16);
+		int blockCode = blockSizeCode(count);
+		out.write(blockCode, 4);
+		out.write(rateCode, 4);
+		out.write(CHANNELS_AND_SIZE, 8);
+		writeUtf8(out, frameNumber);
+		if (blockCode == 6)
+			out.write(count - 1, 8);
+		else if (blockCode == 7)
+			out.write(count - 1, 16);
+		out.write(FlacFile.crc8(out.mBuf, 0, out.mLength), 8);
+
+		choose(x, count);
+		writeSubframe(x, count);
+
+		out.flushByte();
+		int crc = FlacFile.crc16(0, out.mBuf, 0, out.mLength);
+		out.write(crc, 16);
+		return out.mLength;
+	}
+
+	private static int blockSizeCode(int count) {
+		// powers of two from 256 code as their exponent
+		if (count >= 256 && Integer.bitCount(count) == 1)
+			return Integer.numberOfTrailingZeros(count);
+		return count <= 256 ? 6 : 7;
+	}
+
+	private static void writeUtf8(BitWriter out, long v) {
+		if (v < 0x80) {
+			out.write((int) v, 8);
+			return;
+		}
+		int bytes = 2;
+		while (bytes < 7 && v >= 1L << (5 * bytes + 1))
+			bytes++;
+		int prefix = (0xFF << (8 - bytes)) & 0xFF;
+		out.write(prefix | (int) (v >>> (6 * (bytes - 1))), 8);
+		for (int i = bytes - 2; i >= 0; i--)
+			out.write(0x80 | (int) ((v >>> (6 * i)) & 0x3F), 8);
+	}
+
+	/*
+	 * Picks the subframe type, leaving its residual in mResidual.
+	 */
+	private void choose(int[] x, int n) {
+		boolean constant = true;
+		for (int i = 1; i < n && constant; i++)
+			constant = x[i] == x[0];
+		if (constant) {
+			mType = SUBFRAME_CONSTANT;
+			return;
+		}
+		long verbatim = (long) n * BITS_PER_SAMPLE;
+		mType = SUBFRAME_VERBATIM;
+		long best = verbatim;
+		if (n <= MAX_FIXED_ORDER)
+			return;
+
+		int order = bestFixedOrder(x, n);
+		fixedResidual(x, n, order, mResidual);
+		long bits = (long) order * BITS_PER_SAMPLE
+				+ riceBits(mResidual, n, order, mRice);
+		if (bits < best) {
+			best = bits;
+			mType = SUBFRAME_FIXED;
+			mOrder = order;
+		}
+
+		if (n > MAX_LPC_ORDER * 4) {
+			int lpcOrder = computeLpc(x, n);
+			if (lpcOrder > 0 && quantize(mCoefs[lpcOrder - 1], lpcOrder)) {
+				lpcResidual(x, n, lpcOrder, mQuantized, mShift, mTrial);
+				bits = (long) lpcOrder * (BITS_PER_SAMPLE + LPC_PRECISION)
+						+ 9 + riceBits(mTrial, n, lpcOrder, mTrialRice);
+				if (bits < best) {
+					best = bits;
+					mType = SUBFRAME_LPC;
+					mOrder = lpcOrder;
+					System.arraycopy(mQuantized, 0, mBestQuantized, 0,
+							lpcOrder);
+					int[] r = mResidual;
+					mResidual = mTrial;
+					mTrial = r;
+					Rice rice = mRice;
+					mRice = mTrialRice;
+					mTrialRice = rice;
+				}
+			}
+		}
+	}
+
+	/*
+	 * The fixed order with the smallest sum of absolute residuals.
+	 */
+	private static int bestFixedOrder(int[] x, int n) {
+		long total0 = 0, total1 = 0, total2 = 0, total3 = 0, total4 = 0;
+		int last0 = x[3];
+		int last1 = x[3] - x[2];
+		int last2 = last1 - (x[2] - x[1]);
+		int last3 = last2 - (x[2] - 2 * x[1] + x[0]);
+		for (int i = 4; i < n; i++) {
+			int e0 = x[i];
+			int e1 = e0 - last0;
+			int e2 = e1 - last1;
+			int e3 = e2 - last2;
+			int e4 = e3 - last3;
+			total0 += Math.abs(e0);
+			total1 += Math.abs(e1);
+			total2 += Math.abs(e2);
+			total3 += Math.abs(e3);
+			total4 += Math.abs(e4);
+			last0 = e0;
+			last1 = e1;
+			last2 = e2;
+			last3 = e3;
+		}
+		int order = 0;
+		long min = total0;
+		if (total1 < min) {
+			min = total1;
+			order = 1;
+		}
+		if (total2 < min) {
+			min = total2;
+			order = 2;
+		}
+		if (total3 < min) {
+			min = total3;
+			order = 3;
+		}
+		if (total4 < min)
+			order = 4;
+		return order;
+	}
+
+	private static void fixedResidual(int[] x, int n, int order, int[] r) {
+		switch (order) {
+		case 0:
+			System.arraycopy(x, 0, r, 0, n);
+			break;
+		case 1:
+			for (int i = 1; i < n; i++)
+				r[i] = x[i] - x[i - 1];
+			break;
+		case 2:
+			for (int i = 2; i < n; i++)
+				r[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+			break;
+		case 3:
+			for (int i = 3; i < n; i++)
+				r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+			break;
+		default:
+			for (int i = 4; i < n; i++)
+				r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3]
+						+ x[i - 4];
+			break;
+		}
+	}
+
+	/*
+	 * Levinson-Durbin on the windowed autocorrelation. Fills mCoefs and
+	 * returns the order with the fewest expected bits, or 0.
+	 */
+	private int computeLpc(int[] x, int n) {
+		if (mWindowSize != n) {
+			// Welch window
+			double half = (n - 1) / 2.0;
+			for (int i = 0; i < n; i++) {
+				double d = (i - half) / half;
+				mWindow[i] = 1 - d * d;
+			}
+			mWindowSize = n;
+		}
+		for (int i = 0; i < n; i++)
+			mWindowed[i] = x[i] * mWindow[i];
+		for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+			double sum = 0;
+			for (int i = lag; i < n; i++)
+				sum += mWindowed[i] * mWindowed[i - lag];
+			mAutoc[lag] = sum;
+		}
+		if (mAutoc[0] == 0)
+			return 0;
+
+		double err = mAutoc[0];
+		int maxOrder = MAX_LPC_ORDER;
+		for (int i = 0; i < maxOrder; i++) {
+			double r = -mAutoc[i + 1];
+			for (int j = 0; j < i; j++)
+				r -= mLpc[j] * mAutoc[i - j];
+			r /= err;
+			mLpc[i] = r;
+			int j;
+			for (j = 0; j < (i >> 1); j++) {
+				double tmp = mLpc[j];
+				mLpc[j] += r * mLpc[i - 1 - j];
+				mLpc[i - 1 - j] += r * tmp;
+			}
+			if ((i & 1) != 0)
+				mLpc[j] += mLpc[j] * r;
+			err *= 1.0 - r * r;
+			for (j = 0; j <= i; j++)
+				mCoefs[i][j] = -mLpc[j];
+			mError[i] = err;
+			if (err <= 0) {
+				maxOrder = i + 1;
+				break;
+			}
+		}
+
+		int best = 0;
+		double bestBits = Double.MAX_VALUE;
+		for (int order = 1; order <= maxOrder; order++) {
+			double e = mError[order - 1];
+			double perSample = e > 0 ? Math.max(0,
+					0.5 * Math.log(0.5 * e / n) / Math.log(2)) : 0;
+			double bits = perSample * (n - order) + order
+					* (BITS_PER_SAMPLE + LPC_PRECISION);
+			if (bits < bestBits) {
+				bestBits = bits;
+				best = order;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Quantizes to LPC_PRECISION bits into mQuantized and mShift, carrying
+	 * the rounding error along. False if the coefficients don't fit.
+	 */
+	private boolean quantize(double[] lp, int order) {
+		double cmax = 0;
+		for (int i = 0; i < order; i++)
+			cmax = Math.max(cmax, Math.abs(lp[i]));
+		if (cmax <= 0)
+			return false;
+		int qmax = (1 << (LPC_PRECISION - 1)) - 1;
+		int qmin = -qmax - 1;
+		int shift = LPC_PRECISION - 2 - Math.getExponent(cmax);
+		if (shift < 0)
+			return false;
+		shift = Math.min(shift, 15);
+		double error = 0;
+		for (int i = 0; i < order; i++) {
+			error += lp[i] * (1 << shift);
+			long q = Math.round(error);
+			q = Math.max(qmin, Math.min(qmax, q));
+			error -= q;
+			mQuantized[i] = (int) q;
+		}
+		mShift = shift;
+		return true;
+	}
+
+	private static void lpcResidual(int[] x, int n, int order, int[] q,
+			int shift, int[] r) {
+		for (int i = order; i < n; i++) {
+			int sum = 0;
+			for (int j = 0; j < order; j++)
+				sum += q[j] * x[i - j - 1];
+			r[i] = x[i] - (sum >> shift);
+		}
+	}
+
+	/*
+	 * Finds the partition order and parameters that code the residual in
+	 * the fewest bits and returns that count, estimated from the sums.
+	 */
+	private long riceBits(int[] r, int n, int predOrder, Rice rice) {
+		int maxOrder = 0;
+		while (maxOrder < MAX_PARTITION_ORDER
+				&& n % (2 << maxOrder) == 0
+				&& (n >> (maxOrder + 1)) > predOrder)
+			maxOrder++;
+
+		long[] sums = mSums;
+		int parts = 1 << maxOrder;
+		int size = n >> maxOrder;
+		int i = predOrder;
+		for (int p = 0; p < parts; p++) {
+			long sum = 0;
+			for (int end = (p + 1) * size; i < end; i++) {
+				int v = r[i];
+				sum += (v << 1) ^ (v >> 31);
+			}
+			sums[parts + p] = sum;
+		}
+		for (int order = maxOrder - 1; order >= 0; order--) {
+			int base = 1 << order;
+			for (int p = 0; p < base; p++)
+				sums[base + p] = sums[2 * (base + p)]
+						+ sums[2 * (base + p) + 1];
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int order = 0; order <= maxOrder; order++) {
+			int base = 1 << order;
+			int partSize = n >> order;
+			long bits = 6;
+			for (int p = 0; p < base; p++) {
+				int count = p == 0 ? partSize - predOrder : partSize;
+				long sum = sums[base + p];
+				int k = 0;
+				while (k < MAX_RICE_PARAM && ((long) count << (k + 1)) < sum)
+					k++;
+				bits += 4 + (long) count * (k + 1) + (sum >> k);
+			}
+			if (bits < best) {
+				best = bits;
+				rice.mOrder = order;
+			}
+		}
+		// parameters of the chosen order
+		int base = 1 << rice.mOrder;
+		int partSize = n >> rice.mOrder;
+		for (int p = 0; p < base; p++) {
+			int count = p == 0 ? partSize - predOrder : partSize;
+			long sum = sums[base + p];
+			int k = 0;
+			while (k < MAX_RICE_PARAM && ((long) count << (k + 1)) < sum)
+				k++;
+			rice.mParams[p] = k;
+		}
+		return best;
+	}
+
+	private void writeSubframe(int[] x, int n) {
+		BitWriter out = mOut;
+		switch (mType) {
+		case SUBFRAME_CONSTANT:
+			out.write(0, 8);
+			out.write(x[0], BITS_PER_SAMPLE);
+			break;
+		case SUBFRAME_VERBATIM:
+			out.write(0x02, 8);
+			for (int i = 0; i < n; i++)
+				out.write(x[i], BITS_PER_SAMPLE);
+			break;
+		case SUBFRAME_FIXED:
+			out.write((0x08 | mOrder) << 1, 8);
+			for (int i = 0; i < mOrder; i++)
+				out.write(x[i], BITS_PER_SAMPLE);
+			writeResidual(n);
+			break;
+		default:
+			out.write((0x20 | (mOrder - 1)) << 1, 8);
+			for (int i = 0; i < mOrder; i++)
+				out.write(x[i], BITS_PER_SAMPLE);
+			out.write(LPC_PRECISION - 1, 4);
+			out.write(mShift, 5);
+			for (int i = 0; i < mOrder; i++)
+				out.write(mBestQuantized[i], LPC_PRECISION);
+			writeResidual(n);
+			break;
+		}
+	}
+
+	private void writeResidual(int n) {
+		BitWriter out = mOut;
+		Rice rice = mRice;
+		// Rice coding with 4 bit parameters
+		out.write(0, 2);
+		out.write(rice.mOrder, 4);
+		int parts = 1 << rice.mOrder;
+		int size = n >> rice.mOrder;
+		int i = mOrder;
+		for (int p = 0; p < parts; p++) {
+			int k = rice.mParams[p];
+			out.write(k, 4);
+			for (int end = (p + 1) * size; i < end; i++)
+				out.writeRice(mResidual[i], k);
+		}
+	}
+
+	/*
+	 * MSB first bit packing into a byte array that grows when needed.
+	 */
+	static class BitWriter {
+		byte[] mBuf;
+		int mLength;
+		private long mAcc;
+		private int mBits;
+
+		BitWriter(int capacity) {
+			mBuf = new byte[capacity];
+		}
+
+		void reset() {
+			mLength = 0;
+			mAcc = 0;
+			mBits = 0;
+		}
+
+		/*
+		 * Writes the low bits of value, bits is at most 32.
+		 */
+		void write(int value, int bits) {
+			mAcc = (mAcc << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+			mBits += bits;
+			if (mLength + 8 > mBuf.length)
+				grow();
+			while (mBits >= 8) {
+				mBits -= 8;
+				mBuf[mLength++] = (byte) (mAcc >>> mBits);
+			}
+		}
+
+		void writeRice(int v, int k) {
+			int u = (v << 1) ^ (v >> 31);
+			int q = u >>> k;
+			int low = u & ((1 << k) - 1);
+			if (q + 1 + k <= 32) {
+				write((1 << k) | low, q + 1 + k);
+				return;
+			}
+			for (; q >= 32; q -= 32)
+				write(0, 32);
+			write(0, q);
+			write((1 << k) | low, k + 1);
+		}
+
+		void flushByte() {
+			if (mBits > 0)
+				write(0, 8 - mBits);
+		}
+
+		private void grow() {
+			byte[] buf = new byte[mBuf.length * 2];
+			System.arraycopy(mBuf, 0, buf, 0, mLength);
+			mBuf = buf;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.example.soundrecord2;
+
+/**
+ * Signal level of the most recent capture block: peak, RMS and a running
+ * count of clipped samples. One thread writes; the values are packed into a
+ * single volatile long, so any number of readers get a consistent snapshot
+ * without locks or allocation.
+ * <p>
+ * Snapshot layout: bits 0-15 peak, 16-31 RMS, 32-63 clipped samples.
+ */
+class LevelMeter {
+	// full scale either way counts as clipped
+	static final int CLIP_LEVEL = 32767;
+	// range shown by loudness(), below this is silence
+	static final float RANGE_DB = 60f;
+
+	private volatile long mSnapshot;
+	// writer only
+	private int mClips;
+
+	/**
+	 * Measures one block and publishes the result.
+	 */
+	public void update(short[] pcm, int count) {
+		int peak = 0;
+		long sumSquares = 0;
+		int clips = 0;
+		for (int i = 0; i < count; i++) {
+			int s = pcm[i];
+			sumSquares += s * s;
+			if (s < 0)
+				s = -s;
+			if (s > peak)
+				peak = s;
+			if (s >= CLIP_LEVEL)
+				clips++;
+		}
+		int rms = count > 0 ? (int) Math.sqrt((double) sumSquares / count)
+				: 0;
+		mClips += clips;
+		publish(peak, rms);
+	}
+
+	/**
+	 * Publishes a bare peak from a source that doesn't hand out samples. The
+	 * RMS is that of a sine with this peak.
+	 */
+	public void updatePeak(int peak) {
+		if (peak >= CLIP_LEVEL)
+			mClips++;
+		publish(peak, (int) (peak * 0.7071f));
+	}
+
+	/**
+	 * Zeroes the levels and the clip count, from the writer thread.
+	 */
+	public void reset() {
+		mClips = 0;
+		mSnapshot = 0;
+	}
+
+	private void publish(int peak, int rms) {
+		mSnapshot = ((long) mClips << 32) | ((long) (rms & 0xFFFF) << 16)
+				| (peak & 0xFFFF);
+	}
+
+	public long snapshot() {
+		return mSnapshot;
+	}
+
+	static int peak(long snapshot) {
+		return (int) (snapshot & 0xFFFF);
+	}
+
+	static int rms(long snapshot) {
+		return (int) ((snapshot >>> 16) & 0xFFFF);
+	}
+
+	static int clips(long snapshot) {
+		return (int) (snapshot >>> 32);
+	}
+
+	/**
+	 * RMS on a decibel scale from 0 at -RANGE_DB dBFS or less to 1 at full
+	 * scale, which is how loud the block sounds rather than how high its
+	 * highest sample was.
+	 */
+	static float loudness(long snapshot) {
+		int rms = rms(snapshot);
+		if (rms <= 0)
+			return 0f;
+		float db = (float) (20 * Math.log10(rms / 32768.0));
+		return Math.max(0f, Math.min(1f, 1f + db / RANGE_DB));
+	}
+}
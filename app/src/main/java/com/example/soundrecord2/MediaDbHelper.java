@@ -0,0 +1,168 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Registers finished recordings with the media database and adds them to the
+ * recordings playlist. Safe to call from any thread.
+ */
+class MediaDbHelper {
+	static final String TAG = "MediaDbHelper";
+
+	private MediaDbHelper() {
+	}
+
+	/**
+	 * Adds file and returns content uri, or null if the database refused it.
+	 */
+	public static Uri insert(Context context, File file, long durationMillis,
+			String mimeType) {
+		if (file == null)
+			return null;
+
+		Resources res = context.getResources();
+		ContentValues cv = new ContentValues();
+		long current = System.currentTimeMillis();
+		long modDate = file.lastModified();
+		Date date = new Date(modDate != 0 ? modDate : current);
+		SimpleDateFormat formatter = new SimpleDateFormat(
+				res.getString(R.string.audio_db_title_format));
+		String title = formatter.format(date);
+
+		// Lets label the recorded audio file as NON-MUSIC so that the file
+		// won't be displayed automatically, except for in the playlist.
+		cv.put(MediaStore.Audio.Media.IS_MUSIC, "1");
+
+		cv.put(MediaStore.Audio.Media.TITLE, title);
+		cv.put(MediaStore.Audio.Media.DATA, file.getAbsolutePath());
+		cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (current / 1000));
+		cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (modDate / 1000));
+		cv.put(MediaStore.Audio.Media.DURATION, durationMillis);
+		cv.put(MediaStore.Audio.Media.MIME_TYPE, mimeType);
+		cv.put(MediaStore.Audio.Media.ARTIST,
+				res.getString(R.string.audio_db_artist_name));
+		cv.put(MediaStore.Audio.Media.ALBUM,
+				res.getString(R.string.audio_db_album_name));
+		Log.d(TAG, "Inserting audio record: " + cv.toString());
+		ContentResolver resolver = context.getContentResolver();
+		Uri base = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		Uri result = resolver.insert(base, cv);
+		if (result == null)
+			return null;
+		int playlistId = getPlaylistId(res, resolver);
+		if (playlistId == -1 && createPlaylist(res, resolver) != null)
+			playlistId = getPlaylistId(res, resolver);
+		if (playlistId != -1) {
+			int audioId = Integer.valueOf(result.getLastPathSegment());
+			addToPlaylist(resolver, audioId, playlistId);
+		}
+
+		// Notify those applications such as Music listening to the
+		// scanner events that a recorded audio file just created.
+		context.sendBroadcast(new Intent(
+				Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, result));
+		return result;
+	}
+
+	/**
+	 * Points the entry of a recording that was moved at its new path.
+	 * Returns false if there was no entry for it.
+	 */
+	public static boolean move(Context context, File from, File to) {
+		ContentValues cv = new ContentValues();
+		cv.put(MediaStore.Audio.Media.DATA, to.getAbsolutePath());
+		int rows;
+		try {
+			rows = context.getContentResolver().update(
+					MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, cv,
+					MediaStore.Audio.Media.DATA + "=?",
+					new String[] { from.getAbsolutePath() });
+		} catch (UnsupportedOperationException ex) {
+			rows = 0;
+		}
+		if (rows == 0) {
+			Log.w(TAG, "no entry for " + from);
+			return false;
+		}
+		context.sendBroadcast(new Intent(
+				Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(to)));
+		return true;
+	}
+
+	/*
+	 * Add the given audioId to the playlist with the given playlistId; and
+	 * maintain the play_order in the playlist.
+	 */
+	private static void addToPlaylist(ContentResolver resolver, int audioId,
+			long playlistId) {
+		String[] cols = new String[] { "count(*)" };
+		Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
+				playlistId);
+		Cursor cur = resolver.query(uri, cols, null, null, null);
+		if (cur == null)
+			return;
+		cur.moveToFirst();
+		final int base = cur.getInt(0);
+		cur.close();
+		ContentValues values = new ContentValues();
+		values.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER,
+				Integer.valueOf(base + audioId));
+		values.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioId);
+		resolver.insert(uri, values);
+	}
+
+	/*
+	 * Obtain the id for the default play list from the audio_playlists table.
+	 */
+	private static int getPlaylistId(Resources res, ContentResolver resolver) {
+		Uri uri = MediaStore.Audio.Playlists.getContentUri("external");
+		final String[] ids = new String[] { MediaStore.Audio.Playlists._ID };
+		final String where = MediaStore.Audio.Playlists.NAME + "=?";
+		final String[] args = new String[] { res
+				.getString(R.string.audio_db_playlist_name) };
+		Cursor cursor = null;
+		try {
+			cursor = resolver.query(uri, ids, where, args, null);
+		} catch (UnsupportedOperationException ex) {
+			// treated like no playlist
+		}
+		if (cursor == null) {
+			Log.v(TAG, "query returns null");
+			return -1;
+		}
+		int id = -1;
+		cursor.moveToFirst();
+		if (!cursor.isAfterLast()) {
+			id = cursor.getInt(0);
+		}
+		cursor.close();
+		return id;
+	}
+
+	/*
+	 * Create a playlist with the given default playlist name, if no such
+	 * playlist exists.
+	 */
+	private static Uri createPlaylist(Resources res, ContentResolver resolver) {
+		ContentValues cv = new ContentValues();
+		cv.put(MediaStore.Audio.Playlists.NAME,
+				res.getString(R.string.audio_db_playlist_name));
+		Uri uri = resolver.insert(
+				MediaStore.Audio.Playlists.getContentUri("external"), cv);
+		if (uri == null)
+			Log.w(TAG, "can't create recordings playlist");
+		return uri;
+	}
+}
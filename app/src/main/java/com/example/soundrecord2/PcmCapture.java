@@ -0,0 +1,484 @@
+package com.example.soundrecord2;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * AudioRecord based capture engine. The capture thread reads straight into
+ * the slots of a {@link PcmRingBuffer} and a separate encoder thread drains
+ * the ring into a {@link PcmEncoder}, so a slow write to storage only fills
+ * the ring instead of stalling the microphone. Both are long-lived threads
+ * of the caller that the loops are posted to, so starting a capture or a
+ * recording creates none, and nothing is allocated once the loops run.
+ * <p>
+ * The capture thread can run without an encoder attached. If a
+ * {@link PreRollBuffer} was given it then keeps the most recent audio there
+ * and the history is written ahead of the live audio once encoding starts.
+ * <p>
+ * A running capture also makes starting cheap: {@link #openGate} sends the
+ * very next block to the ring, where it waits while the encoder is set up.
+ */
+class PcmCapture {
+	static final String TAG = "PcmCapture";
+
+	static final int SAMPLE_RATE = 8000;
+	// 40ms, two AMR-NB frames
+	static final int BLOCK_SAMPLES = 320;
+	// 128 blocks is about five seconds of storage stall we can ride out
+	private static final int RING_BLOCKS = 128;
+	private static final long ENCODER_WAIT_NANOS = 20 * 1000000L;
+	private static final long LOAD_WINDOW_NANOS = 60 * 1000000000L;
+
+	// where the capture thread sends blocks
+	private static final int MODE_DISCARD = 0;
+	private static final int MODE_ARMED = 1;
+	private static final int MODE_RECORDING = 2;
+
+	public interface OnCaptureErrorListener {
+		public void onCaptureError(int error);
+	}
+
+	private final OnCaptureErrorListener mListener;
+	private final PreRollBuffer mPreRoll;
+	private final PcmRingBuffer mRing = new PcmRingBuffer(RING_BLOCKS,
+			BLOCK_SAMPLES);
+	// target for reads that don't go into the ring
+	private final short[] mScratchBlock = new short[BLOCK_SAMPLES];
+	// transfer block for the pre-roll flush, owned by the encoder thread
+	private final short[] mFlushBlock = new short[BLOCK_SAMPLES];
+	private final LevelMeter mMeter = new LevelMeter();
+
+	private final Executor mCaptureThread;
+	private final Executor mEncoderThread;
+	private AudioRecord mAudioRecord;
+	// counted down when the loops return, null while they aren't posted
+	private CountDownLatch mCaptureDone;
+	private CountDownLatch mEncoderDone;
+	private volatile PcmEncoder mEncoder;
+	private volatile boolean mRunning;
+	private volatile boolean mPaused;
+	// requested mode, and the mode the capture thread is actually in
+	private volatile int mMode = MODE_DISCARD;
+	private volatile int mAckMode = MODE_DISCARD;
+	// true from startEncoding() until the encoder thread has finished
+	private volatile boolean mEncoding;
+	// tap time of an open gate until its first block is published
+	private volatile long mGateNanos;
+	private volatile long mStartLatencyNanos;
+	// samples of the recording so far, pre-roll included, written by the
+	// capture thread only
+	private volatile long mRecordedSamples;
+	private volatile long mEncodedBytes;
+	private volatile long mEncodedSamples;
+
+	// encoder loop statistics, only touched by the encoder thread until join
+	private long mBlockCount;
+	private long mBusyNanos;
+	private long mWorstBusyNanos;
+	private int mMaxDepth;
+
+	/**
+	 * @param preRoll       history to keep while no encoder is attached, or
+	 *                      null
+	 * @param captureThread runs the capture loop, which holds it until stop
+	 * @param encoderThread runs the encoder loop while encoding
+	 */
+	PcmCapture(PreRollBuffer preRoll, OnCaptureErrorListener listener,
+			Executor captureThread, Executor encoderThread) {
+		mPreRoll = preRoll;
+		mListener = listener;
+		mCaptureThread = captureThread;
+		mEncoderThread = encoderThread;
+	}
+
+	/**
+	 * Creates the AudioRecord. Returns false if the platform can't give us a
+	 * capture session, in which case the caller should fall back to
+	 * MediaRecorder.
+	 */
+	public boolean open() {
+		int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		if (minBuffer <= 0) {
+			Log.w(TAG, "unsupported capture format, min buffer " + minBuffer);
+			return false;
+		}
+		int bufferSize = Math.max(minBuffer, BLOCK_SAMPLES * 2 * 4);
+		try {
+			mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+					SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+					AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "AudioRecord rejected parameters " + e);
+			return false;
+		}
+		if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			mAudioRecord.release();
+			mAudioRecord = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the microphone and the capture thread. Until
+	 * {@link #startEncoding} is called audio only goes to the pre-roll
+	 * buffer, if there is one. Throws a RuntimeException if the microphone
+	 * can't be started, e.g. during a call.
+	 */
+	public void start() {
+		mAudioRecord.startRecording();
+		if (mAudioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+			throw new IllegalStateException("AudioRecord did not start");
+		}
+		mMode = mPreRoll != null ? MODE_ARMED : MODE_DISCARD;
+		mRunning = true;
+		mCaptureDone = new CountDownLatch(1);
+		mCaptureThread.execute(mCaptureLoop);
+	}
+
+	public boolean isStarted() {
+		return mCaptureDone != null;
+	}
+
+	public boolean isArmed() {
+		return mPreRoll != null;
+	}
+
+	/**
+	 * Starts keeping live audio in the ring without an encoder attached, for
+	 * at most a ring's worth of time. Cheap enough to call straight from the
+	 * record button.
+	 *
+	 * @param tapNanos elapsedRealtimeNanos() of the user's request, for the
+	 *                 latency report
+	 */
+	public void openGate(long tapNanos) {
+		if (mMode == MODE_RECORDING)
+			return;
+		mPaused = false;
+		mBlockCount = 0;
+		mBusyNanos = 0;
+		mWorstBusyNanos = 0;
+		mMaxDepth = 0;
+		mGateNanos = tapNanos;
+		mMode = MODE_RECORDING;
+	}
+
+	/**
+	 * Attaches an encoder, opening the gate first if that wasn't done yet.
+	 * The pre-roll history, if any, is written first and the live audio
+	 * follows without a gap.
+	 */
+	public void startEncoding(PcmEncoder encoder, long tapNanos) {
+		openGate(tapNanos);
+		mEncoder = encoder;
+		mEncodedBytes = 0;
+		mEncodedSamples = 0;
+		mEncoding = true;
+		mEncoderDone = new CountDownLatch(1);
+		mEncoderThread.execute(mEncodeLoop);
+	}
+
+	/**
+	 * Length of the recording so far, from the samples handed to the
+	 * encoder. Stands still while paused and is final after stopEncoding().
+	 */
+	public long recordedMillis() {
+		return mRecordedSamples * 1000 / SAMPLE_RATE;
+	}
+
+	/**
+	 * Output size of the attached encoder after its last block, published
+	 * by the encoder thread.
+	 */
+	public long encodedBytes() {
+		return mEncodedBytes;
+	}
+
+	/**
+	 * Length of the audio the attached encoder wrote after its last block,
+	 * final after stopEncoding(). Less than recordedMillis() when silence
+	 * was left out.
+	 */
+	public long encodedMillis() {
+		return mEncodedSamples * 1000 / SAMPLE_RATE;
+	}
+
+	/**
+	 * Time from the tap to the first sample of the last recording, negative
+	 * if the first block already held audio from before the tap.
+	 */
+	public long startLatencyMillis() {
+		return mStartLatencyNanos / 1000000;
+	}
+
+	public boolean isEncoding() {
+		return mEncoderDone != null;
+	}
+
+	/**
+	 * False once the capture thread gave up after an error.
+	 */
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Detaches the encoder after it has drained everything captured so far,
+	 * and closes it. The capture thread keeps running and goes back to
+	 * filling the pre-roll buffer. Must not be called from either thread.
+	 */
+	public void stopEncoding() {
+		if (mEncoderDone == null) {
+			closeGate();
+			return;
+		}
+		mMode = mPreRoll != null ? MODE_ARMED : MODE_DISCARD;
+		mRing.wakeConsumer();
+		await(mEncoderDone);
+		mEncoderDone = null;
+
+		try {
+			mEncoder.close();
+		} catch (IOException e) {
+			Log.e(TAG, "failed to close encoder " + e);
+		}
+		// closing writes out what the encoder still held
+		mEncodedSamples = mEncoder.samplesWritten();
+		mEncoder = null;
+		if (mBlockCount > 0) {
+			Log.d(TAG, "encoded " + mBlockCount + " blocks, avg "
+					+ (mBusyNanos / mBlockCount / 1000) + "us, worst "
+					+ (mWorstBusyNanos / 1000) + "us per block, ring depth "
+					+ mMaxDepth + "/" + mRing.capacity() + ", overruns "
+					+ mRing.overruns() + ", encoder waits " + mRing.waits());
+		}
+	}
+
+	/*
+	 * Goes back to idle after openGate() without an encoder, dropping what
+	 * the ring collected.
+	 */
+	private void closeGate() {
+		if (mMode != MODE_RECORDING)
+			return;
+		mMode = mPreRoll != null ? MODE_ARMED : MODE_DISCARD;
+		while (mAckMode == MODE_RECORDING && mRunning) {
+			LockSupport.parkNanos(ENCODER_WAIT_NANOS / 4);
+		}
+		// no encoder thread, so this thread is the only consumer
+		while (mRing.peek() != null)
+			mRing.release();
+		mGateNanos = 0;
+	}
+
+	/**
+	 * Stops encoding if needed, then the capture thread and the microphone.
+	 * Must not be called from either thread.
+	 */
+	public void stop() {
+		stopEncoding();
+		mRunning = false;
+		await(mCaptureDone);
+		mCaptureDone = null;
+
+		if (mAudioRecord != null) {
+			try {
+				mAudioRecord.stop();
+			} catch (IllegalStateException e) {
+				// never started
+			}
+			mAudioRecord.release();
+			mAudioRecord = null;
+		}
+	}
+
+	/**
+	 * While paused the microphone keeps running but blocks are not passed on
+	 * to the encoder, so resuming continues the same file without a gap in
+	 * the timeline.
+	 */
+	public void setPaused(boolean paused) {
+		mPaused = paused;
+	}
+
+	/**
+	 * Levels of the latest block, updated by the capture thread whether or
+	 * not an encoder is attached.
+	 */
+	public LevelMeter meter() {
+		return mMeter;
+	}
+
+	private static void await(CountDownLatch done) {
+		if (done == null)
+			return;
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private final Runnable mCaptureLoop = new Runnable() {
+		public void run() {
+			CountDownLatch done = mCaptureDone;
+			long windowStart = System.nanoTime();
+			long windowCpu = Debug.threadCpuTimeNanos();
+			try {
+				while (mRunning) {
+					int mode = mMode;
+					// don't touch the pre-roll again until the encoder thread
+					// is done with it
+					if (mode == MODE_ARMED && mEncoding)
+						mode = MODE_DISCARD;
+					if (mode != mAckMode) {
+						if (mode == MODE_ARMED)
+							mPreRoll.clear();
+						// the pre-roll is complete once we stop writing it
+						if (mode == MODE_RECORDING) {
+							mRecordedSamples = mPreRoll != null ? mPreRoll
+									.sampleCount() : 0;
+							mMeter.reset();
+						}
+						mAckMode = mode;
+						windowStart = System.nanoTime();
+						windowCpu = Debug.threadCpuTimeNanos();
+					}
+
+					short[] block = null;
+					if (mode == MODE_RECORDING && !mPaused)
+						block = mRing.claim();
+					boolean publish = block != null;
+					if (!publish)
+						block = mScratchBlock;
+					int n = mAudioRecord.read(block, 0, BLOCK_SAMPLES);
+					if (n < 0) {
+						Log.e(TAG, "AudioRecord.read failed " + n);
+						fail(Recorder.INTERNAL_ERROR);
+						return;
+					}
+
+					mMeter.update(block, n);
+
+					if (publish) {
+						mRing.publish(n);
+						mRecordedSamples += n;
+						if (mGateNanos != 0)
+							firstBlock(n);
+					} else if (mode == MODE_ARMED) {
+						mPreRoll.write(block, n);
+						long elapsed = System.nanoTime() - windowStart;
+						if (elapsed >= LOAD_WINDOW_NANOS) {
+							long cpu = Debug.threadCpuTimeNanos();
+							if (cpu >= 0 && windowCpu >= 0) {
+								float load = (float) (cpu - windowCpu) / elapsed;
+								Log.d(TAG, "armed capture load " + (load * 100)
+										+ "% of a core");
+							}
+							windowStart = System.nanoTime();
+							windowCpu = cpu;
+						}
+					}
+				}
+			} finally {
+				mAckMode = MODE_DISCARD;
+				mRing.wakeConsumer();
+				done.countDown();
+			}
+		}
+	};
+
+	/*
+	 * The block just read ends about now, so that is when its first sample
+	 * was taken, give or take the input latency of the device.
+	 */
+	private void firstBlock(int samples) {
+		long first = SystemClock.elapsedRealtimeNanos() - samples
+				* 1000000000L / SAMPLE_RATE;
+		mStartLatencyNanos = first - mGateNanos;
+		mGateNanos = 0;
+		Log.i(TAG, "tap to first sample " + startLatencyMillis() + "ms");
+	}
+
+	private final Runnable mEncodeLoop = new Runnable() {
+		public void run() {
+			CountDownLatch done = mEncoderDone;
+			try {
+				// wait for the capture thread to leave armed mode, it won't
+				// write to the pre-roll buffer again while we are running
+				while (mAckMode == MODE_ARMED && mRunning) {
+					LockSupport.parkNanos(ENCODER_WAIT_NANOS / 4);
+				}
+				if (mPreRoll != null) {
+					try {
+						mPreRoll.drainTo(mEncoder, mFlushBlock);
+					} catch (IOException e) {
+						Log.e(TAG, "encoder failed " + e);
+						fail(Recorder.SDCARD_ACCESS_ERROR);
+						return;
+					}
+				}
+				encodeLoop();
+			} finally {
+				mEncoding = false;
+				done.countDown();
+			}
+		}
+	};
+
+	private void encodeLoop() {
+		PcmEncoder encoder = mEncoder;
+		while (true) {
+			short[] block = mRing.peek();
+			if (block == null) {
+				// once the capture thread has acknowledged leaving recording
+				// mode nothing more will be published
+				if (mMode != MODE_RECORDING && mAckMode != MODE_RECORDING) {
+					if (mRing.isEmpty())
+						return;
+					continue;
+				}
+				mRing.await(ENCODER_WAIT_NANOS);
+				continue;
+			}
+			int depth = mRing.size();
+			if (depth > mMaxDepth)
+				mMaxDepth = depth;
+
+			long begin = System.nanoTime();
+			try {
+				encoder.encode(block, mRing.peekLength());
+			} catch (IOException e) {
+				Log.e(TAG, "encoder failed " + e);
+				fail(Recorder.SDCARD_ACCESS_ERROR);
+				return;
+			}
+			mRing.release();
+			mEncodedBytes = encoder.bytesWritten();
+			mEncodedSamples = encoder.samplesWritten();
+
+			long busy = System.nanoTime() - begin;
+			mBusyNanos += busy;
+			if (busy > mWorstBusyNanos)
+				mWorstBusyNanos = busy;
+			mBlockCount++;
+		}
+	}
+
+	private void fail(int error) {
+		mRunning = false;
+		if (mListener != null)
+			mListener.onCaptureError(error);
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decodes the audio track of a recording with MediaExtractor and MediaCodec
+ * and hands it to a {@link PcmEncoder} as 16 bit mono PCM, one codec buffer
+ * at a time, so a file of any length needs the same few buffers. Channels
+ * are mixed down.
+ */
+class PcmDecoder {
+	static final String TAG = "PcmDecoder";
+
+	private static final long TIMEOUT_US = 10000;
+
+	private final MediaExtractor mExtractor = new MediaExtractor();
+	private MediaFormat mFormat;
+	private int mSampleRate;
+	private int mChannels;
+	private short[] mBlock = new short[PcmCapture.BLOCK_SAMPLES];
+
+	PcmDecoder(File file) throws IOException {
+		try {
+			mExtractor.setDataSource(file.getAbsolutePath());
+			for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+				MediaFormat format = mExtractor.getTrackFormat(i);
+				String mime = format.getString(MediaFormat.KEY_MIME);
+				if (mime != null && mime.startsWith("audio/")) {
+					mExtractor.selectTrack(i);
+					mFormat = format;
+					break;
+				}
+			}
+			if (mFormat == null)
+				throw new IOException("no audio track in " + file);
+		} catch (IOException e) {
+			mExtractor.release();
+			throw e;
+		}
+		mSampleRate = mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+		mChannels = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+	}
+
+	public int sampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * Decodes the whole track into the target, which is neither opened nor
+	 * closed here.
+	 */
+	public void decodeTo(PcmEncoder target) throws IOException {
+		String mime = mFormat.getString(MediaFormat.KEY_MIME);
+		MediaCodec codec = MediaCodec.createDecoderByType(mime);
+		try {
+			codec.configure(mFormat, null, null, 0);
+			codec.start();
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			boolean inputDone = false;
+			while (true) {
+				if (!inputDone) {
+					int in = codec.dequeueInputBuffer(TIMEOUT_US);
+					if (in >= 0) {
+						ByteBuffer buf = codec.getInputBuffer(in);
+						int size = mExtractor.readSampleData(buf, 0);
+						if (size < 0) {
+							codec.queueInputBuffer(in, 0, 0, 0,
+									MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+							inputDone = true;
+						} else {
+							codec.queueInputBuffer(in, 0, size,
+									mExtractor.getSampleTime(), 0);
+							mExtractor.advance();
+						}
+					}
+				}
+				int out = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+				if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					mChannels = codec.getOutputFormat().getInteger(
+							MediaFormat.KEY_CHANNEL_COUNT);
+				} else if (out >= 0) {
+					ByteBuffer buf = codec.getOutputBuffer(out);
+					buf.position(info.offset);
+					buf.limit(info.offset + info.size);
+					deliver(buf.slice().order(ByteOrder.LITTLE_ENDIAN)
+							.asShortBuffer(), target);
+					codec.releaseOutputBuffer(out, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+						break;
+				}
+			}
+			codec.stop();
+		} catch (IllegalStateException e) {
+			throw new IOException("decoder failed: " + e);
+		} finally {
+			codec.release();
+		}
+	}
+
+	private void deliver(ShortBuffer pcm, PcmEncoder target)
+			throws IOException {
+		int channels = Math.max(1, mChannels);
+		while (pcm.remaining() >= channels) {
+			int n = Math.min(mBlock.length, pcm.remaining() / channels);
+			for (int i = 0; i < n; i++) {
+				int sum = 0;
+				for (int c = 0; c < channels; c++)
+					sum += pcm.get();
+				mBlock[i] = (short) (sum / channels);
+			}
+			target.encode(mBlock, n);
+		}
+	}
+
+	public void release() {
+		mExtractor.release();
+	}
+}
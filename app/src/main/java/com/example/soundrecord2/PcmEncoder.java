@@ -0,0 +1,76 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Encoder stage fed by {@link PcmCapture}. Blocks are 16 bit mono PCM and are
+ * only valid for the duration of the {@link #encode} call, implementations
+ * must copy what they want to keep.
+ */
+interface PcmEncoder {
+	void open(File file, int sampleRate) throws IOException;
+
+	void encode(short[] pcm, int count) throws IOException;
+
+	/**
+	 * Size of the output so far. Only called from the encoding thread.
+	 */
+	long bytesWritten();
+
+	/**
+	 * Samples of audio in the output so far. Left out silence doesn't count,
+	 * silence that is marked in the file does. Only called from the encoding
+	 * thread, or once that is done.
+	 */
+	long samplesWritten();
+
+	void close() throws IOException;
+
+	/**
+	 * Stage that keeps its file within a size limit by dropping the first
+	 * frame that would not fit and everything after it.
+	 */
+	interface SizeLimited {
+		/**
+		 * Largest file to write, 0 for none. Set before open.
+		 */
+		void setMaxBytes(long maxBytes);
+
+		/**
+		 * Reserves disk space ahead of the writes, see {@link Preallocator}.
+		 * Set before open, which then fails with a
+		 * {@link Preallocator.NoSpaceException} if there is no room to start.
+		 */
+		void setPreallocate(boolean preallocate);
+
+		/**
+		 * True once a frame was dropped for the limit. Safe on any thread.
+		 */
+		boolean isFull();
+
+		/**
+		 * True once the disk had no room for the next extent, the file then
+		 * ends where the reserved space does. Safe on any thread.
+		 */
+		boolean isOutOfSpace();
+	}
+
+	/**
+	 * Stage that writes its own file and can be told when to sync it.
+	 */
+	interface Durable {
+		/**
+		 * Set before open, defaults to syncing on close only.
+		 */
+		void setSyncPolicy(WriteBehindOutput.Policy policy);
+
+		/**
+		 * Long-lived thread to write the file behind the encoder on, see
+		 * {@link WriteBehindOutput}. Set before open, defaults to a thread
+		 * of the file's own.
+		 */
+		void setWriter(Executor writer);
+	}
+}
@@ -0,0 +1,142 @@
+package com.example.soundrecord2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity single-producer/single-consumer ring of PCM blocks. All
+ * slots are allocated up front; the producer fills a slot in place with
+ * {@link #claim()}/{@link #publish(int)} and the consumer drains it in place
+ * with {@link #peek()}/{@link #release()}. No locks are taken, the head and
+ * tail counters are the only shared state.
+ */
+class PcmRingBuffer {
+	private final short[][] mSlots;
+	private final int[] mLengths;
+	private final int mMask;
+
+	// next slot the producer will publish, written by the producer only
+	private final AtomicLong mHead = new AtomicLong();
+	// next slot the consumer will read, written by the consumer only
+	private final AtomicLong mTail = new AtomicLong();
+
+	private volatile Thread mConsumer;
+	private volatile long mOverruns;
+	private volatile long mWaits;
+
+	/**
+	 * @param capacity    number of slots, must be a power of two
+	 * @param slotSamples size of each slot in samples
+	 */
+	PcmRingBuffer(int capacity, int slotSamples) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("capacity must be a power of two: "
+					+ capacity);
+		mSlots = new short[capacity][slotSamples];
+		mLengths = new int[capacity];
+		mMask = capacity - 1;
+	}
+
+	public int capacity() {
+		return mSlots.length;
+	}
+
+	public int slotSamples() {
+		return mSlots[0].length;
+	}
+
+	/**
+	 * Producer side. Returns the next free slot, or null if the consumer has
+	 * fallen a whole ring behind, which is counted as an overrun.
+	 */
+	public short[] claim() {
+		long head = mHead.get();
+		if (head - mTail.get() >= mSlots.length) {
+			mOverruns++;
+			return null;
+		}
+		return mSlots[(int) (head & mMask)];
+	}
+
+	/**
+	 * Producer side. Makes the slot returned by the last {@link #claim()}
+	 * visible to the consumer.
+	 */
+	public void publish(int length) {
+		long head = mHead.get();
+		mLengths[(int) (head & mMask)] = length;
+		mHead.lazySet(head + 1);
+		Thread consumer = mConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Consumer side. Returns the oldest published slot without removing it, or
+	 * null if the ring is empty.
+	 */
+	public short[] peek() {
+		long tail = mTail.get();
+		if (tail == mHead.get())
+			return null;
+		return mSlots[(int) (tail & mMask)];
+	}
+
+	/**
+	 * Consumer side. Number of valid samples in the slot returned by
+	 * {@link #peek()}.
+	 */
+	public int peekLength() {
+		return mLengths[(int) (mTail.get() & mMask)];
+	}
+
+	/**
+	 * Consumer side. Hands the slot returned by {@link #peek()} back to the
+	 * producer.
+	 */
+	public void release() {
+		mTail.lazySet(mTail.get() + 1);
+	}
+
+	/**
+	 * Consumer side. Parks the calling thread until the producer publishes or
+	 * the timeout expires, if the ring is empty. Such a wait is counted, it
+	 * only means the consumer has caught up.
+	 */
+	public void await(long timeoutNanos) {
+		mConsumer = Thread.currentThread();
+		if (peek() == null) {
+			mWaits++;
+			LockSupport.parkNanos(this, timeoutNanos);
+		}
+	}
+
+	/**
+	 * Wakes a consumer blocked in {@link #await(long)}, e.g. to let it notice
+	 * that the producer is gone.
+	 */
+	public void wakeConsumer() {
+		Thread consumer = mConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+	}
+
+	public boolean isEmpty() {
+		return mTail.get() == mHead.get();
+	}
+
+	public int size() {
+		return (int) (mHead.get() - mTail.get());
+	}
+
+	public long overruns() {
+		return mOverruns;
+	}
+
+	/**
+	 * Times the consumer parked on an empty ring.
+	 */
+	public long waits() {
+		return mWaits;
+	}
+}
@@ -0,0 +1,85 @@
+package com.example.soundrecord2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Circular buffer holding the most recent N seconds of PCM in direct memory.
+ * Writing never allocates and overwrites the oldest samples once full. Only
+ * one thread may write; reading is only safe while the writer is known to be
+ * quiet.
+ */
+class PreRollBuffer {
+	private final ShortBuffer mSamples;
+	private final int mCapacity;
+	private final int mSampleRate;
+	private int mWritePos;
+	private boolean mFull;
+
+	PreRollBuffer(int seconds, int sampleRate) {
+		mCapacity = seconds * sampleRate;
+		mSampleRate = sampleRate;
+		mSamples = ByteBuffer.allocateDirect(mCapacity * 2)
+				.order(ByteOrder.nativeOrder()).asShortBuffer();
+	}
+
+	public int seconds() {
+		return mCapacity / mSampleRate;
+	}
+
+	public void write(short[] pcm, int count) {
+		int offset = 0;
+		if (count > mCapacity) {
+			// only the newest samples can fit
+			offset = count - mCapacity;
+			count = mCapacity;
+		}
+		while (count > 0) {
+			int n = Math.min(count, mCapacity - mWritePos);
+			mSamples.position(mWritePos);
+			mSamples.put(pcm, offset, n);
+			offset += n;
+			count -= n;
+			mWritePos += n;
+			if (mWritePos == mCapacity) {
+				mWritePos = 0;
+				mFull = true;
+			}
+		}
+	}
+
+	/**
+	 * Number of samples of history currently held.
+	 */
+	public int sampleCount() {
+		return mFull ? mCapacity : mWritePos;
+	}
+
+	public void clear() {
+		mWritePos = 0;
+		mFull = false;
+	}
+
+	/**
+	 * Feeds the history, oldest sample first, to the encoder using scratch as
+	 * the transfer block, then empties the buffer.
+	 */
+	public void drainTo(PcmEncoder encoder, short[] scratch) throws IOException {
+		int pos = mFull ? mWritePos : 0;
+		int remaining = sampleCount();
+		while (remaining > 0) {
+			int n = Math.min(remaining,
+					Math.min(scratch.length, mCapacity - pos));
+			mSamples.position(pos);
+			mSamples.get(scratch, 0, n);
+			encoder.encode(scratch, n);
+			remaining -= n;
+			pos += n;
+			if (pos == mCapacity)
+				pos = 0;
+		}
+		clear();
+	}
+}
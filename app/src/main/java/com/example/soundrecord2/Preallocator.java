@@ -0,0 +1,137 @@
+package com.example.soundrecord2;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+/**
+ * Reserves disk space for a file while it is written, an extent at a time
+ * ahead of the write position, so the file is laid out in a few large runs
+ * and a full disk shows up as a failed reservation before any audio is lost
+ * rather than as a failed write. The writer cuts the unused tail on close.
+ * <p>
+ * File systems without fallocate, like the FAT of most SD cards, get the
+ * last byte of each extent written instead, which makes them allocate
+ * everything before it.
+ */
+class Preallocator {
+	static final String TAG = "Preallocator";
+
+	// a minute of WAV, about ten of AMR
+	static final long EXTENT_BYTES = 1 << 20;
+	// a recording doesn't start without room for this much, a few seconds
+	// of WAV
+	static final long MIN_START_BYTES = 64 * 1024;
+
+	/**
+	 * Not even MIN_START_BYTES fit, the recording should not start.
+	 */
+	static class NoSpaceException extends IOException {
+		NoSpaceException(String message) {
+			super(message);
+		}
+	}
+
+	private final FileDescriptor mFd;
+	private final FileChannel mChannel;
+	private final long mMaxBytes;
+	private final ByteBuffer mLastByte = ByteBuffer.allocate(1);
+	private long mReserved;
+	private boolean mExhausted;
+
+	/**
+	 * @param maxBytes the file never grows past this, 0 for no limit
+	 */
+	Preallocator(FileDescriptor fd, FileChannel channel, long maxBytes) {
+		mFd = fd;
+		mChannel = channel;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Reserves the first extent after the given end of the data written so
+	 * far, or at least MIN_START_BYTES of it.
+	 */
+	void start(long position) throws IOException {
+		mReserved = position;
+		mExhausted = false;
+		long least = position + MIN_START_BYTES;
+		if (mMaxBytes > 0)
+			least = Math.min(least, mMaxBytes);
+		if (!reserve(extentEnd(position + 1)) && !reserve(least))
+			throw new NoSpaceException("can't reserve "
+					+ (least - position) + " bytes");
+	}
+
+	/**
+	 * Makes sure the file can grow to end without running out of space.
+	 * False once that is no longer possible, the writer should then stop at
+	 * {@link #reserved()}.
+	 */
+	boolean ensure(long end) throws IOException {
+		if (end <= mReserved)
+			return true;
+		if (mExhausted)
+			return false;
+		// a whole extent if possible, otherwise just what is needed now
+		if (reserve(extentEnd(end)) || reserve(end))
+			return true;
+		mExhausted = true;
+		Log.w(TAG, "out of space at " + mReserved);
+		return false;
+	}
+
+	/**
+	 * True once a reservation failed for lack of space.
+	 */
+	boolean isExhausted() {
+		return mExhausted;
+	}
+
+	long reserved() {
+		return mReserved;
+	}
+
+	private long extentEnd(long end) {
+		end = Math.max(end, mReserved + EXTENT_BYTES);
+		return mMaxBytes > 0 ? Math.min(end, mMaxBytes) : end;
+	}
+
+	private boolean reserve(long end) throws IOException {
+		if (end <= mReserved)
+			return true;
+		try {
+			Os.posix_fallocate(mFd, mReserved, end - mReserved);
+		} catch (ErrnoException e) {
+			if (e.errno == OsConstants.ENOSPC || e.errno == OsConstants.EFBIG)
+				return false;
+			if (!reserveByWrite(end))
+				return false;
+		}
+		mReserved = end;
+		return true;
+	}
+
+	/*
+	 * The fallback where fallocate is unsupported.
+	 */
+	private boolean reserveByWrite(long end) {
+		mLastByte.clear();
+		try {
+			while (mLastByte.hasRemaining()) {
+				if (mChannel.write(mLastByte, end - 1) < 0)
+					return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "can't extend to " + end + ": " + e);
+			return false;
+		}
+	}
+}
@@ -2,6 +2,16 @@ package com.example.soundrecord2;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.media.AudioManager;
@@ -12,26 +22,42 @@ import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class Recorder implements OnCompletionListener, OnErrorListener {
+public class Recorder implements OnCompletionListener, OnErrorListener,
+		PcmCapture.OnCaptureErrorListener {
 	static final String TAG = "Recorder";
 	static final String SAMPLE_PREFIX = "recording";
+	static final String SEGMENT_PREFIX = ".segment";
 	static final String SAMPLE_PATH_KEY = "sample_path";
-	static final String SAMPLE_LENGTH_KEY = "sample_length";
+	static final String SAMPLE_MILLIS_KEY = "sample_millis";
 
 	public static final int IDLE_STATE = 0;
 	public static final int RECORDING_STATE = 1;
 	public static final int PLAYING_STATE = 2;
 	public static final int SUSPENDED_STATE = 3;
 
-	int mState = IDLE_STATE;
+	// written by the audio worker, read from anywhere
+	private final AtomicInteger mState = new AtomicInteger(IDLE_STATE);
 
 	public static final int NO_ERROR = 0;
 	public static final int SDCARD_ACCESS_ERROR = 1;
 	public static final int INTERNAL_ERROR = 2;
 	public static final int IN_CALL_RECORD_ERROR = 3;
+	public static final int STORAGE_FULL_ERROR = 4;
+
+	public static final int ENGINE_MEDIA_RECORDER = 0;
+	public static final int ENGINE_AUDIO_RECORD = 1;
+
+	// uncompressed PCM, AudioRecord only, outside MediaRecorder's range
+	public static final int OUTPUT_FORMAT_WAV = 100;
+	// lossless, AudioRecord only
+	public static final int OUTPUT_FORMAT_FLAC = 101;
 
 	private static final String DEFAULT_STORE_SUBDIR = "/recordings";
 
@@ -45,19 +71,211 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
 	OnStateChangedListener mOnStateChangedListener = null;
 
-	long mSampleStart = 0; // time at which latest record or play operation
-							// started
-	int mSampleLength = 0; // length of current sample
-	long mSuspended = 0;
-	File mSampleFile = null;
-
-	MediaRecorder mRecorder = null;
+	// length of the current sample; while MediaRecorder records, the length
+	// before its current segment
+	volatile long mSampleMillis = 0;
+	// elapsedRealtime() when the current MediaRecorder segment started
+	private volatile long mSegmentStart = 0;
+	// the recording's clock is the capture's sample count
+	private volatile boolean mPcmClock;
+	// MediaRecorder's peak, polled on the worker
+	private final LevelMeter mRecorderMeter = new LevelMeter();
+	private static final long METER_POLL_INTERVAL = 50;
+	volatile File mSampleFile = null;
+	// MediaRecorder can't pause, so every resume records into a new segment
+	// which is joined onto mSampleFile (always the first segment) on stop
+	List<File> mSegments = new ArrayList<File>();
+	// the segment MediaRecorder writes to and the length of those before it
+	private volatile File mSegmentFile;
+	private volatile long mEarlierSegmentBytes;
+	private int mOutputFormat;
+	private String mExtension;
+
+	volatile MediaRecorder mRecorder = null;
+	volatile PcmCapture mCapture = null;
 	MediaPlayer mPlayer = null;
 
+	// AMR recordings go through AudioRecord unless this is switched back to
+	// MediaRecorder, which also remains the fallback if AudioRecord or the
+	// encoder can't be set up
+	private int mEngine = ENGINE_AUDIO_RECORD;
+	// seconds of audio kept while idle and prepended to the next recording,
+	// 0 when the capture engine should not be armed
+	private volatile int mPreRollSeconds = 0;
+	// leave silence out of AudioRecord recordings, see VoiceActivityDetector
+	private boolean mSkipSilence = false;
+	// split AudioRecord recordings into several files, 0 for no limit
+	private long mRolloverBytes = 0;
+	private long mRolloverMillis = 0;
+	private volatile RolloverEncoder mRollover;
+	// length of the audio in mSampleFile as the encoder wrote it, -1 when
+	// that is mSampleMillis
+	private long mSampleFileMillis = -1;
+	// size limit of the next recordings, 0 for none
+	private long mMaxBytes = 0;
+	// the stage that enforces mMaxBytes and reserves space for the current
+	// AudioRecord recording, unless it rolls over
+	private volatile PcmEncoder.SizeLimited mSizeLimited;
+	// leaves silence out of the current recording, null if it doesn't or
+	// rolls over
+	private volatile VoiceActivityDetector mDetector;
+	// wall clock time of the tap that started the current recording
+	private long mStartMillis;
+	// MediaRecorder stopped itself at mMaxBytes
+	private volatile boolean mRecorderFull;
+	// when AudioRecord recordings are synced to the device
+	private WriteBehindOutput.Policy mSyncPolicy = WriteBehindOutput.Policy
+			.onClose();
+	// closes and registers finished parts off the encoder and UI threads
+	private final ExecutorService mFinalizer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "RecordingFinalizer");
+				}
+			});
+	// how long release() lets the finalizer finish before the threads quit
+	private static final long FINALIZE_TIMEOUT_SECONDS = 30;
+
+	// recordings are written to internal flash and moved to the selected
+	// directory once finished
+	private final StorageMigrator mMigrator;
+	private final StorageMigrator.OnMovedListener mOnMoved = new StorageMigrator.OnMovedListener() {
+		public void onMoved(final File from, final File to) {
+			mWorker.post(new Runnable() {
+				public void run() {
+					if (from.equals(mSampleFile))
+						mSampleFile = to;
+				}
+			});
+		}
+
+		public void onMoveFailed(File staged, File targetDir, IOException e) {
+		}
+	};
+	// where the current recording goes
+	private File mTargetDir;
+
+	// created ahead of the next recording by prewarm()
+	private File mWarmFile;
+	private int mWarmFormat;
+
+	// start, stop, pause, resume and rollover preparation run here one at a
+	// time, in the order they were issued; everything the recording engines
+	// own is only touched on this thread
+	private final HandlerThread mWorkerThread;
+	private final Handler mWorker;
+	private final Executor mWorkerExecutor = new Executor() {
+		public void execute(Runnable command) {
+			mWorker.post(command);
+		}
+	};
+	// the capture loop, the encoder loop and the writes behind the encoder
+	// run on these for the life of the recorder, so starting a recording
+	// creates no threads; they are handed their work by the worker
+	private final HandlerThread mCaptureThread;
+	private final HandlerThread mEncoderThread;
+	private final HandlerThread mWriterThread;
+	private final Executor mCaptureExecutor;
+	private final Executor mEncoderExecutor;
+	private final Executor mWriterExecutor;
+
 	private SoundRecorder mSoundRecorderActivity;
+	// tracks the files being written until they are saved or deleted
+	private final RecordingJournal mJournal;
 
 	public Recorder(SoundRecorder activity) {
 		mSoundRecorderActivity = activity;
+		mJournal = new RecordingJournal(RecordingRecovery.journalDir(activity));
+		mWorkerThread = new HandlerThread("AudioWorker",
+				Process.THREAD_PRIORITY_AUDIO);
+		mWorkerThread.start();
+		mWorker = new Handler(mWorkerThread.getLooper());
+		mCaptureThread = new HandlerThread("PcmCapture",
+				Process.THREAD_PRIORITY_URGENT_AUDIO);
+		mCaptureExecutor = queueOf(mCaptureThread);
+		mEncoderThread = new HandlerThread("PcmEncoder",
+				Process.THREAD_PRIORITY_AUDIO);
+		mEncoderExecutor = queueOf(mEncoderThread);
+		mWriterThread = new HandlerThread(WriteBehindOutput.TAG);
+		mWriterExecutor = queueOf(mWriterThread);
+		mMigrator = StorageMigrator.get(activity);
+		mMigrator.addListener(mOnMoved);
+	}
+
+	/**
+	 * Stops whatever is going on and lets the worker threads end once their
+	 * queued work is done.
+	 */
+	public void release() {
+		stop();
+		disarm();
+		mMigrator.removeListener(mOnMoved);
+		mFinalizer.shutdown();
+		mWorker.post(new Runnable() {
+			public void run() {
+				// parts the finalizer still closes write through the writer
+				try {
+					mFinalizer.awaitTermination(FINALIZE_TIMEOUT_SECONDS,
+							TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				mCaptureThread.quitSafely();
+				mEncoderThread.quitSafely();
+				mWriterThread.quitSafely();
+			}
+		});
+		mWorkerThread.quitSafely();
+	}
+
+	/*
+	 * Starts the thread and runs commands on it in the order given.
+	 */
+	private static Executor queueOf(final HandlerThread thread) {
+		thread.start();
+		final Handler handler = new Handler(thread.getLooper());
+		return new Executor() {
+			public void execute(Runnable command) {
+				if (!handler.post(command))
+					throw new RejectedExecutionException(thread.getName()
+							+ " has quit");
+			}
+		};
+	}
+
+	/*
+	 * Runs a command on the audio worker after everything queued before it
+	 * and waits for it, so the caller sees its effects as if it had run the
+	 * command itself.
+	 */
+	private void runOnWorker(final Runnable command) {
+		if (Looper.myLooper() == mWorkerThread.getLooper()) {
+			command.run();
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean queued = mWorker.post(new Runnable() {
+			public void run() {
+				try {
+					command.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		if (!queued)
+			return; // released
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	public void saveState(Bundle recorderState) {
@@ -65,26 +283,294 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 			recorderState.putString(SAMPLE_PATH_KEY,
 					mSampleFile.getAbsolutePath());
 		}
-		recorderState.putInt(SAMPLE_LENGTH_KEY, mSampleLength);
+		recorderState.putLong(SAMPLE_MILLIS_KEY, mSampleMillis);
 	}
 
-	public int getMaxAmplitude() {
-		if (mState != RECORDING_STATE || mRecorder == null)
+	/**
+	 * Latest level snapshot of the recording, see LevelMeter. Only reads a
+	 * field, so it is fine to call on every frame.
+	 */
+	public long levels() {
+		if (mState.get() != RECORDING_STATE)
 			return 0;
-		return mRecorder.getMaxAmplitude();
+		PcmCapture capture = mCapture;
+		if (mPcmClock && capture != null)
+			return capture.meter().snapshot();
+		return mRecorderMeter.snapshot();
+	}
+
+	public void setEngine(int engine) {
+		mEngine = engine;
+	}
+
+	public int engine() {
+		return mEngine;
+	}
+
+	/**
+	 * Enables or disables the always armed mode: while idle the last seconds
+	 * of audio are kept in memory and written ahead of the next recording.
+	 */
+	public void setPreRollSeconds(final int seconds) {
+		mWorker.post(new Runnable() {
+			public void run() {
+				if (seconds == mPreRollSeconds)
+					return;
+				releaseIdleCapture();
+				mPreRollSeconds = seconds;
+				armNow();
+			}
+		});
+	}
+
+	/**
+	 * Makes AudioRecord recordings continue in a new file whenever a file
+	 * reaches either limit. Finished files are saved right away, the last one
+	 * is the sample as usual.
+	 *
+	 * @param maxBytes  file size limit, 0 for none
+	 * @param maxMillis duration limit, 0 for none
+	 */
+	public void setRollover(long maxBytes, long maxMillis) {
+		mRolloverBytes = maxBytes;
+		mRolloverMillis = maxMillis;
+	}
+
+	/**
+	 * Caps the size of the next recordings, 0 for none. AudioRecord
+	 * recordings end on the last whole frame that fits, which is why AMR
+	 * goes through AudioRecord and rollover is off while a limit is set.
+	 * 3GPP is left to MediaRecorder's own limit.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * True once the recording reached the size limit, or the end of the
+	 * space it could reserve, and only needs stopping. Only reads fields.
+	 */
+	public boolean sizeLimitReached() {
+		PcmEncoder.SizeLimited limited = mSizeLimited;
+		return mRecorderFull || (limited != null && limited.isFull());
+	}
+
+	/**
+	 * True once the disk had no room for the next reservation. Only reads
+	 * fields.
+	 */
+	public boolean storageFull() {
+		PcmEncoder.SizeLimited limited = mSizeLimited;
+		return limited != null && limited.isOutOfSpace();
+	}
+
+	/**
+	 * True if the recording reserves its space ahead, so the disk can't run
+	 * out under it unnoticed.
+	 */
+	public boolean reservesSpace() {
+		return mSizeLimited != null;
+	}
+
+	/**
+	 * When the next AudioRecord recordings are synced to the device, which
+	 * bounds what a power loss can take. MediaRecorder owns its file and
+	 * syncs as it sees fit.
+	 */
+	public void setSyncPolicy(WriteBehindOutput.Policy policy) {
+		mSyncPolicy = policy;
+	}
+
+	public void setSkipSilence(boolean skip) {
+		mSkipSilence = skip;
+	}
+
+	public boolean skipSilence() {
+		return mSkipSilence;
+	}
+
+	/**
+	 * Size of the file being written as its encoder counts it. While
+	 * MediaRecorder records it is the length of the segments so far, which
+	 * are joined into one file on stop, and -1 when there is no recording.
+	 */
+	public long bytesWritten() {
+		PcmCapture capture = mCapture;
+		if (mPcmClock && capture != null)
+			return capture.encodedBytes();
+		File segment = mSegmentFile;
+		if (segment != null)
+			return mEarlierSegmentBytes + segment.length();
+		return -1;
+	}
+
+	/**
+	 * Share of the recording so far that was speech, or -1 if silence isn't
+	 * left out of it. Only reads a field.
+	 */
+	public float speechFraction() {
+		VoiceActivityDetector detector = mDetector;
+		return detector != null ? detector.speechFraction() : -1;
+	}
+
+	public int preRollSeconds() {
+		return mPreRollSeconds;
+	}
+
+	/**
+	 * Starts filling the pre-roll buffer if the armed mode is enabled and
+	 * nothing is recording.
+	 */
+	public void arm() {
+		mWorker.post(new Runnable() {
+			public void run() {
+				armNow();
+			}
+		});
+	}
+
+	private void armNow() {
+		if (mPreRollSeconds <= 0 || mEngine != ENGINE_AUDIO_RECORD
+				|| mState.get() != IDLE_STATE || mCapture != null)
+			return;
+		startIdleCapture();
+	}
+
+	/**
+	 * Gets the next recording ready while idle: the microphone runs with its
+	 * output gated off and the file exists, so a start in this format only
+	 * opens the gate and the rest of the setup happens while the capture ring
+	 * holds on to the audio. Only the AudioRecord formats can be prewarmed.
+	 */
+	public void prewarm(final int format, final String extension) {
+		mWorker.post(new Runnable() {
+			public void run() {
+				prewarmNow(format, extension);
+			}
+		});
+	}
+
+	private void prewarmNow(int format, String extension) {
+		if (mState.get() != IDLE_STATE || !usesCapture(format))
+			return;
+		if (mCapture != null && !mCapture.isRunning()) {
+			mCapture.stop();
+			mCapture = null;
+		}
+		if (mCapture == null)
+			startIdleCapture();
+
+		File dir = mMigrator.stagingDir();
+		if (mWarmFile != null && mWarmFormat == format
+				&& dir.equals(mWarmFile.getParentFile()))
+			return;
+		discardWarmFile();
+		if (!dir.isDirectory() && !dir.mkdir())
+			return;
+		try {
+			mWarmFile = File.createTempFile(SAMPLE_PREFIX, extension, dir);
+		} catch (IOException e) {
+			Log.w(TAG, "can't prewarm " + e);
+			return;
+		}
+		mWarmFormat = format;
+		mJournal.begin(mWarmFile, mimeType(format));
+	}
+
+	/*
+	 * Starts the microphone without an encoder, keeping the pre-roll if armed.
+	 */
+	private void startIdleCapture() {
+		PreRollBuffer preRoll = null;
+		if (mPreRollSeconds > 0)
+			preRoll = new PreRollBuffer(mPreRollSeconds, PcmCapture.SAMPLE_RATE);
+		PcmCapture capture = new PcmCapture(preRoll, this, mCaptureExecutor,
+				mEncoderExecutor);
+		if (!capture.open())
+			return;
+		try {
+			capture.start();
+		} catch (RuntimeException e) {
+			Log.w(TAG, "can't start idle capture " + e);
+			capture.stop();
+			return;
+		}
+		mCapture = capture;
+	}
+
+	/**
+	 * Releases the microphone held for the pre-roll buffer or a prewarmed
+	 * start, and the prewarmed file. A recording in progress is not affected.
+	 */
+	public void disarm() {
+		mWorker.post(new Runnable() {
+			public void run() {
+				releaseIdleCapture();
+			}
+		});
+	}
+
+	private void releaseIdleCapture() {
+		discardWarmFile();
+		if (mCapture == null || mCapture.isEncoding())
+			return;
+		mCapture.stop();
+		mCapture = null;
+	}
+
+	/*
+	 * Hands out the prewarmed file if it suits the recording.
+	 */
+	private File takeWarmFile(int format, File dir) {
+		File file = mWarmFile;
+		if (file != null && mWarmFormat == format
+				&& dir.equals(file.getParentFile()) && file.exists()) {
+			mWarmFile = null;
+			return file;
+		}
+		discardWarmFile();
+		return null;
+	}
+
+	private void discardWarmFile() {
+		if (mWarmFile == null)
+			return;
+		mWarmFile.delete();
+		mJournal.end(mWarmFile);
+		mWarmFile = null;
+	}
+
+	/*
+	 * Formats recorded through PcmCapture rather than MediaRecorder.
+	 */
+	private boolean usesCapture(int format) {
+		return format == OUTPUT_FORMAT_WAV || format == OUTPUT_FORMAT_FLAC
+				|| ((mEngine == ENGINE_AUDIO_RECORD || mMaxBytes > 0)
+						&& format == MediaRecorder.OutputFormat.AMR_NB);
+	}
+
+	/*
+	 * True while the AudioRecord engine is recording, as opposed to idle and
+	 * armed.
+	 */
+	private boolean capturing() {
+		return mCapture != null && mCapture.isEncoding();
 	}
 
 	public void restoreState(Bundle recorderState) {
 		String samplePath = recorderState.getString(SAMPLE_PATH_KEY);
 		if (samplePath == null)
 			return;
-		int sampleLength = recorderState.getInt(SAMPLE_LENGTH_KEY, -1);
-		if (sampleLength == -1)
+		long sampleMillis = recorderState.getLong(SAMPLE_MILLIS_KEY, -1);
+		if (sampleMillis == -1)
 			return;
 
 		File file = new File(samplePath);
 		if (!file.exists())
 			return;
+		// left behind by a process that died, RecordingRecovery takes it
+		if (mJournal.isOrphan(file))
+			return;
 		if (mSampleFile != null
 				&& mSampleFile.getAbsolutePath().compareTo(
 						file.getAbsolutePath()) == 0)
@@ -92,7 +578,8 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
 		delete();
 		mSampleFile = file;
-		mSampleLength = sampleLength;
+		mSampleMillis = sampleMillis;
+		mSampleFileMillis = -1;
 
 		signalStateChanged(IDLE_STATE);
 	}
@@ -102,43 +589,87 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 	}
 
 	public int state() {
-		return mState;
+		return mState.get();
 	}
 
 	public int progress() {
-		if (mState == RECORDING_STATE) {
-			return (int) ((System.currentTimeMillis() - mSampleStart + mSuspended) / 1000);
-		} else if (mState == SUSPENDED_STATE) {
-			return (int) ((mSuspended) / 1000);
-		} else if (mState == PLAYING_STATE) {
-			return (int) ((System.currentTimeMillis() - mSampleStart) / 1000);
+		return (int) (progressMillis() / 1000);
+	}
+
+	/**
+	 * Position of the recording or playback in progress. A recording through
+	 * AudioRecord counts the samples captured, MediaRecorder is timed with
+	 * the monotonic clock until its file can be measured on stop.
+	 */
+	public long progressMillis() {
+		int state = mState.get();
+		if (state == RECORDING_STATE || state == SUSPENDED_STATE) {
+			if (mPcmClock) {
+				PcmCapture capture = mCapture;
+				return capture != null ? capture.recordedMillis()
+						: mSampleMillis;
+			}
+			if (state == RECORDING_STATE)
+				return mSampleMillis + SystemClock.elapsedRealtime()
+						- mSegmentStart;
+			return mSampleMillis;
+		} else if (state == PLAYING_STATE) {
+			MediaPlayer player = mPlayer;
+			return player != null ? player.getCurrentPosition() : 0;
 		}
 		return 0;
 	}
 
 	public int sampleLength() {
-		return mSampleLength;
+		return (int) (mSampleMillis / 1000);
+	}
+
+	public long sampleMillis() {
+		return mSampleMillis;
 	}
 
 	public File sampleFile() {
 		return mSampleFile;
 	}
 
+	/**
+	 * Length of the audio in sampleFile(), which is less than sampleMillis()
+	 * after a rollover, or when silence was left out.
+	 */
+	public long sampleFileMillis() {
+		return mSampleFileMillis >= 0 ? mSampleFileMillis : mSampleMillis;
+	}
+
 	/**
 	 * Resets the recorder state. If a sample was recorded, the file is deleted.
 	 */
 	public void delete() {
 		stop();
 
-		if (mSampleFile != null)
+		if (mSampleFile != null) {
 			mSampleFile.delete();
+			deleteSidecars(mSampleFile);
+			mJournal.end(mSampleFile);
+		}
 
 		mSampleFile = null;
-		mSampleLength = 0;
+		mSampleMillis = 0;
+		mSampleFileMillis = -1;
 
 		signalStateChanged(IDLE_STATE);
 	}
 
+	/**
+	 * Called once the sample is in the media database, it no longer needs
+	 * recovering.
+	 */
+	public void sampleSaved() {
+		if (mSampleFile != null) {
+			mJournal.end(mSampleFile);
+			mMigrator.migrate();
+		}
+	}
+
 	/**
 	 * Resets the recorder state. If a sample was recorded, the file is left on
 	 * disk and will be reused for a new recording.
@@ -146,24 +677,24 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 	public void clear() {
 		stop();
 
-		mSampleLength = 0;
+		mSampleMillis = 0;
+		mSampleFileMillis = -1;
 
 		signalStateChanged(IDLE_STATE);
 	}
 
-	private static final int SET_STATE = 0;
+	private static final int STATE_CHANGED = 0;
 	private static final int SET_ERROR = 1;
-	private static final int SET_IDLE = 2;
 
+	private static final long CHECKPOINT_INTERVAL = 1000;
+
+	// delivers state changes and errors from the worker on the UI thread
 	Handler recordHandler = new Handler() {
 		public void handleMessage(Message msg) {
 			int what = msg.what;
 			switch (what) {
-			case SET_STATE:
-				setState(RECORDING_STATE);
-				break;
-			case SET_IDLE:
-				setState(IDLE_STATE);
+			case STATE_CHANGED:
+				signalStateChanged(msg.arg1);
 				break;
 			case SET_ERROR:
 				int error = msg.arg1;
@@ -181,126 +712,479 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 	public void startRecording(final int outputfileformat,
 			final String extension, final Context context,
 			final String selectedPath) {
-		stop();
+		final long tapNanos = SystemClock.elapsedRealtimeNanos();
+		stopPlayback();
+		mWorker.post(new Runnable() {
+			public void run() {
+				startRecording(outputfileformat, extension, context,
+						selectedPath, tapNanos);
+			}
+		});
+	}
 
-		File sampleDir = null;
-		if (!selectedPath.equals("")) {
-			sampleDir = new File(selectedPath);
-		} else {
-			sampleDir = new File(SoundRecorder.getInternalStorageDirectory()
-					.getPath() + DEFAULT_STORE_SUBDIR);
-			// sampleDir = new
-			// File("/data/data/com.android.soundrecorder"+
-			// DEFAULT_STORE_SUBDIR);
-		}
+	/*
+	 * The start command, on the worker.
+	 */
+	private void startRecording(int outputfileformat, String extension,
+			Context context, String selectedPath, long tapNanos) {
+		// from here on a running capture keeps the audio, whatever the rest
+		// of the setup costs
+		boolean warm = mState.get() == IDLE_STATE
+				&& usesCapture(outputfileformat) && mCapture != null
+				&& mCapture.isRunning() && !capturing();
+		if (warm)
+			mCapture.openGate(tapNanos);
+		mStartMillis = System.currentTimeMillis()
+				- (SystemClock.elapsedRealtimeNanos() - tapNanos) / 1000000;
+		stopRecording();
+
+		// the selected directory may be on a card that is slow or missing
+		// right now, the migrator deals with it once the recording is done
+		File sampleDir = mMigrator.stagingDir();
 		if (!sampleDir.isDirectory() && !sampleDir.mkdir()) {
 			Log.e("SoundRecorder",
 					"Recording File aborted - can't create base directory "
 							+ sampleDir.getPath());
+			if (warm)
+				mCapture.stopEncoding();
 			recordHandler.obtainMessage(SET_ERROR, SDCARD_ACCESS_ERROR, 0)
 					.sendToTarget();
 			return;
 		}
 
+		mSampleFile = takeWarmFile(outputfileformat, sampleDir);
+		if (mSampleFile == null) {
+			try {
+				mSampleFile = File.createTempFile(SAMPLE_PREFIX, extension,
+						sampleDir);
+			} catch (Exception e) {
+				Log.d(TAG, "mSampleFile Exception" + e);
+				if (warm)
+					mCapture.stopEncoding();
+				recordHandler.obtainMessage(SET_ERROR, SDCARD_ACCESS_ERROR, 0)
+						.sendToTarget();
+				return;
+			}
+			mJournal.begin(mSampleFile, mimeType(outputfileformat));
+		}
+		mTargetDir = sampleDir(selectedPath);
+		// it has to fit on the target as well, after what still waits to go
+		// there
+		if (StorageMigrator.usableSpace(mTargetDir)
+				- mMigrator.pendingBytes() < Preallocator.MIN_START_BYTES) {
+			Log.w(TAG, "not starting, no room in " + mTargetDir);
+			refuseStart(STORAGE_FULL_ERROR);
+			return;
+		}
+		mMigrator.assign(mSampleFile, mTargetDir);
+		mOutputFormat = outputfileformat;
+		mExtension = extension;
+		mSampleFileMillis = -1;
+		mSegmentFile = null;
+		mSegments.clear();
+		mSegments.add(mSampleFile);
+		mSizeLimited = null;
+		mDetector = null;
+		mRecorderFull = false;
+
+		PcmEncoder encoder = null;
+		if (usesCapture(outputfileformat)) {
+			try {
+				encoder = prepareCapture(outputfileformat);
+			} catch (Preallocator.NoSpaceException e) {
+				Log.w(TAG, "not starting, " + e);
+				refuseStart(STORAGE_FULL_ERROR);
+				return;
+			}
+		}
+		if (encoder == null && (outputfileformat == OUTPUT_FORMAT_WAV
+				|| outputfileformat == OUTPUT_FORMAT_FLAC)) {
+			// no MediaRecorder fallback for PCM and FLAC
+			refuseStart(INTERNAL_ERROR);
+			return;
+		}
+		boolean pcm = encoder != null;
+
+		if (!pcm) {
+			// leave the microphone to MediaRecorder
+			if (mCapture != null) {
+				mCapture.stop();
+				mCapture = null;
+			}
+			// Handle IOException
+			try {
+				mRecorder = createMediaRecorder(mSampleFile);
+			} catch (Preallocator.NoSpaceException exception) {
+				Log.w(TAG, "not starting, " + exception);
+				refuseStart(STORAGE_FULL_ERROR);
+				return;
+			} catch (IOException exception) {
+				recordHandler.obtainMessage(SET_ERROR, INTERNAL_ERROR,
+						0).sendToTarget();
+				releaseRecorder();
+				return;
+			}
+		}
+		// Handle RuntimeException if the recording couldn't start
 		try {
-			mSampleFile = File.createTempFile(SAMPLE_PREFIX, extension,
-					sampleDir);
-		} catch (Exception e) {
-			Log.d(TAG, "mSampleFile Exception" + e);
-			recordHandler.obtainMessage(SET_ERROR, SDCARD_ACCESS_ERROR, 0)
-					.sendToTarget();
+			// delete by liuyd for bug4242, deadlock happened between
+			// multi thread, delete this incorrect lock
+			// synchronized (mSoundRecorderActivity.mEmptyLock) {
+
+			// fix bug 6022 start
+			// obtain audio focus at the begin of recording
+			AudioManager audioManager = (AudioManager) mSoundRecorderActivity
+					.getSystemService(Context.AUDIO_SERVICE);
+			audioManager.requestAudioFocus(mAudioFocusListener,
+					AudioManager.STREAM_MUSIC,
+					AudioManager.AUDIOFOCUS_GAIN);
+			// fix bug 6022 end
+
+			if (!mSoundRecorderActivity.getActivityState()) {
+				if (pcm) {
+					if (!mCapture.isStarted())
+						mCapture.start();
+					mCapture.startEncoding(encoder, tapNanos);
+				} else {
+					mRecorder.start();
+					// MediaRecorder doesn't tell when the first
+					// sample comes in, start() returning is close
+					Log.i(TAG, "tap to start "
+							+ (SystemClock.elapsedRealtimeNanos() - tapNanos)
+							/ 1000000 + "ms, MediaRecorder");
+				}
+			} else {
+				releaseRecorder();
+				closeUnattached(encoder);
+				setState(IDLE_STATE);
+				return;
+			}
+			// }
+		} catch (RuntimeException exception) {
+			AudioManager audioMngr = (AudioManager) context
+					.getSystemService(Context.AUDIO_SERVICE);
+			boolean isInCall = ((audioMngr.getMode() == AudioManager.MODE_IN_CALL));
+			if (isInCall) {
+				recordHandler.obtainMessage(SET_ERROR,
+						IN_CALL_RECORD_ERROR, 0).sendToTarget();
+			} else {
+				recordHandler.obtainMessage(SET_ERROR, INTERNAL_ERROR,
+						0).sendToTarget();
+			}
+			setState(IDLE_STATE);
+			releaseRecorder();
+			closeUnattached(encoder);
 			return;
 		}
+		// the pre-roll history and the audio held back by the gate are in
+		// the capture's count already
+		mSampleMillis = 0;
+		mSegmentStart = SystemClock.elapsedRealtime();
+		mPcmClock = pcm;
+		setState(RECORDING_STATE);
+	}
 
-		new Thread() {
-			public void run() {
-				// }add by yangqingan 2011-11-27 for NEWMS00145725
+	static File sampleDir(String selectedPath) {
+		if (!selectedPath.equals(""))
+			return new File(selectedPath);
+		return new File(SoundRecorder.getInternalStorageDirectory().getPath()
+				+ DEFAULT_STORE_SUBDIR);
+	}
 
-				mRecorder = new MediaRecorder();
-				mRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-				mRecorder.setOutputFormat(outputfileformat);
-				mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-				mRecorder.setOutputFile(mSampleFile.getAbsolutePath());
+	/**
+	 * Deletes the files kept next to a recording.
+	 */
+	static void deleteSidecars(File recording) {
+		VoiceActivityDetector.indexFile(recording).delete();
+		Waveform.sidecar(recording).delete();
+		AmrIndex.sidecar(recording).delete();
+	}
 
-				// Handle IOException
-				try {
-					mRecorder.prepare();
-				} catch (IOException exception) {
-					recordHandler.obtainMessage(SET_ERROR, INTERNAL_ERROR, 0)
-							.sendToTarget();
-					if (mRecorder != null) {
-						mRecorder.reset();
-						mRecorder.release();
-						mRecorder = null;
-					}
-					return;
-				}
-				// Handle RuntimeException if the recording couldn't start
-				try {
-					// delete by liuyd for bug4242, deadlock happened between
-					// multi thread, delete this incorrect lock
-					// synchronized (mSoundRecorderActivity.mEmptyLock) {
-
-					// fix bug 6022 start
-					// obtain audio focus at the begin of recording
-					AudioManager audioManager = (AudioManager) mSoundRecorderActivity
-							.getSystemService(Context.AUDIO_SERVICE);
-					audioManager.requestAudioFocus(mAudioFocusListener,
-							AudioManager.STREAM_MUSIC,
-							AudioManager.AUDIOFOCUS_GAIN);
-					// fix bug 6022 end
-
-					if (!mSoundRecorderActivity.getActivityState()) {
-						mRecorder.start();
-					} else {
-						if (mRecorder != null) {
-							mRecorder.reset();
-							mRecorder.release();
-							mRecorder = null;
-						}
-						recordHandler.obtainMessage(SET_IDLE).sendToTarget();
-						return;
-					}
-					// }
-				} catch (RuntimeException exception) {
-					AudioManager audioMngr = (AudioManager) context
-							.getSystemService(Context.AUDIO_SERVICE);
-					boolean isInCall = ((audioMngr.getMode() == AudioManager.MODE_IN_CALL));
-					if (isInCall) {
-						recordHandler.obtainMessage(SET_ERROR,
-								IN_CALL_RECORD_ERROR, 0).sendToTarget();
-					} else {
-						recordHandler.obtainMessage(SET_ERROR, INTERNAL_ERROR,
-								0).sendToTarget();
-					}
-					recordHandler.obtainMessage(SET_IDLE).sendToTarget();
-					if (mRecorder != null) {
-						mRecorder.reset();
-						mRecorder.release();
-						mRecorder = null;
-					}
-					return;
+	/*
+	 * Gives up a start before any audio was written, the empty sample and
+	 * everything that tracks it go away. A running capture, armed or
+	 * prewarmed, only closes its gate and stays for the next try, which
+	 * prewarms a new file once the state is back to idle.
+	 */
+	private void refuseStart(int error) {
+		if (mRecorder != null) {
+			mRecorder.reset();
+			mRecorder.release();
+			mRecorder = null;
+		}
+		if (mCapture != null) {
+			mCapture.stopEncoding();
+			if (!mCapture.isStarted() || !mCapture.isRunning()) {
+				mCapture.stop();
+				mCapture = null;
+			}
+		}
+		mSampleFile.delete();
+		deleteSidecars(mSampleFile);
+		mJournal.end(mSampleFile);
+		mMigrator.unassign(mSampleFile);
+		mSampleFile = null;
+		mSegmentFile = null;
+		mSegments.clear();
+		recordHandler.obtainMessage(SET_ERROR, error, 0).sendToTarget();
+		setState(IDLE_STATE);
+	}
+
+	private MediaRecorder createMediaRecorder(File file) throws IOException {
+		// MediaRecorder writes the file itself, at least make sure as much
+		// would fit as an AudioRecord recording needs to start
+		if (file.getParentFile().getUsableSpace()
+				< Preallocator.MIN_START_BYTES)
+			throw new Preallocator.NoSpaceException("no room for "
+					+ Preallocator.MIN_START_BYTES + " bytes");
+		MediaRecorder recorder = new MediaRecorder();
+		recorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
+		recorder.setOutputFormat(mOutputFormat);
+		recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
+		recorder.setOutputFile(file.getAbsolutePath());
+		// the segments joined so far count against the limit
+		long used = 0;
+		for (File segment : mSegments) {
+			if (!segment.equals(file))
+				used += segment.length();
+		}
+		mEarlierSegmentBytes = used;
+		mSegmentFile = file;
+		if (mMaxBytes > 0) {
+			recorder.setMaxFileSize(Math.max(1, mMaxBytes - used));
+			recorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+				public void onInfo(MediaRecorder mr, int what, int extra) {
+					if (what == MediaRecorder
+							.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED)
+						mRecorderFull = true;
 				}
-				mSampleStart = System.currentTimeMillis();
-				mSuspended = 0;
-				recordHandler.obtainMessage(SET_STATE).sendToTarget();
-			};
-		}.start();
+			});
+		}
+		try {
+			recorder.prepare();
+		} catch (IOException e) {
+			recorder.reset();
+			recorder.release();
+			throw e;
+		}
+		return recorder;
 	}
 
-	public void pauseRecording() {
-		if (mRecorder == null) {
-			return;
+	/*
+	 * Sets up the AudioRecord engine, reusing the armed capture if there is
+	 * one, and opens an encoder for the format on mSampleFile. Returns the
+	 * encoder to attach, or null if either half is unavailable on this device.
+	 * Throws if the disk has no room to start the file.
+	 */
+	private PcmEncoder prepareCapture(int format)
+			throws Preallocator.NoSpaceException {
+		mRollover = null;
+		PcmEncoder encoder;
+		if (mMaxBytes <= 0 && (mRolloverBytes > 0 || mRolloverMillis > 0)) {
+			RecordingParts parts = new RecordingParts(format, mExtension,
+					mSampleFile.getParentFile(), mTargetDir);
+			mRollover = new RolloverEncoder(parts, parts, mWorkerExecutor,
+					mFinalizer, mRolloverBytes, mRolloverMillis);
+			encoder = mRollover;
+		} else {
+			encoder = newEncoder(format);
 		}
 		try {
-			// mRecorder.pause();//way
-		} catch (IllegalStateException exception) {
-			Log.e(TAG, "mRecorder pause error. " + exception);
-			stopRecording();
+			encoder.open(mSampleFile, PcmCapture.SAMPLE_RATE);
+		} catch (Preallocator.NoSpaceException e) {
+			// MediaRecorder wouldn't find room either
+			mRollover = null;
+			throw e;
+		} catch (IOException e) {
+			Log.w(TAG, "falling back to MediaRecorder, " + e);
+			mRollover = null;
+			return null;
+		}
+		if (mCapture != null && !mCapture.isRunning()) {
+			// armed capture died, e.g. the microphone was taken away
+			mCapture.stop();
+			mCapture = null;
+		}
+		if (mCapture == null) {
+			PcmCapture capture = new PcmCapture(null, this,
+					mCaptureExecutor, mEncoderExecutor);
+			if (!capture.open()) {
+				Log.w(TAG, "falling back to MediaRecorder, no AudioRecord");
+				closeUnattached(encoder);
+				mRollover = null;
+				return null;
+			}
+			mCapture = capture;
+		}
+		return encoder;
+	}
+
+	/*
+	 * The encoder chain for one file.
+	 */
+	private PcmEncoder newEncoder(int format) {
+		PcmEncoder base;
+		if (format == OUTPUT_FORMAT_WAV) {
+			WavWriter wav = new WavWriter();
+			// parts of a rollover keep the time they are opened at
+			if (mRollover == null)
+				wav.setTimestamp(mStartMillis);
+			base = wav;
+		} else if (format == OUTPUT_FORMAT_FLAC) {
+			base = new FlacEncoder();
+		} else {
+			base = new AmrNbEncoder();
+		}
+		PcmEncoder.SizeLimited limited = (PcmEncoder.SizeLimited) base;
+		limited.setMaxBytes(mMaxBytes);
+		limited.setPreallocate(true);
+		((PcmEncoder.Durable) base).setSyncPolicy(mSyncPolicy);
+		((PcmEncoder.Durable) base).setWriter(mWriterExecutor);
+		// parts of a rollover are prepared ahead, the current one isn't known
+		if (mRollover == null)
+			mSizeLimited = limited;
+		PcmEncoder encoder = WaveformTap.wrap(base);
+		if (mSkipSilence) {
+			// where the format has silence markers they keep the timeline,
+			// so seeking and the duration still match the wall clock
+			VoiceActivityDetector detector = new VoiceActivityDetector(
+					encoder, VoiceActivityDetector.MODE_MARKER);
+			if (mRollover == null)
+				mDetector = detector;
+			encoder = detector;
+		}
+		return encoder;
+	}
+
+	/*
+	 * Creates and registers the files of a recording that rolls over.
+	 */
+	private class RecordingParts implements RolloverEncoder.Factory,
+			RolloverEncoder.Listener {
+		private final int mFormat;
+		private final String mMimeType;
+		private final String mSuffix;
+		private final File mDir;
+		private final File mTargetDir;
+
+		RecordingParts(int format, String suffix, File dir, File targetDir) {
+			mFormat = format;
+			mMimeType = mimeType(format);
+			mSuffix = suffix;
+			mDir = dir;
+			mTargetDir = targetDir;
+		}
+
+		public File createFile() throws IOException {
+			File file = File.createTempFile(SAMPLE_PREFIX, mSuffix, mDir);
+			mJournal.begin(file, mMimeType);
+			mMigrator.assign(file, mTargetDir);
+			return file;
+		}
+
+		public PcmEncoder createEncoder() {
+			return newEncoder(mFormat);
+		}
+
+		public void discardFile(File file) {
+			file.delete();
+			deleteSidecars(file);
+			mJournal.end(file);
+		}
+
+		public void onPartFinished(File file, long durationMillis) {
+			Context context = mSoundRecorderActivity.getApplicationContext();
+			if (MediaDbHelper.insert(context, file, durationMillis,
+					mMimeType) != null) {
+				mJournal.end(file);
+				mMigrator.migrate();
+			} else {
+				// stays in the journal, recovery tries again next launch
+				Log.e(TAG, "can't save " + file);
+			}
+		}
+	}
+
+	private void closeUnattached(PcmEncoder encoder) {
+		if (encoder == null || capturing())
+			return;
+		try {
+			encoder.close();
+		} catch (IOException e) {
+			Log.w(TAG, "failed to close encoder " + e);
+		}
+	}
+
+	/*
+	 * Tears down whichever engine was set up without touching the state.
+	 */
+	private void releaseRecorder() {
+		if (mRecorder != null) {
+			mRecorder.reset();
+			mRecorder.release();
+			mRecorder = null;
+		}
+		if (mCapture != null) {
+			mCapture.stop();
+			mCapture = null;
+		}
+	}
+
+	/*
+	 * Called on the capture thread when AudioRecord or the encoder gives up.
+	 */
+	public void onCaptureError(int error) {
+		if (mState.get() == IDLE_STATE) {
+			// only armed, the dead capture is replaced on the next start
+			Log.w(TAG, "armed capture failed " + error);
 			return;
 		}
-		mSuspended = System.currentTimeMillis() - mSampleStart + mSuspended;
-		mSampleLength = (int) (mSampleLength + (System.currentTimeMillis() - mSampleStart) / 1000);
+		recordHandler.obtainMessage(SET_ERROR, error, 0).sendToTarget();
+		mWorker.post(mStopCommand);
+	}
+
+	private final Runnable mStopCommand = new Runnable() {
+		public void run() {
+			stopNow();
+		}
+	};
+
+	private final Runnable mPauseCommand = new Runnable() {
+		public void run() {
+			pauseNow();
+		}
+	};
+
+	private final Runnable mResumeCommand = new Runnable() {
+		public void run() {
+			resumeNow();
+		}
+	};
+
+	public void pauseRecording() {
+		runOnWorker(mPauseCommand);
+	}
+
+	public void resumeRecording() {
+		runOnWorker(mResumeCommand);
+	}
+
+	public void stopRecording() {
+		runOnWorker(mStopCommand);
+	}
+
+	private void pauseNow() {
+		if (mRecorder == null && !capturing()) {
+			return;
+		}
+		if (capturing()) {
+			mCapture.setPaused(true);
+		} else {
+			// close the current segment, resume starts the next one
+			finishSegment();
+		}
+		if (!mPcmClock)
+			mSampleMillis += SystemClock.elapsedRealtime() - mSegmentStart;
 		setState(SUSPENDED_STATE);
 
 		// fix bug 6022 start
@@ -310,8 +1194,8 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 		// fix bug 6022 end
 	}
 
-	public void resumeRecording() {
-		if (mRecorder == null) {
+	private void resumeNow() {
+		if (mState.get() != SUSPENDED_STATE) {
 			return;
 		}
 
@@ -322,41 +1206,131 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 				AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
 		// fix bug 6022 end
 
-		mSampleStart = System.currentTimeMillis();
-		try {
-			// mRecorder.resume();//way
-		} catch (IllegalStateException exception) {
-			Log.e(TAG, "mRecorder resume error. " + exception);
-			stopRecording();
-			return;
+		if (capturing()) {
+			mCapture.setPaused(false);
+		} else {
+			File segment = null;
+			try {
+				segment = File.createTempFile(SEGMENT_PREFIX, mExtension,
+						mSampleFile.getParentFile());
+				mRecorder = createMediaRecorder(segment);
+				mSegments.add(segment);
+				mJournal.begin(segment, mimeType(mOutputFormat));
+				// in case it outlives the process and is recovered alone
+				mMigrator.assign(segment, mTargetDir);
+				mRecorder.start();
+			} catch (IOException exception) {
+				Log.e(TAG, "mRecorder resume error. " + exception);
+				if (segment != null && !mSegments.contains(segment))
+					segment.delete();
+				setError(exception instanceof Preallocator.NoSpaceException
+						? STORAGE_FULL_ERROR : SDCARD_ACCESS_ERROR);
+				stopRecording();
+				return;
+			} catch (RuntimeException exception) {
+				Log.e(TAG, "mRecorder resume error. " + exception);
+				stopRecording();
+				return;
+			}
 		}
+		mSegmentStart = SystemClock.elapsedRealtime();
 		setState(RECORDING_STATE);
 	}
 
-	public void stopRecording() {
+	/*
+	 * Stops MediaRecorder, which finalizes the current segment. A segment that
+	 * MediaRecorder could not finalize is dropped.
+	 */
+	private void finishSegment() {
 		if (mRecorder == null)
 			return;
-
 		try {
 			mRecorder.stop();
 		} catch (RuntimeException e) {
-			if (mSampleFile != null) {
-				mSampleFile.delete();
-			}
+			File segment = mSegments.remove(mSegments.size() - 1);
+			segment.delete();
+			mJournal.end(segment);
 			Log.w(TAG, "did you call stop() immediately after start()?", e);
 		}
 		mRecorder.release();
 		mRecorder = null;
+	}
+
+	/*
+	 * Joins all segments into mSampleFile and deletes them.
+	 */
+	private void joinSegments() {
+		if (!mSegments.isEmpty() && mSegments.get(0) != mSampleFile) {
+			// the first segment was dropped, promote the next one
+			File first = mSegments.get(0);
+			if (first.renameTo(mSampleFile)) {
+				mJournal.end(first);
+				mSegments.set(0, mSampleFile);
+			} else {
+				Log.e(TAG, "can't rename " + mSegments.get(0));
+			}
+		}
+		if (mSegments.size() > 1 && mSegments.get(0) == mSampleFile) {
+			long begin = System.currentTimeMillis();
+			try {
+				if (mOutputFormat == MediaRecorder.OutputFormat.AMR_NB) {
+					SegmentJoiner.joinAmr(mSegments);
+				} else {
+					SegmentJoiner.join3gpp(mSegments);
+				}
+				Log.d(TAG, "joined " + mSegments.size() + " segments in "
+						+ (System.currentTimeMillis() - begin) + "ms");
+			} catch (IOException e) {
+				Log.e(TAG, "failed to join segments " + e);
+				setError(SDCARD_ACCESS_ERROR);
+			}
+			for (int i = 1; i < mSegments.size(); i++) {
+				mSegments.get(i).delete();
+				mJournal.end(mSegments.get(i));
+			}
+		}
+		mSegments.clear();
+	}
+
+	private void stopNow() {
+		int state = mState.get();
+		if (mRecorder == null && !capturing() && state != SUSPENDED_STATE)
+			return;
 
-		if (mState == RECORDING_STATE) {
-			mSampleLength = mSampleLength
-					+ (int) ((System.currentTimeMillis() - mSampleStart) / 1000);
+		if (capturing()) {
+			mCapture.stopEncoding();
+			mSampleMillis = mCapture.recordedMillis();
+			// of the last part after a rollover
+			mSampleFileMillis = mCapture.encodedMillis();
+			if (mRollover != null) {
+				// earlier parts are saved already, the last one is the sample
+				mSampleFile = mRollover.currentFile();
+				mRollover = null;
+			}
+			// an armed capture goes back to filling the pre-roll buffer
+			if (!mCapture.isArmed() || !mCapture.isRunning()) {
+				mCapture.stop();
+				mCapture = null;
+			}
+		} else {
+			if (state == RECORDING_STATE)
+				mSampleMillis += SystemClock.elapsedRealtime() - mSegmentStart;
+			finishSegment();
+			joinSegments();
+			mSampleMillis = fileMillis(mSampleFile, mSampleMillis);
 		}
+		mSegmentFile = null;
+		mSegments.clear();
 
-		if (mSampleLength == 0) {
+		// under a second shows as 0:00 and isn't kept
+		if (mSampleMillis < 1000) {
 			if (mSampleFile != null) {
 				mSampleFile.delete();
+				deleteSidecars(mSampleFile);
+				mJournal.end(mSampleFile);
 			}
+		} else if (mSampleFile != null) {
+			mJournal.checkpoint(mSampleFile, mSampleFile.length());
 		}
 		setState(IDLE_STATE);
 
@@ -367,6 +1341,23 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 		// fix bug 6022 end
 	}
 
+	/*
+	 * What MediaRecorder actually wrote, measured from the frames in the
+	 * finished file, or the fallback if it can't be read.
+	 */
+	private long fileMillis(File file, long fallback) {
+		if (file == null || !file.exists())
+			return fallback;
+		try {
+			if (mOutputFormat == MediaRecorder.OutputFormat.AMR_NB)
+				return AmrFileWriter.durationMillis(file);
+			return ThreeGppFile.parse(file).durationMillis();
+		} catch (IOException e) {
+			Log.w(TAG, "can't measure " + file + ": " + e);
+			return fallback;
+		}
+	}
+
 	public void startPlayback(Context context) {
 		stop();
 		mAudioMngr = (AudioManager) context
@@ -391,7 +1382,6 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 			return;
 		}
 
-		mSampleStart = System.currentTimeMillis();
 		setState(PLAYING_STATE);
 	}
 
@@ -413,7 +1403,9 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 				}
 				break;
 			case AudioManager.AUDIOFOCUS_LOSS:
-				if (mPlayer == null && mRecorder == null) {
+				int state = mState.get();
+				if (mPlayer == null && state != RECORDING_STATE
+						&& state != SUSPENDED_STATE) {
 					return;
 				} else if (mPlayer != null) {
 					mPlayer.stop();
@@ -459,17 +1451,90 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 		stop();
 	}
 
+	/**
+	 * Publishes a state; the listener hears about it on the UI thread.
+	 */
 	public void setState(int state) {
-		mState = state;
-		signalStateChanged(mState);
+		mState.set(state);
+		// copies to the card keep off the flash while it records
+		mMigrator.hold(state == RECORDING_STATE);
+		if (state == RECORDING_STATE) {
+			mWorker.removeCallbacks(mCheckpoint);
+			mWorker.postDelayed(mCheckpoint, CHECKPOINT_INTERVAL);
+			if (!mPcmClock) {
+				mWorker.removeCallbacks(mMeterPoll);
+				mRecorderMeter.reset();
+				mWorker.post(mMeterPoll);
+			}
+		}
+		signalStateChanged(state);
+	}
+
+	/*
+	 * MediaRecorder only hands out a peak over binder, so that is asked for
+	 * here rather than by every view that shows the level.
+	 */
+	private final Runnable mMeterPoll = new Runnable() {
+		public void run() {
+			MediaRecorder recorder = mRecorder;
+			if (mState.get() != RECORDING_STATE || recorder == null)
+				return;
+			mRecorderMeter.updatePeak(recorder.getMaxAmplitude());
+			mWorker.postDelayed(this, METER_POLL_INTERVAL);
+		}
+	};
+
+	/*
+	 * Notes how far the file being written has got, once a second. An
+	 * AudioRecord file is longer than that by the space reserved ahead of
+	 * the writes, so its encoder's count is taken, which the write-behind
+	 * output has handed to the kernel within a second.
+	 */
+	private final Runnable mCheckpoint = new Runnable() {
+		public void run() {
+			if (mState.get() != RECORDING_STATE || mSegments.isEmpty())
+				return;
+			mWorker.postDelayed(this, CHECKPOINT_INTERVAL);
+			RolloverEncoder rollover = mRollover;
+			File current = rollover != null ? rollover.currentFile()
+					: mSegments.get(mSegments.size() - 1);
+			PcmCapture capture = mCapture;
+			long offset;
+			if (mPcmClock && capture != null) {
+				offset = capture.encodedBytes();
+				// the count may already be that of the next part
+				if (rollover != null && rollover.currentFile() != current)
+					return;
+			} else {
+				offset = current.length();
+			}
+			mJournal.checkpoint(current, offset);
+		}
+	};
+
+	private static String mimeType(int outputFormat) {
+		if (outputFormat == OUTPUT_FORMAT_WAV)
+			return SoundRecorder.AUDIO_WAV;
+		if (outputFormat == OUTPUT_FORMAT_FLAC)
+			return SoundRecorder.AUDIO_FLAC;
+		return outputFormat == MediaRecorder.OutputFormat.AMR_NB ? SoundRecorder.AUDIO_AMR
+				: SoundRecorder.AUDIO_3GPP;
 	}
 
 	private void signalStateChanged(int state) {
+		if (Looper.myLooper() != recordHandler.getLooper()) {
+			recordHandler.obtainMessage(STATE_CHANGED, state, 0).sendToTarget();
+			return;
+		}
 		if (mOnStateChangedListener != null)
 			mOnStateChangedListener.onStateChanged(state);
 	}
 
 	private void setError(int error) {
+		if (Looper.myLooper() != recordHandler.getLooper()) {
+			recordHandler.obtainMessage(SET_ERROR, error, 0).sendToTarget();
+			return;
+		}
 		if (mOnStateChangedListener != null)
 			mOnStateChangedListener.onError(error);
 	}
@@ -1,24 +1,27 @@
 package com.example.soundrecord2;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -30,7 +33,9 @@ import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -42,7 +47,8 @@ public class RecordingFileList extends ListActivity implements
 	private ListView mListView;
 	private CursorRecorderAdapter mAdapter;
 	private Map<Integer, Boolean> checkboxes = new HashMap<Integer, Boolean>();
-	private Map<Integer, RecorderItem> checkItem = new TreeMap<Integer, RecorderItem>();
+	// in the order the items were selected
+	private Map<Integer, RecorderItem> checkItem = new LinkedHashMap<Integer, RecorderItem>();
 	private List<RecorderItem> items = new ArrayList<RecorderItem>();
 
 	@Override
@@ -55,11 +61,106 @@ public class RecordingFileList extends ListActivity implements
 	protected void onResume() {
 		super.onResume();
 		mListView = getListView();
-		mAdapter = new CursorRecorderAdapter();
-		setListAdapter(mAdapter);
+		loadList();
 
 		mListView.setOnItemClickListener(this);
 		mListView.setOnItemLongClickListener(this);
+		TranscodeQueue.get(this).addListener(mJobListener);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		TranscodeQueue.get(this).removeListener(mJobListener);
+	}
+
+	private final TranscodeQueue.Listener mJobListener = new TranscodeQueue.Listener() {
+		public void onJobChanged(final TranscodeQueue.Job job) {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					if (job.mState == TranscodeQueue.STATE_DONE) {
+						// the converted file joins the list
+						loadList();
+					} else {
+						mAdapter.notifyDataSetChanged();
+					}
+				}
+			});
+		}
+	};
+
+	/*
+	 * Queues a conversion of every selected recording.
+	 */
+	private void convertSelected(int format) {
+		TranscodeQueue queue = TranscodeQueue.get(this);
+		for (RecorderItem item : checkItem.values()) {
+			if (!new File(item.data).exists())
+				continue;
+			queue.submit(new File(item.data), format);
+		}
+		clearContainer();
+		mAdapter.notifyDataSetChanged();
+	}
+
+	private void cancelSelectedConversions() {
+		TranscodeQueue queue = TranscodeQueue.get(this);
+		for (RecorderItem item : checkItem.values())
+			queue.cancel(new File(item.data));
+		clearContainer();
+		mAdapter.notifyDataSetChanged();
+	}
+
+	private void loadList() {
+		mAdapter = new CursorRecorderAdapter();
+		setListAdapter(mAdapter);
+		startScan();
+	}
+
+	/*
+	 * Measures the listed files on a background thread, shows the real
+	 * durations and corrects the media database where it was off.
+	 */
+	private void startScan() {
+		final CursorRecorderAdapter adapter = mAdapter;
+		final List<RecorderItem> scanned = new ArrayList<RecorderItem>(
+				adapter.mData);
+		new Thread(new Runnable() {
+			public void run() {
+				List<File> files = new ArrayList<File>(scanned.size());
+				for (RecorderItem item : scanned)
+					files.add(new File(item.data));
+				long start = System.nanoTime();
+				final RecordingScanner.Result[] results = RecordingScanner
+						.scanAll(files);
+				Log.d(TAG, "scanned " + files.size() + " files in "
+						+ (System.nanoTime() - start) / 1000000 + "ms");
+				ContentResolver cr = getContentResolver();
+				for (int i = 0; i < results.length; i++) {
+					RecordingScanner.Result r = results[i];
+					if (r == null
+							|| r.mStatus == RecordingScanner.STATUS_UNREADABLE
+							|| r.mDurationMillis == scanned.get(i).duration)
+						continue;
+					ContentValues cv = new ContentValues();
+					cv.put(MediaStore.Audio.Media.DURATION, r.mDurationMillis);
+					cr.update(ContentUris.withAppendedId(
+							MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+							scanned.get(i).id), cv, null, null);
+				}
+				runOnUiThread(new Runnable() {
+					public void run() {
+						for (int i = 0; i < results.length; i++) {
+							if (results[i] == null)
+								continue;
+							scanned.get(i).duration = results[i].mDurationMillis;
+							scanned.get(i).status = results[i].mStatus;
+						}
+						adapter.notifyDataSetChanged();
+					}
+				});
+			}
+		}, "LibraryScan").start();
 	}
 
 	@Override
@@ -99,6 +200,11 @@ public class RecordingFileList extends ListActivity implements
 	private static final int SELECT_ALL = 0;
 	private static final int DELETE = 1;
 	private static final int UN_SELECT_ALL = 2;
+	private static final int MERGE = 3;
+	private static final int CONVERT_WAV = 4;
+	private static final int CONVERT_AMR = 5;
+	private static final int CANCEL_CONVERT = 6;
+	private static final int CONVERT_FLAC = 7;
 
 	public boolean onCreateOptionsMenu(Menu menu) {
 		menu.add(0, SELECT_ALL, 0,
@@ -106,6 +212,15 @@ public class RecordingFileList extends ListActivity implements
 		menu.add(0, DELETE, 1, getString(R.string.menu_recording_list_delete));
 		menu.add(0, UN_SELECT_ALL, 2,
 				getString(R.string.menu_recording_list_deselect_all));
+		menu.add(0, MERGE, 3, getString(R.string.menu_recording_list_merge));
+		menu.add(0, CONVERT_WAV, 4,
+				getString(R.string.menu_recording_list_convert_wav));
+		menu.add(0, CONVERT_AMR, 5,
+				getString(R.string.menu_recording_list_convert_amr));
+		menu.add(0, CONVERT_FLAC, 6,
+				getString(R.string.menu_recording_list_convert_flac));
+		menu.add(0, CANCEL_CONVERT, 7,
+				getString(R.string.menu_recording_list_cancel_convert));
 		return true;
 	}
 
@@ -123,6 +238,26 @@ public class RecordingFileList extends ListActivity implements
 		case UN_SELECT_ALL:
 			unSelectAll();
 			break;
+		case MERGE:
+			if (checkItem.size() < 2) {
+				Toast.makeText(this, R.string.merge_select_more,
+						Toast.LENGTH_SHORT).show();
+				break;
+			}
+			startMerge();
+			break;
+		case CONVERT_WAV:
+			convertSelected(RecordingScanner.FORMAT_WAV);
+			break;
+		case CONVERT_AMR:
+			convertSelected(RecordingScanner.FORMAT_AMR);
+			break;
+		case CONVERT_FLAC:
+			convertSelected(RecordingScanner.FORMAT_FLAC);
+			break;
+		case CANCEL_CONVERT:
+			cancelSelectedConversions();
+			break;
 		}
 		return true;
 	}
@@ -177,7 +312,11 @@ public class RecordingFileList extends ListActivity implements
 		buff.append("(").append(MediaStore.Audio.Media.MIME_TYPE)
 				.append("='audio/amr' or ")
 				.append(MediaStore.Audio.Media.MIME_TYPE)
-				.append("='audio/3gpp') and ")
+				.append("='audio/3gpp' or ")
+				.append(MediaStore.Audio.Media.MIME_TYPE)
+				.append("='audio/x-wav' or ")
+				.append(MediaStore.Audio.Media.MIME_TYPE)
+				.append("='audio/flac') and ")
 				.append(MediaStore.Audio.Media.DISPLAY_NAME)
 				.append(" like 'recording%' or ")
 				.append(MediaStore.Audio.Media.DISPLAY_NAME)
@@ -199,6 +338,82 @@ public class RecordingFileList extends ListActivity implements
 		}
 	}
 
+	/*
+	 * Merges the selected recordings in selection order on a background
+	 * thread, behind a progress dialog that can cancel it.
+	 */
+	private void startMerge() {
+		final List<File> inputs = new ArrayList<File>();
+		for (RecorderItem item : checkItem.values())
+			inputs.add(new File(item.data));
+		View view = LayoutInflater.from(this).inflate(
+				R.layout.merge_progress, null);
+		final ProgressBar bar = (ProgressBar) view
+				.findViewById(R.id.merge_progress);
+		final RecordingMerger merger = new RecordingMerger(inputs,
+				new RecordingMerger.Listener() {
+					public void onProgress(final int percent) {
+						runOnUiThread(new Runnable() {
+							public void run() {
+								bar.setProgress(percent);
+							}
+						});
+					}
+				});
+		final AlertDialog progress = new AlertDialog.Builder(this)
+				.setTitle(R.string.merge_title)
+				.setView(view)
+				.setCancelable(false)
+				.setNegativeButton(R.string.button_cancel,
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								merger.cancel();
+							}
+						}).show();
+
+		new Thread(new Runnable() {
+			public void run() {
+				int msg;
+				try {
+					File merged = merger.merge();
+					if (merged == null) {
+						msg = R.string.merge_cancelled;
+					} else if (MediaDbHelper.insert(getApplicationContext(),
+							merged, merger.durationMillis(),
+							merger.mimeType()) == null) {
+						// the file stays, the media scanner may still find it
+						Log.e(TAG, "media database refused " + merged);
+						msg = R.string.merge_failed;
+					} else {
+						// a merge of staged recordings follows the first
+						StorageMigrator migrator = StorageMigrator
+								.get(getApplicationContext());
+						File target = migrator.targetOf(inputs.get(0));
+						if (target != null) {
+							migrator.assign(merged, target);
+							migrator.migrate();
+						}
+						msg = R.string.merge_done;
+					}
+				} catch (IOException e) {
+					Log.w(TAG, "merge failed: " + e);
+					msg = R.string.merge_failed;
+				}
+				final int toast = msg;
+				runOnUiThread(new Runnable() {
+					public void run() {
+						progress.dismiss();
+						Toast.makeText(RecordingFileList.this, toast,
+								Toast.LENGTH_SHORT).show();
+						clearContainer();
+						loadList();
+					}
+				});
+			}
+		}, "Merge").start();
+	}
+
 	private AlertDialog mDelDlg = null;
 
 	private void showDelDialog() {
@@ -247,9 +462,86 @@ public class RecordingFileList extends ListActivity implements
 		if (!del.exists() || !del.delete()) {
 			return;
 		}
+		Recorder.deleteSidecars(del);
 		mAdapter.deleteById(item.id);
 	}
 
+	private void showTrimDialog(final RecorderItem item) {
+		final View view = LayoutInflater.from(this).inflate(
+				R.layout.trim_dialog, null);
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.trim_title)
+				.setView(view)
+				.setPositiveButton(R.string.button_trim,
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								long cutStart = secondsToMillis(view,
+										R.id.trim_start);
+								long cutEnd = secondsToMillis(view,
+										R.id.trim_end);
+								if (cutStart > 0 || cutEnd > 0)
+									trimFile(item, cutStart, cutEnd);
+							}
+						})
+				.setNegativeButton(R.string.button_cancel, null).show();
+	}
+
+	private static long secondsToMillis(View view, int id) {
+		String text = ((EditText) view.findViewById(id)).getText().toString();
+		try {
+			return (long) (Float.parseFloat(text) * 1000);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/*
+	 * Trims on a background thread, the file is measured first so the end
+	 * is exact even if the list still shows the database duration.
+	 */
+	private void trimFile(final RecorderItem item, final long cutStart,
+			final long cutEnd) {
+		new Thread(new Runnable() {
+			public void run() {
+				File file = new File(item.data);
+				long millis;
+				try {
+					long duration = RecordingScanner.scan(file).mDurationMillis;
+					millis = RecordingTrimmer.trim(file, cutStart, duration
+							- cutEnd);
+				} catch (IOException e) {
+					Log.w(TAG, "trim failed: " + e);
+					millis = -1;
+				}
+				if (millis >= 0) {
+					ContentValues cv = new ContentValues();
+					cv.put(MediaStore.Audio.Media.DURATION, millis);
+					cv.put(MediaStore.Audio.Media.SIZE, file.length());
+					getContentResolver().update(ContentUris.withAppendedId(
+							MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+							item.id), cv, null, null);
+				}
+				final long result = millis;
+				final long size = file.length();
+				runOnUiThread(new Runnable() {
+					public void run() {
+						if (result >= 0) {
+							item.duration = result;
+							item.size = size;
+							item.status = RecordingScanner.STATUS_OK;
+							mAdapter.notifyDataSetChanged();
+						}
+						Toast.makeText(RecordingFileList.this,
+								result >= 0 ? R.string.trim_done
+										: R.string.trim_failed,
+								Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		}, "Trim").start();
+	}
+
 	@Override
 	public void onItemClick(AdapterView<?> adapter, View v, int pos, long id) {
 		RecorderItem item = mAdapter.findItem(pos);
@@ -281,6 +573,10 @@ public class RecordingFileList extends ListActivity implements
 				dialog.dismiss();
 				return;
 			}
+			if (which == DialogInterface.BUTTON_NEUTRAL) {
+				showTrimDialog(item);
+				return;
+			}
 
 			int row = -1;
 			StringBuffer buff = new StringBuffer();
@@ -302,6 +598,7 @@ public class RecordingFileList extends ListActivity implements
 					toast_msg = R.string.recording_file_delete_failed;
 					return;
 				}
+				Recorder.deleteSidecars(del);
 
 				toast_msg = R.string.recording_file_delete_success;
 			} catch (Exception e) {
@@ -326,6 +623,7 @@ public class RecordingFileList extends ListActivity implements
 					.setTitle(R.string.recording_file_delete_alert_title)
 					.setMessage(item.getAlertMessage())
 					.setPositiveButton(R.string.button_delete, this)
+					.setNeutralButton(R.string.button_trim, this)
 					.setNegativeButton(R.string.button_cancel, this).show();
 		}
 	}
@@ -384,9 +682,25 @@ public class RecordingFileList extends ListActivity implements
 			// get "record_size"
 			tv = (TextView) cvt.findViewById(R.id.record_size);
 			tv.setText(item.getSize());
+			tv = (TextView) cvt.findViewById(R.id.record_duration);
+			TranscodeQueue.Job job = TranscodeQueue.get(
+					RecordingFileList.this).jobFor(new File(item.data));
+			if (job != null && job.mState == TranscodeQueue.STATE_QUEUED)
+				tv.setText(R.string.transcode_queued);
+			else if (job != null
+					&& job.mState == TranscodeQueue.STATE_RUNNING)
+				tv.setText(getString(R.string.transcode_progress,
+						job.mPercent));
+			else if (job != null && job.mState == TranscodeQueue.STATE_FAILED)
+				tv.setText(R.string.transcode_failed);
+			else
+				tv.setText(item.getDuration());
 			// get "record_time"
 			tv = (TextView) cvt.findViewById(R.id.record_time);
 			tv.setText(item.getTime());
+			WaveformView wv = (WaveformView) cvt
+					.findViewById(R.id.record_waveform);
+			wv.setRecording(new File(item.data));
 			CheckBox cb = (CheckBox) cvt.findViewById(R.id.recode_checkbox);
 			cb.setTag(pos);
 			cb.setOnClickListener(new OnClickListener() {
@@ -408,7 +722,11 @@ public class RecordingFileList extends ListActivity implements
 				buff.append("(").append(MediaStore.Audio.Media.MIME_TYPE)
 						.append("='audio/amr' or ")
 						.append(MediaStore.Audio.Media.MIME_TYPE)
-						.append("='audio/3gpp') and ")
+						.append("='audio/3gpp' or ")
+						.append(MediaStore.Audio.Media.MIME_TYPE)
+						.append("='audio/x-wav' or ")
+						.append(MediaStore.Audio.Media.MIME_TYPE)
+						.append("='audio/flac') and ")
 						.append(MediaStore.Audio.Media.DISPLAY_NAME)
 						.append(" like 'recording%' or ")
 						.append(MediaStore.Audio.Media.DISPLAY_NAME)
@@ -420,7 +738,8 @@ public class RecordingFileList extends ListActivity implements
 										RecorderItem.TITLE,
 										RecorderItem.DISPLAY_NAME,
 										RecorderItem.MOD_DATE,
-										RecorderItem.MIME_TYPE },
+										RecorderItem.MIME_TYPE,
+										RecorderItem.DURATION },
 								buff.toString(), null, null);
 
 				// read cursor
@@ -448,6 +767,9 @@ public class RecordingFileList extends ListActivity implements
 					// set "mime-type" value
 					index = cur.getColumnIndex(RecorderItem.MIME_TYPE);
 					item.mimeType = cur.getString(index);
+					// set "duration" value, replaced once the file is scanned
+					index = cur.getColumnIndex(RecorderItem.DURATION);
+					item.duration = cur.getLong(index);
 					// add to mData
 					result.add(item);
 				}
@@ -512,6 +834,8 @@ public class RecordingFileList extends ListActivity implements
 		private String title;
 		private String display_name;
 		private long time;
+		private long duration;
+		private int status = RecordingScanner.STATUS_OK;
 
 		private static final String _ID = MediaStore.Audio.Media._ID;
 		private static final String SIZE = MediaStore.Audio.Media.SIZE;
@@ -520,6 +844,7 @@ public class RecordingFileList extends ListActivity implements
 		private static final String DISPLAY_NAME = MediaStore.Audio.Media.DISPLAY_NAME;
 		private static final String MOD_DATE = MediaStore.Audio.Media.DATE_MODIFIED;
 		private static final String MIME_TYPE = MediaStore.Audio.Media.MIME_TYPE;
+		private static final String DURATION = MediaStore.Audio.Media.DURATION;
 
 		private static final String AUDIO_AMR = "audio/amr";
 		private static final String AUDIO_3GPP = "audio/3gpp";
@@ -572,6 +897,16 @@ public class RecordingFileList extends ListActivity implements
 			return buff.toString();
 		}
 
+		public String getDuration() {
+			String text = duration > 0 ? DateUtils
+					.formatElapsedTime(duration / 1000) : "";
+			if (status == RecordingScanner.STATUS_TRUNCATED
+					|| status == RecordingScanner.STATUS_CORRUPT)
+				text = getResources().getString(
+						R.string.list_recorder_item_damaged, text);
+			return text;
+		}
+
 		public String getTime() {
 			StringBuffer buff = new StringBuffer();
 			if (time > 0) {
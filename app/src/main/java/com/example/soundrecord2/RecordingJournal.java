@@ -0,0 +1,175 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * On-disk record of the recordings currently being written, one small entry
+ * file per recording holding the last known good length, the owning process,
+ * the mime type and the path. An entry is removed once its recording was
+ * either registered with the media database or deleted, so entries left by a
+ * dead process point at files nobody else will ever clean up.
+ */
+class RecordingJournal {
+	static final String TAG = "RecordingJournal";
+
+	private static final String SUFFIX = ".jnl";
+
+	private final File mDir;
+	// entries of this process, kept open for cheap checkpoints
+	private final HashMap<File, RandomAccessFile> mOpen = new HashMap<File, RandomAccessFile>();
+
+	static class Entry {
+		final File mJournalFile;
+		final File mFile;
+		final String mMimeType;
+		final long mOffset;
+		final int mPid;
+
+		Entry(File journalFile, File file, String mimeType, long offset,
+				int pid) {
+			mJournalFile = journalFile;
+			mFile = file;
+			mMimeType = mimeType;
+			mOffset = offset;
+			mPid = pid;
+		}
+	}
+
+	RecordingJournal(File dir) {
+		mDir = dir;
+	}
+
+	private File entryFile(File recording) {
+		String path = recording.getAbsolutePath();
+		return new File(mDir, Integer.toHexString(path.hashCode()) + "-"
+				+ recording.getName() + SUFFIX);
+	}
+
+	/**
+	 * Starts tracking a recording. The entry is synced before returning so a
+	 * crash right after the file was created is still caught.
+	 */
+	public synchronized void begin(File recording, String mimeType) {
+		end(recording);
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			Log.w(TAG, "can't create " + mDir);
+			return;
+		}
+		File entry = entryFile(recording);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+			raf.setLength(0);
+			raf.writeLong(0);
+			raf.writeInt(Process.myPid());
+			raf.writeUTF(mimeType);
+			raf.writeUTF(recording.getAbsolutePath());
+			raf.getFD().sync();
+			mOpen.put(recording, raf);
+		} catch (IOException e) {
+			Log.w(TAG, "can't journal " + recording + ": " + e);
+			entry.delete();
+		}
+	}
+
+	/**
+	 * Records that the first offset bytes of the recording are written, and
+	 * syncs the entry so the offset outlives a crash.
+	 */
+	public synchronized void checkpoint(File recording, long offset) {
+		RandomAccessFile raf = mOpen.get(recording);
+		if (raf == null)
+			return;
+		try {
+			raf.seek(0);
+			raf.writeLong(offset);
+			raf.getChannel().force(false);
+		} catch (IOException e) {
+			Log.w(TAG, "checkpoint failed for " + recording + ": " + e);
+		}
+	}
+
+	/**
+	 * Stops tracking a recording that was registered or deleted.
+	 */
+	public synchronized void end(File recording) {
+		RandomAccessFile raf = mOpen.remove(recording);
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// the entry is deleted anyway
+			}
+		}
+		entryFile(recording).delete();
+	}
+
+	/**
+	 * True if the recording is being written or waits for recovery.
+	 */
+	public boolean isTracked(File recording) {
+		return entryFile(recording).exists();
+	}
+
+	/**
+	 * True if the recording is tracked on behalf of a process that is gone.
+	 */
+	public boolean isOrphan(File recording) {
+		Entry entry = read(entryFile(recording));
+		return entry != null && entry.mPid != Process.myPid();
+	}
+
+	/**
+	 * Entries written by other, i.e. dead, processes.
+	 */
+	public List<Entry> orphans() {
+		List<Entry> result = new ArrayList<Entry>();
+		File[] files = mDir.listFiles();
+		if (files == null)
+			return result;
+		int pid = Process.myPid();
+		for (File f : files) {
+			if (!f.getName().endsWith(SUFFIX))
+				continue;
+			Entry entry = read(f);
+			if (entry == null) {
+				f.delete();
+			} else if (entry.mPid != pid) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	public void drop(Entry entry) {
+		entry.mJournalFile.delete();
+	}
+
+	private static Entry read(File f) {
+		if (!f.exists())
+			return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				long offset = raf.readLong();
+				int pid = raf.readInt();
+				String mimeType = raf.readUTF();
+				String path = raf.readUTF();
+				return new Entry(f, new File(path), mimeType, offset, pid);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// torn write while the entry was created
+			Log.w(TAG, "unreadable journal entry " + f + ": " + e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Joins recordings into a new one, in the given order. Inputs in the same
+ * container are joined without decoding: AMR and WAV data is appended with
+ * FileChannel.transferTo behind one header, 3GPP samples get one new moov.
+ * Mixed inputs and FLAC are decoded and encoded again: to WAV if any input
+ * is WAV, else to FLAC if any is FLAC, else to AMR. Progress is reported in
+ * percent, and the merge can be cancelled from any thread.
+ */
+class RecordingMerger {
+	static final String TAG = "RecordingMerger";
+
+	// copy in steps this large so progress and cancel stay responsive
+	private static final long COPY_STEP = 4 << 20;
+
+	public interface Listener {
+		/**
+		 * Called on the merging thread whenever the percentage changes.
+		 */
+		public void onProgress(int percent);
+	}
+
+	private final List<File> mInputs;
+	private final Listener mListener;
+	private volatile boolean mCancelled;
+	private long mTotal;
+	private long mDone;
+	private int mPercent = -1;
+	private long mDurationMillis;
+	private String mMimeType;
+
+	RecordingMerger(List<File> inputs, Listener listener) {
+		mInputs = inputs;
+		mListener = listener;
+	}
+
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public long durationMillis() {
+		return mDurationMillis;
+	}
+
+	public String mimeType() {
+		return mMimeType;
+	}
+
+	/**
+	 * Writes the merged recording next to the first input and returns it,
+	 * or null if cancelled. Registering it is up to the caller.
+	 */
+	public File merge() throws IOException {
+		int format = RecordingScanner.formatOf(mInputs.get(0));
+		for (File input : mInputs) {
+			int f = RecordingScanner.formatOf(input);
+			if (f == RecordingScanner.FORMAT_UNKNOWN)
+				throw new IOException("can't merge " + input);
+			if (f != format)
+				format = RecordingScanner.FORMAT_UNKNOWN;
+		}
+		if (format == RecordingScanner.FORMAT_3GPP && !sameTimescale())
+			format = RecordingScanner.FORMAT_UNKNOWN;
+
+		int target = format;
+		if (format == RecordingScanner.FORMAT_UNKNOWN) {
+			if (any(RecordingScanner.FORMAT_WAV))
+				target = RecordingScanner.FORMAT_WAV;
+			else if (any(RecordingScanner.FORMAT_FLAC))
+				target = RecordingScanner.FORMAT_FLAC;
+			else
+				target = RecordingScanner.FORMAT_AMR;
+		}
+		String suffix = TranscodeQueue.suffixOf(target);
+		mMimeType = TranscodeQueue.mimeTypeOf(target);
+
+		File out = File.createTempFile(Recorder.SAMPLE_PREFIX, suffix,
+				mInputs.get(0).getParentFile());
+		boolean done = false;
+		try {
+			switch (format) {
+			case RecordingScanner.FORMAT_AMR:
+				mergeAmr(out);
+				break;
+			case RecordingScanner.FORMAT_3GPP:
+				merge3gpp(out);
+				break;
+			case RecordingScanner.FORMAT_WAV:
+				mergeWav(out);
+				break;
+			default:
+				transcode(out, target);
+				break;
+			}
+			done = !mCancelled;
+		} catch (InterruptedIOException e) {
+			// cancelled
+		} finally {
+			if (!done) {
+				out.delete();
+				Recorder.deleteSidecars(out);
+			}
+		}
+		if (!done)
+			return null;
+		Log.i(TAG, "merged " + mInputs.size() + " recordings into " + out
+				+ ", " + mDurationMillis + "ms");
+		return out;
+	}
+
+	private boolean sameTimescale() throws IOException {
+		int timescale = -1;
+		for (File input : mInputs) {
+			int t = ThreeGppFile.parse(input).mTimescale;
+			if (timescale >= 0 && t != timescale)
+				return false;
+			timescale = t;
+		}
+		return true;
+	}
+
+	private boolean any(int format) throws IOException {
+		for (File input : mInputs) {
+			if (RecordingScanner.formatOf(input) == format)
+				return true;
+		}
+		return false;
+	}
+
+	private void mergeAmr(File out) throws IOException {
+		long[] ends = new long[mInputs.size()];
+		int frames = 0;
+		for (int i = 0; i < ends.length; i++) {
+			AmrIndex index = AmrIndex.load(mInputs.get(i));
+			RandomAccessFile raf = new RandomAccessFile(mInputs.get(i), "r");
+			try {
+				ends[i] = index.frameOffset(raf, index.frameCount());
+			} finally {
+				raf.close();
+			}
+			frames += index.frameCount();
+			mTotal += ends[i] - AmrFileWriter.AMR_MAGIC.length;
+		}
+		FileOutputStream fos = new FileOutputStream(out);
+		try {
+			FileChannel channel = fos.getChannel();
+			ThreeGppFile.writeFully(channel,
+					ByteBuffer.wrap(AmrFileWriter.AMR_MAGIC));
+			for (int i = 0; i < ends.length; i++)
+				copy(mInputs.get(i), AmrFileWriter.AMR_MAGIC.length, ends[i],
+						channel);
+			channel.force(false);
+		} finally {
+			fos.close();
+		}
+		mDurationMillis = (long) frames * AmrIndex.FRAME_MILLIS;
+	}
+
+	private void merge3gpp(File out) throws IOException {
+		ThreeGppFile.Builder builder = null;
+		for (File input : mInputs) {
+			ThreeGppFile parsed = ThreeGppFile.parse(input);
+			if (builder == null)
+				builder = new ThreeGppFile.Builder(parsed);
+			builder.addSamples(parsed, 0, parsed.sampleCount());
+			checkCancelled();
+		}
+		mTotal = builder.dataLength();
+		builder.writeTo(out, new ThreeGppFile.Builder.CopyListener() {
+			public void onCopied(long bytes) throws IOException {
+				mDone += bytes;
+				progress(mDone, mTotal);
+				checkCancelled();
+			}
+		});
+		mDurationMillis = builder.durationMillis();
+	}
+
+	private void mergeWav(File out) throws IOException {
+		RecordingScanner.WavLayout[] layouts = new RecordingScanner.WavLayout[mInputs
+				.size()];
+		for (int i = 0; i < layouts.length; i++) {
+			RandomAccessFile raf = new RandomAccessFile(mInputs.get(i), "r");
+			try {
+				layouts[i] = RecordingScanner.WavLayout.read(raf);
+			} finally {
+				raf.close();
+			}
+			if (layouts[i] == null || layouts[i].mBlockAlign <= 0)
+				throw new IOException("no audio in " + mInputs.get(i));
+			if (layouts[i].mSampleRate != layouts[0].mSampleRate
+					|| layouts[i].mBlockAlign != layouts[0].mBlockAlign) {
+				// different PCM layouts, decode instead
+				mTotal = 0;
+				transcode(out, RecordingScanner.FORMAT_WAV);
+				return;
+			}
+			mTotal += layouts[i].frames() * layouts[i].mBlockAlign;
+		}
+
+		RecordingScanner.WavLayout first = layouts[0];
+		ByteBuffer header = ByteBuffer.allocate((int) first.mDataStart)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		RandomAccessFile raf = new RandomAccessFile(mInputs.get(0), "r");
+		try {
+			raf.readFully(header.array());
+		} finally {
+			raf.close();
+		}
+		header.putInt(4, (int) Math.min(first.mDataStart - 8 + mTotal,
+				0xFFFFFFFFL));
+		header.putInt((int) first.mDataChunk + 4, (int) Math.min(mTotal,
+				0xFFFFFFFFL - first.mDataStart));
+
+		FileOutputStream fos = new FileOutputStream(out);
+		try {
+			FileChannel channel = fos.getChannel();
+			ThreeGppFile.writeFully(channel, header);
+			for (int i = 0; i < layouts.length; i++)
+				copy(mInputs.get(i), layouts[i].mDataStart,
+						layouts[i].mDataStart + layouts[i].frames()
+								* layouts[i].mBlockAlign, channel);
+			channel.force(false);
+		} finally {
+			fos.close();
+		}
+		mDurationMillis = mTotal / first.mBlockAlign * 1000
+				/ first.mSampleRate;
+	}
+
+	private void copy(File input, long start, long end, FileChannel target)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			FileChannel source = raf.getChannel();
+			for (long pos = start; pos < end; pos += COPY_STEP) {
+				checkCancelled();
+				long n = Math.min(COPY_STEP, end - pos);
+				ThreeGppFile.transferFully(source, pos, n, target);
+				mDone += n;
+				progress(mDone, mTotal);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Decodes every input into one encoder. Only works for inputs at the
+	 * capture rate, which is what this app records.
+	 */
+	private void transcode(File out, int target) throws IOException {
+		for (File input : mInputs)
+			mTotal += RecordingScanner.scan(input).mDurationMillis
+					* PcmCapture.SAMPLE_RATE / 1000;
+		PcmEncoder encoder;
+		if (target == RecordingScanner.FORMAT_WAV)
+			encoder = new WavWriter();
+		else if (target == RecordingScanner.FORMAT_FLAC)
+			encoder = FlacEncoder.offline();
+		else
+			encoder = new AmrNbEncoder();
+		PcmEncoder feed = new Feed(encoder);
+		encoder.open(out, PcmCapture.SAMPLE_RATE);
+		try {
+			for (File input : mInputs) {
+				PcmDecoder decoder = new PcmDecoder(input);
+				try {
+					if (decoder.sampleRate() != PcmCapture.SAMPLE_RATE)
+						throw new IOException("can't merge " + input + " at "
+								+ decoder.sampleRate() + "Hz");
+					decoder.decodeTo(feed);
+				} finally {
+					decoder.release();
+				}
+			}
+		} finally {
+			encoder.close();
+		}
+		mDurationMillis = mDone * 1000 / PcmCapture.SAMPLE_RATE;
+	}
+
+	/*
+	 * Passes decoded audio on, counting it and stopping once cancelled.
+	 */
+	private class Feed implements PcmEncoder {
+		private final PcmEncoder mTarget;
+
+		Feed(PcmEncoder target) {
+			mTarget = target;
+		}
+
+		public void open(File file, int sampleRate) throws IOException {
+			mTarget.open(file, sampleRate);
+		}
+
+		public void encode(short[] pcm, int count) throws IOException {
+			checkCancelled();
+			mTarget.encode(pcm, count);
+			mDone += count;
+			progress(mDone, mTotal);
+		}
+
+		public long bytesWritten() {
+			return mTarget.bytesWritten();
+		}
+
+		public long samplesWritten() {
+			return mTarget.samplesWritten();
+		}
+
+		public void close() throws IOException {
+			mTarget.close();
+		}
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (mCancelled)
+			throw new InterruptedIOException("merge cancelled");
+	}
+
+	private void progress(long done, long total) {
+		int percent = total > 0 ? (int) Math.min(100, done * 100 / total) : 0;
+		if (percent != mPercent) {
+			mPercent = percent;
+			mListener.onProgress(percent);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Background pass over the recordings a dead process left in the
+ * {@link RecordingJournal}. Each file is first cut to the offset last
+ * checkpointed in the journal, if it has one. Then raw AMR files are cut back
+ * to the last whole frame, 3GPP files that never got their moov are rebuilt
+ * around the frames found in mdat, WAV files get the data size of what is
+ * left, and the result is registered with the media database.
+ * Files without a single usable frame are deleted.
+ */
+class RecordingRecovery implements Runnable {
+	static final String TAG = "RecordingRecovery";
+
+	private static final int READ_BYTES = 64 * 1024;
+
+	private static boolean sStarted;
+
+	private final Context mContext;
+	private final RecordingJournal mJournal;
+
+	private RecordingRecovery(Context context) {
+		mContext = context.getApplicationContext();
+		mJournal = new RecordingJournal(journalDir(context));
+	}
+
+	static File journalDir(Context context) {
+		return new File(context.getFilesDir(), "journal");
+	}
+
+	/**
+	 * Starts the recovery thread, once per process.
+	 */
+	public static synchronized void start(Context context) {
+		if (sStarted)
+			return;
+		sStarted = true;
+		Thread t = new Thread(new RecordingRecovery(context), TAG);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public void run() {
+		for (RecordingJournal.Entry entry : mJournal.orphans()) {
+			try {
+				recover(entry);
+			} catch (IOException e) {
+				Log.w(TAG, "can't recover " + entry.mFile + ": " + e);
+			}
+			mJournal.drop(entry);
+		}
+		// recovered files and moves an earlier process left unfinished
+		StorageMigrator.get(mContext).migrate();
+	}
+
+	private void recover(RecordingJournal.Entry entry) throws IOException {
+		File file = entry.mFile;
+		if (!file.exists())
+			return;
+		long before = file.length();
+		// past the checkpoint is space reserved ahead of the writes or the
+		// last second, which may not have made it to the file
+		boolean checkpointed = entry.mOffset > 0 && entry.mOffset <= before;
+		if (checkpointed && entry.mOffset < before)
+			truncate(file, entry.mOffset);
+		long durationMillis;
+		if (SoundRecorder.AUDIO_AMR.equals(entry.mMimeType)) {
+			durationMillis = recoverAmr(file);
+		} else if (SoundRecorder.AUDIO_WAV.equals(entry.mMimeType)) {
+			durationMillis = recoverWav(file, checkpointed);
+		} else if (SoundRecorder.AUDIO_FLAC.equals(entry.mMimeType)) {
+			durationMillis = recoverFlac(file);
+		} else {
+			durationMillis = recover3gpp(file);
+		}
+		if (durationMillis <= 0) {
+			Log.i(TAG, "nothing to keep in " + file);
+			file.delete();
+			Recorder.deleteSidecars(file);
+			return;
+		}
+		if (file.getName().startsWith(".")) {
+			// a pause segment that was never joined
+			File visible = new File(file.getParentFile(), file.getName()
+					.substring(1));
+			if (file.renameTo(visible)) {
+				StorageMigrator migrator = StorageMigrator.get(mContext);
+				File target = migrator.targetOf(file);
+				if (target != null)
+					migrator.assign(visible, target);
+				file = visible;
+			}
+		}
+		Log.i(TAG, "recovered " + file + ", " + durationMillis + "ms, "
+				+ file.length() + " of " + before + " bytes, journal had "
+				+ entry.mOffset);
+		if (MediaDbHelper.insert(mContext, file, durationMillis,
+				entry.mMimeType) == null)
+			Log.w(TAG, "media database refused " + file);
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Truncates the file after the last complete frame and returns the
+	 * duration left.
+	 */
+	private static long recoverAmr(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] magic = new byte[AmrFileWriter.AMR_MAGIC.length];
+			if (raf.length() < magic.length)
+				return 0;
+			raf.readFully(magic);
+			if (!Arrays.equals(magic, AmrFileWriter.AMR_MAGIC))
+				return 0;
+			FrameScan scan = new FrameScan();
+			scan.run(raf.getChannel(), magic.length, raf.length(), false);
+			if (scan.mEnd < raf.length())
+				raf.setLength(scan.mEnd);
+			return scan.mCount * 20L;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Without a checkpoint, drops whatever the writer's mapped window left
+	 * after the data size it last patched into the header. With one, the
+	 * data up to it was written and the header is patched to cover it.
+	 */
+	private static long recoverWav(File file, boolean checkpointed)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < WavWriter.HEADER_BYTES)
+				return 0;
+			ByteBuffer header = ByteBuffer.allocate(WavWriter.HEADER_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			raf.readFully(header.array());
+			if (header.getInt(0) != 0x46464952) // "RIFF"
+				return 0;
+			int sampleRate = header.getInt(WavWriter.SAMPLE_RATE_OFFSET);
+			long dataBytes = header.getInt(WavWriter.DATA_SIZE_OFFSET)
+					& 0xFFFFFFFFL;
+			if (checkpointed)
+				dataBytes = Math.min(raf.length() - WavWriter.HEADER_BYTES,
+						0xFFFFFFFFL - WavWriter.HEADER_BYTES);
+			dataBytes = Math.min(dataBytes, raf.length()
+					- WavWriter.HEADER_BYTES) & ~1L;
+			raf.setLength(WavWriter.HEADER_BYTES + dataBytes);
+			if (checkpointed) {
+				header.putInt(WavWriter.RIFF_SIZE_OFFSET,
+						(int) (WavWriter.HEADER_BYTES - 8 + dataBytes));
+				header.putInt(WavWriter.DATA_SIZE_OFFSET, (int) dataBytes);
+				raf.seek(0);
+				raf.write(header.array());
+			}
+			if (sampleRate <= 0)
+				return 0;
+			return dataBytes / 2 * 1000 / sampleRate;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Cuts the file after its last complete frame and writes the sample
+	 * count of the frames left into STREAMINFO.
+	 */
+	private static long recoverFlac(File file) throws IOException {
+		FlacFile flac;
+		try {
+			flac = FlacFile.read(file);
+		} catch (IOException e) {
+			// not even the header made it
+			return 0;
+		}
+		flac.walk(file);
+		if (flac.mFrameSamples == 0)
+			return 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(flac.mEnd);
+			FlacFile.patchTotalSamples(raf, flac.mFrameSamples);
+		} finally {
+			raf.close();
+		}
+		return flac.durationMillis(flac.mFrameSamples);
+	}
+
+	/*
+	 * Rebuilds the file around the frames in its mdat unless it already is a
+	 * complete 3GPP file.
+	 */
+	private static long recover3gpp(File file) throws IOException {
+		try {
+			return ThreeGppFile.parse(file).durationMillis();
+		} catch (IOException e) {
+			// no moov, or a broken one
+		}
+		ThreeGppFile layout = ThreeGppFile.scan(file);
+		if (layout.mMdatOffset < 0)
+			return 0;
+
+		FrameScan scan = new FrameScan();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			scan.run(raf.getChannel(), layout.mMdatOffset, layout.mMdatOffset
+					+ layout.mMdatLength, true);
+		} finally {
+			raf.close();
+		}
+		if (scan.mCount == 0)
+			return 0;
+
+		ThreeGppFile.Builder builder = new ThreeGppFile.Builder(
+				ThreeGppFile.amrNbTemplate());
+		builder.addRun(file, layout.mMdatOffset, scan.mSizes, scan.mCount,
+				AmrFileWriter.FRAME_SAMPLES);
+		File rebuilt = new File(file.getParentFile(), "." + file.getName()
+				+ ".recover");
+		try {
+			builder.writeTo(rebuilt);
+		} catch (IOException e) {
+			rebuilt.delete();
+			throw e;
+		}
+		if (!rebuilt.renameTo(file)) {
+			rebuilt.delete();
+			throw new IOException("can't replace " + file);
+		}
+		return builder.durationMillis();
+	}
+
+	/*
+	 * Walks AMR frames until the first invalid header or partial frame.
+	 */
+	private static class FrameScan {
+		int[] mSizes = new int[1024];
+		int mCount;
+		long mEnd;
+
+		void run(FileChannel channel, long start, long end, boolean keepSizes)
+				throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(READ_BYTES);
+			long bufStart = start;
+			long pos = start;
+			buf.limit(0);
+			while (pos < end) {
+				int index = (int) (pos - bufStart);
+				if (index >= buf.limit()) {
+					buf.clear();
+					bufStart = pos;
+					index = 0;
+					while (buf.hasRemaining()) {
+						int n = channel.read(buf, bufStart + buf.position());
+						if (n <= 0)
+							break;
+					}
+					buf.flip();
+					if (buf.limit() == 0)
+						break;
+				}
+				byte header = buf.get(index);
+				// the padding bits are zero and encoders always set the
+				// quality bit, which also rejects zero filled tails
+				if ((header & 0x83) != 0 || (header & 0x04) == 0)
+					break;
+				int size = AmrFileWriter.frameSize(header);
+				if (pos + size > end)
+					break;
+				if (keepSizes) {
+					if (mCount == mSizes.length)
+						mSizes = Arrays.copyOf(mSizes, mCount * 2);
+					mSizes[mCount] = size;
+				}
+				mCount++;
+				pos += size;
+			}
+			mEnd = pos;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Measures recordings from their own structure instead of asking
+ * MediaPlayer: AMR frame headers, the 3GPP sample tables, or the WAV chunk
+ * sizes. Gives the exact duration of the audio that is actually there and
+ * notices files that end early or in garbage. Results are cached per path
+ * while the file keeps its length and modification time.
+ */
+class RecordingScanner {
+	static final String TAG = "RecordingScanner";
+
+	public static final int STATUS_OK = 0;
+	// ends in a partial frame, or the index points past the end
+	public static final int STATUS_TRUNCATED = 1;
+	// invalid data before the end
+	public static final int STATUS_CORRUPT = 2;
+	// not a recording format we know, or unreadable
+	public static final int STATUS_UNREADABLE = 3;
+
+	static final int FORMAT_UNKNOWN = 0;
+	static final int FORMAT_AMR = 1;
+	static final int FORMAT_3GPP = 2;
+	static final int FORMAT_WAV = 3;
+	static final int FORMAT_FLAC = 4;
+
+	private static final int READ_BYTES = 64 * 1024;
+
+	static class Result {
+		final long mLength;
+		final long mModified;
+		final long mDurationMillis;
+		final int mStatus;
+
+		Result(File file, long durationMillis, int status) {
+			mLength = file.length();
+			mModified = file.lastModified();
+			mDurationMillis = durationMillis;
+			mStatus = status;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Result> sCache = new ConcurrentHashMap<String, Result>();
+
+	private RecordingScanner() {
+	}
+
+	/**
+	 * Forgets all results, for benchmarks.
+	 */
+	static void clearCache() {
+		sCache.clear();
+	}
+
+	/**
+	 * Scans one file, or returns its cached result.
+	 */
+	public static Result scan(File file) {
+		Result cached = sCache.get(file.getPath());
+		if (cached != null && cached.mLength == file.length()
+				&& cached.mModified == file.lastModified())
+			return cached;
+		Result result;
+		try {
+			result = parse(file);
+		} catch (IOException e) {
+			Log.w(TAG, "can't scan " + file + ": " + e);
+			result = new Result(file, 0, STATUS_UNREADABLE);
+		}
+		sCache.put(file.getPath(), result);
+		return result;
+	}
+
+	/**
+	 * Scans the files on one thread per core and returns the results in
+	 * the same order. Blocks, so call it off the main thread.
+	 */
+	public static Result[] scanAll(List<File> files) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(
+					files.size());
+			for (final File file : files) {
+				tasks.add(new Callable<Result>() {
+					public Result call() {
+						return scan(file);
+					}
+				});
+			}
+			List<Future<Result>> futures = pool.invokeAll(tasks);
+			Result[] results = new Result[files.size()];
+			for (int i = 0; i < results.length; i++)
+				results[i] = futures.get(i).get();
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Result[files.size()];
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The container of the file, from its first bytes.
+	 */
+	static int formatOf(File file) throws IOException {
+		byte[] magic = new byte[12];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.read(magic) < magic.length)
+				return FORMAT_UNKNOWN;
+		} finally {
+			raf.close();
+		}
+		if (Arrays.equals(Arrays.copyOf(magic,
+				AmrFileWriter.AMR_MAGIC.length), AmrFileWriter.AMR_MAGIC))
+			return FORMAT_AMR;
+		if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y'
+				&& magic[7] == 'p')
+			return FORMAT_3GPP;
+		if (magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F'
+				&& magic[3] == 'F' && magic[8] == 'W' && magic[9] == 'A'
+				&& magic[10] == 'V' && magic[11] == 'E')
+			return FORMAT_WAV;
+		if (Arrays.equals(Arrays.copyOf(magic, FlacFile.MAGIC.length),
+				FlacFile.MAGIC))
+			return FORMAT_FLAC;
+		return FORMAT_UNKNOWN;
+	}
+
+	private static Result parse(File file) throws IOException {
+		switch (formatOf(file)) {
+		case FORMAT_AMR:
+			return parseAmr(file);
+		case FORMAT_3GPP:
+			return parse3gpp(file);
+		case FORMAT_WAV:
+			return parseWav(file);
+		case FORMAT_FLAC:
+			return parseFlac(file);
+		default:
+			return new Result(file, 0, STATUS_UNREADABLE);
+		}
+	}
+
+	/*
+	 * Walks the frame headers, skipping the frame bodies.
+	 */
+	private static Result parseAmr(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), READ_BYTES));
+		try {
+			in.skipBytes(AmrFileWriter.AMR_MAGIC.length);
+			long frames = 0;
+			int status = STATUS_OK;
+			int header;
+			while ((header = in.read()) >= 0) {
+				// the padding bits are zero and the quality bit is set
+				if ((header & 0x83) != 0 || (header & 0x04) == 0) {
+					status = STATUS_CORRUPT;
+					break;
+				}
+				int skip = AmrFileWriter.frameSize((byte) header) - 1;
+				if (in.skipBytes(skip) < skip) {
+					status = STATUS_TRUNCATED;
+					break;
+				}
+				frames++;
+			}
+			return new Result(file, frames * AmrIndex.FRAME_MILLIS, status);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Duration of the samples that are inside the file. A file without a
+	 * moov is truncated, RecordingRecovery can rebuild it.
+	 */
+	private static Result parse3gpp(File file) throws IOException {
+		ThreeGppFile parsed;
+		try {
+			parsed = ThreeGppFile.parse(file);
+		} catch (IOException e) {
+			ThreeGppFile layout = ThreeGppFile.scan(file);
+			return new Result(file, 0, layout.mMdatOffset >= 0
+					&& layout.mMoov == null ? STATUS_TRUNCATED
+					: STATUS_CORRUPT);
+		}
+		long length = file.length();
+		int count = parsed.sampleCount();
+		int present = count;
+		while (present > 0 && parsed.sampleOffset(present - 1)
+				+ parsed.mSampleSizes[present - 1] > length)
+			present--;
+		long units = 0;
+		for (int i = 0; i < present; i++)
+			units += parsed.mSampleDurations[i];
+		return new Result(file, units * 1000 / parsed.mTimescale,
+				present < count ? STATUS_TRUNCATED : STATUS_OK);
+	}
+
+	private static Result parseWav(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			WavLayout layout = WavLayout.read(raf);
+			if (layout == null)
+				return new Result(file, 0, STATUS_TRUNCATED);
+			if (layout.mBlockAlign <= 0 || layout.mSampleRate <= 0)
+				return new Result(file, 0, STATUS_CORRUPT);
+			return new Result(file, layout.durationMillis(),
+					layout.mDataSize > layout.mDataAvailable
+							? STATUS_TRUNCATED : STATUS_OK);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Walks the frames, so a file cut short is noticed even when STREAMINFO
+	 * has the full sample count.
+	 */
+	private static Result parseFlac(File file) throws IOException {
+		FlacFile flac;
+		try {
+			flac = FlacFile.read(file);
+		} catch (EOFException e) {
+			return new Result(file, 0, STATUS_TRUNCATED);
+		}
+		if (flac.mSampleRate <= 0)
+			return new Result(file, 0, STATUS_CORRUPT);
+		flac.walk(file);
+		return new Result(file, flac.durationMillis(flac.mFrameSamples),
+				flac.mEnd < file.length() ? STATUS_TRUNCATED : STATUS_OK);
+	}
+
+	/**
+	 * Where a WAV file keeps its audio, found by following the RIFF chunks
+	 * to fmt and data.
+	 */
+	static class WavLayout {
+		int mSampleRate;
+		int mBlockAlign;
+		// offset of the data chunk header
+		long mDataChunk;
+		long mDataStart;
+		// as the header says, and as much as the file holds
+		long mDataSize;
+		long mDataAvailable;
+
+		/**
+		 * Null if the file has no data chunk.
+		 */
+		static WavLayout read(RandomAccessFile raf) throws IOException {
+			long length = raf.length();
+			ByteBuffer header = ByteBuffer.allocate(16).order(
+					ByteOrder.LITTLE_ENDIAN);
+			WavLayout layout = new WavLayout();
+			long pos = 12;
+			while (pos + 8 <= length) {
+				raf.seek(pos);
+				raf.readFully(header.array(), 0, 8);
+				String id = new String(header.array(), 0, 4, "ISO-8859-1");
+				long size = header.getInt(4) & 0xFFFFFFFFL;
+				if ("fmt ".equals(id)) {
+					raf.readFully(header.array(), 0, 16);
+					layout.mSampleRate = header.getInt(4);
+					layout.mBlockAlign = header.getShort(12);
+				} else if ("data".equals(id)) {
+					layout.mDataChunk = pos;
+					layout.mDataStart = pos + 8;
+					layout.mDataSize = size;
+					layout.mDataAvailable = Math.min(size, length - pos - 8);
+					return layout;
+				}
+				pos += 8 + size + (size & 1);
+			}
+			return null;
+		}
+
+		/**
+		 * Whole sample frames present in the file.
+		 */
+		long frames() {
+			return mDataAvailable / mBlockAlign;
+		}
+
+		long durationMillis() {
+			return frames() * 1000 / mSampleRate;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Cuts a recording down to a time range without decoding it. The kept
+ * frames are copied with FileChannel.transferTo and only the container
+ * around them is written anew: the AMR magic, the 3GPP moov or the WAV
+ * header. The result replaces the original, its sidecars are dropped and
+ * rebuilt when next needed.
+ */
+class RecordingTrimmer {
+	static final String TAG = "RecordingTrimmer";
+
+	private RecordingTrimmer() {
+	}
+
+	/**
+	 * Keeps startMillis to endMillis of the file, widened to whole frames,
+	 * and returns the new duration.
+	 */
+	public static long trim(File file, long startMillis, long endMillis)
+			throws IOException {
+		startMillis = Math.max(0, startMillis);
+		if (endMillis <= startMillis)
+			throw new IOException("nothing left of " + file);
+		File trimmed = new File(file.getParentFile(), "." + file.getName()
+				+ ".trim");
+		long millis;
+		try {
+			switch (RecordingScanner.formatOf(file)) {
+			case RecordingScanner.FORMAT_AMR:
+				millis = trimAmr(file, startMillis, endMillis, trimmed);
+				break;
+			case RecordingScanner.FORMAT_3GPP:
+				millis = trim3gpp(file, startMillis, endMillis, trimmed);
+				break;
+			case RecordingScanner.FORMAT_WAV:
+				millis = trimWav(file, startMillis, endMillis, trimmed);
+				break;
+			default:
+				throw new IOException("can't trim " + file);
+			}
+		} catch (IOException e) {
+			trimmed.delete();
+			throw e;
+		}
+		if (!trimmed.renameTo(file)) {
+			trimmed.delete();
+			throw new IOException("can't replace " + file);
+		}
+		Recorder.deleteSidecars(file);
+		Log.i(TAG, "trimmed " + file + " to " + startMillis + "-"
+				+ endMillis + "ms, " + millis + "ms left");
+		return millis;
+	}
+
+	private static long trimAmr(File file, long startMillis, long endMillis,
+			File out) throws IOException {
+		AmrIndex index = AmrIndex.load(file);
+		int first = (int) (startMillis / AmrIndex.FRAME_MILLIS);
+		int end = (int) Math.min(index.frameCount(), (endMillis
+				+ AmrIndex.FRAME_MILLIS - 1) / AmrIndex.FRAME_MILLIS);
+		if (end <= first)
+			throw new IOException("nothing left of " + file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long from = index.frameOffset(raf, first);
+			long to = index.frameOffset(raf, end);
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				FileChannel target = fos.getChannel();
+				ThreeGppFile.writeFully(target,
+						ByteBuffer.wrap(AmrFileWriter.AMR_MAGIC));
+				ThreeGppFile.transferFully(raf.getChannel(), from, to - from,
+						target);
+				target.force(false);
+			} finally {
+				fos.close();
+			}
+		} finally {
+			raf.close();
+		}
+		return (long) (end - first) * AmrIndex.FRAME_MILLIS;
+	}
+
+	/*
+	 * Keeps every sample that overlaps the range, with a new moov.
+	 */
+	private static long trim3gpp(File file, long startMillis, long endMillis,
+			File out) throws IOException {
+		ThreeGppFile parsed = ThreeGppFile.parse(file);
+		long startUnits = startMillis * parsed.mTimescale / 1000;
+		long endUnits = endMillis * parsed.mTimescale / 1000;
+		int first = -1;
+		int end = 0;
+		long time = 0;
+		for (int i = 0; i < parsed.sampleCount(); i++) {
+			long next = time + parsed.mSampleDurations[i];
+			if (first < 0 && next > startUnits)
+				first = i;
+			if (time < endUnits)
+				end = i + 1;
+			time = next;
+		}
+		if (first < 0 || end <= first)
+			throw new IOException("nothing left of " + file);
+		ThreeGppFile.Builder builder = new ThreeGppFile.Builder(parsed);
+		builder.addSamples(parsed, first, end - first);
+		builder.writeTo(out);
+		return builder.durationMillis();
+	}
+
+	/*
+	 * Copies the header up to the data, patching the sizes, then the kept
+	 * sample frames.
+	 */
+	private static long trimWav(File file, long startMillis, long endMillis,
+			File out) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			RecordingScanner.WavLayout layout = RecordingScanner.WavLayout
+					.read(raf);
+			if (layout == null || layout.mSampleRate <= 0
+					|| layout.mBlockAlign <= 0)
+				throw new IOException("no audio in " + file);
+
+			int sampleRate = layout.mSampleRate;
+			int blockAlign = layout.mBlockAlign;
+			long dataStart = layout.mDataStart;
+			long frames = layout.frames();
+			long first = Math.min(frames, startMillis * sampleRate / 1000);
+			long end = Math.min(frames, (endMillis * sampleRate + 999) / 1000);
+			if (end <= first)
+				throw new IOException("nothing left of " + file);
+			long dataBytes = (end - first) * blockAlign;
+
+			ByteBuffer header = ByteBuffer.allocate((int) dataStart).order(
+					ByteOrder.LITTLE_ENDIAN);
+			raf.seek(0);
+			raf.readFully(header.array());
+			header.putInt(4, (int) Math.min(dataStart - 8 + dataBytes,
+					0xFFFFFFFFL));
+			header.putInt((int) layout.mDataChunk + 4, (int) dataBytes);
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				FileChannel target = fos.getChannel();
+				ThreeGppFile.writeFully(target, header);
+				ThreeGppFile.transferFully(raf.getChannel(), dataStart
+						+ first * blockAlign, dataBytes, target);
+				target.force(false);
+			} finally {
+				fos.close();
+			}
+			return (end - first) * 1000 / sampleRate;
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * Encoder stage that splits a recording into several files once a file
+ * reaches a size or duration limit. The switch happens between two blocks,
+ * so no audio is lost. The next file and its encoder are prepared on the
+ * recorder's worker shortly before they are needed, and the finished file is
+ * closed and handed to the listener on the finalizer, which keeps that work
+ * off the encoder thread. The encoder thread never waits for either.
+ */
+class RolloverEncoder implements PcmEncoder {
+	static final String TAG = "RolloverEncoder";
+
+	// prepare the next file this long before it is needed
+	private static final int PREPARE_SECONDS = 10;
+
+	public interface Factory {
+		/**
+		 * Creates the file for the next part. Called on the preparer.
+		 */
+		public File createFile() throws IOException;
+
+		/**
+		 * Creates an unopened encoder chain for a part.
+		 */
+		public PcmEncoder createEncoder();
+
+		/**
+		 * Disposes of a part file that never got any audio.
+		 */
+		public void discardFile(File file);
+	}
+
+	public interface Listener {
+		/**
+		 * A part is closed and complete. Called on the finalizer.
+		 */
+		public void onPartFinished(File file, long durationMillis);
+	}
+
+	private static class Part {
+		final File mFile;
+		final PcmEncoder mEncoder;
+
+		Part(File file, PcmEncoder encoder) {
+			mFile = file;
+			mEncoder = encoder;
+		}
+	}
+
+	private final Factory mFactory;
+	private final Listener mListener;
+	private final Executor mPreparer;
+	private final ExecutorService mFinalizer;
+	private final long mMaxBytes;
+	private final long mMaxMillis;
+
+	private int mSampleRate;
+	private long mMaxSamples;
+	private volatile Part mCurrent;
+	private Future<Part> mNext;
+	private long mPartSamples;
+	// no new attempt to prepare a part before this sample
+	private long mRetryAt;
+
+	/**
+	 * @param maxBytes  file size limit, 0 for none
+	 * @param maxMillis duration limit, 0 for none
+	 */
+	RolloverEncoder(Factory factory, Listener listener, Executor preparer,
+			ExecutorService finalizer, long maxBytes, long maxMillis) {
+		mFactory = factory;
+		mListener = listener;
+		mPreparer = preparer;
+		mFinalizer = finalizer;
+		mMaxBytes = maxBytes;
+		mMaxMillis = maxMillis;
+	}
+
+	public void open(File file, int sampleRate) throws IOException {
+		mSampleRate = sampleRate;
+		mMaxSamples = mMaxMillis * sampleRate / 1000;
+		mPartSamples = 0;
+		mRetryAt = 0;
+		PcmEncoder encoder = mFactory.createEncoder();
+		encoder.open(file, sampleRate);
+		mCurrent = new Part(file, encoder);
+	}
+
+	/**
+	 * The file currently written to.
+	 */
+	public File currentFile() {
+		return mCurrent.mFile;
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		mCurrent.mEncoder.encode(pcm, count);
+		mPartSamples += count;
+
+		long remaining = samplesRemaining();
+		if (remaining <= PREPARE_SECONDS * mSampleRate && mNext == null
+				&& mPartSamples >= mRetryAt) {
+			FutureTask<Part> next = new FutureTask<Part>(mPrepare);
+			mNext = next;
+			mPreparer.execute(next);
+		}
+		// a late part just makes this one a little longer, the preparer may
+		// be busy stopping this very recording
+		if (remaining <= 0 && mNext != null && mNext.isDone())
+			roll();
+	}
+
+	/*
+	 * Samples until the first limit is hit. The duration limit counts what
+	 * the part holds, which is less than its input when silence is left out,
+	 * the size limit is converted at the rate the part has grown so far.
+	 */
+	private long samplesRemaining() {
+		long remaining = Long.MAX_VALUE;
+		if (mMaxSamples > 0)
+			remaining = mMaxSamples - mCurrent.mEncoder.samplesWritten();
+		long bytes = mCurrent.mEncoder.bytesWritten();
+		// the header skews the rate of the first second
+		if (mMaxBytes > 0 && bytes >= mMaxBytes) {
+			remaining = 0;
+		} else if (mMaxBytes > 0 && mPartSamples >= mSampleRate) {
+			remaining = Math.min(remaining, (mMaxBytes - bytes)
+					* mPartSamples / bytes);
+		}
+		return remaining;
+	}
+
+	private final Callable<Part> mPrepare = new Callable<Part>() {
+		public Part call() throws IOException {
+			File file = mFactory.createFile();
+			PcmEncoder encoder = mFactory.createEncoder();
+			try {
+				encoder.open(file, mSampleRate);
+			} catch (IOException e) {
+				mFactory.discardFile(file);
+				throw e;
+			}
+			return new Part(file, encoder);
+		}
+	};
+
+	private void roll() {
+		Part next;
+		try {
+			next = mNext.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			// keep going in the current file and try again later
+			Log.w(TAG, "can't prepare next part: " + e.getCause());
+			mNext = null;
+			mRetryAt = mPartSamples + PREPARE_SECONDS * mSampleRate;
+			return;
+		}
+		mNext = null;
+
+		final Part finished = mCurrent;
+		mCurrent = next;
+		mPartSamples = 0;
+		mRetryAt = 0;
+		mFinalizer.execute(new Runnable() {
+			public void run() {
+				try {
+					finished.mEncoder.close();
+				} catch (IOException e) {
+					Log.e(TAG, "failed to close " + finished.mFile + ": " + e);
+				}
+				// what the part holds once closing wrote out the rest
+				long millis = finished.mEncoder.samplesWritten() * 1000
+						/ mSampleRate;
+				mListener.onPartFinished(finished.mFile, millis);
+			}
+		});
+		Log.d(TAG, "rolled over to " + next.mFile);
+	}
+
+	public long bytesWritten() {
+		return mCurrent.mEncoder.bytesWritten();
+	}
+
+	/**
+	 * Samples in the current part, after close those of the last one.
+	 */
+	public long samplesWritten() {
+		return mCurrent.mEncoder.samplesWritten();
+	}
+
+	/**
+	 * Closes the current part on the calling thread, it becomes the
+	 * recorder's sample. A prepared but unused part is thrown away.
+	 */
+	public void close() throws IOException {
+		if (mNext != null) {
+			final Future<Part> unused = mNext;
+			mNext = null;
+			mFinalizer.execute(new Runnable() {
+				public void run() {
+					Part part;
+					try {
+						part = unused.get();
+					} catch (ExecutionException e) {
+						return; // nothing was created
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						part.mEncoder.close();
+					} catch (IOException e) {
+						// deleted anyway
+					}
+					mFactory.discardFile(part.mFile);
+				}
+			});
+		}
+		mCurrent.mEncoder.close();
+	}
+}
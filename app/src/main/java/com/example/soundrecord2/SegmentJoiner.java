@@ -0,0 +1,89 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Joins the segment files of a paused and resumed recording into one file
+ * without re-encoding. Sample data is moved with FileChannel.transferTo only.
+ */
+class SegmentJoiner {
+	static final String TAG = "SegmentJoiner";
+
+	private SegmentJoiner() {
+	}
+
+	/**
+	 * Appends the frames of every segment after the first to the first one,
+	 * skipping their "#!AMR\n" magic.
+	 */
+	public static void joinAmr(List<File> segments) throws IOException {
+		File target = segments.get(0);
+		FileOutputStream out = new FileOutputStream(target, true);
+		try {
+			FileChannel channel = out.getChannel();
+			byte[] magic = new byte[AmrFileWriter.AMR_MAGIC.length];
+			for (int i = 1; i < segments.size(); i++) {
+				RandomAccessFile in = new RandomAccessFile(segments.get(i), "r");
+				try {
+					long length = in.length();
+					if (length < magic.length)
+						continue;
+					in.readFully(magic);
+					long start = Arrays.equals(magic, AmrFileWriter.AMR_MAGIC) ? magic.length
+							: 0;
+					ThreeGppFile.transferFully(in.getChannel(), start, length
+							- start, channel);
+				} finally {
+					in.close();
+				}
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the first segment so it holds the samples of all segments, with
+	 * one moov describing the whole recording.
+	 */
+	public static void join3gpp(List<File> segments) throws IOException {
+		File target = segments.get(0);
+		ThreeGppFile.Builder builder = null;
+		for (File segment : segments) {
+			ThreeGppFile parsed;
+			try {
+				parsed = ThreeGppFile.parse(segment);
+			} catch (IOException e) {
+				Log.w(TAG, "skipping unreadable segment " + segment + ": " + e);
+				continue;
+			}
+			if (builder == null)
+				builder = new ThreeGppFile.Builder(parsed);
+			builder.addSamples(parsed, 0, parsed.sampleCount());
+		}
+		if (builder == null)
+			throw new IOException("no readable segment");
+
+		File joined = new File(target.getParentFile(), "." + target.getName()
+				+ ".join");
+		try {
+			builder.writeTo(joined);
+		} catch (IOException e) {
+			joined.delete();
+			throw e;
+		}
+		if (!joined.renameTo(target)) {
+			joined.delete();
+			throw new IOException("can't replace " + target);
+		}
+	}
+}
@@ -1,8 +1,7 @@
 package com.example.soundrecord2;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
 
 import android.Manifest;
 import android.app.Activity;
@@ -11,8 +10,6 @@ import android.app.Dialog;
 import android.app.KeyguardManager;
 import android.app.KeyguardManager.KeyguardLock;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -20,16 +17,17 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
 import android.os.StatFs;
 import android.provider.MediaStore;
 import android.telephony.TelephonyManager;
@@ -53,8 +51,12 @@ import androidx.appcompat.app.AppCompatActivity;
  * Calculates remaining recording time based on available disk space and
  * optionally a maximum recording file size.
  * <p>
- * The reason why this is not trivial is that the file grows in blocks every few
- * seconds or so, while we want a smooth countdown.
+ * The work happens on a background thread: it takes the byte count from the
+ * encoder, or the file length while MediaRecorder records, keeps an
+ * exponentially weighted average of how fast that grows, and asks for the
+ * free space more often the closer the recording gets to a limit. The UI
+ * thread only reads the last estimate and counts it down smoothly in
+ * between.
  */
 
 class RemainingTimeCalculator {
@@ -62,44 +64,70 @@ class RemainingTimeCalculator {
     public static final int FILE_SIZE_LIMIT = 1;
     public static final int DISK_SPACE_LIMIT = 2;
 
-    // which of the two limits we will hit (or have fit) first
-    private int mCurrentLowerLimit = UNKNOWN_LIMIT;
+    // time constant of the throughput average
+    private static final double EWMA_MILLIS = 10000;
+    // skipped silence can bring the rate close to zero, but speech may come
+    // back any moment; never assume less than the share of speech so far,
+    // nor less than this share of the bit rate
+    private static final double MIN_RATE_SHARE = 0.05;
+    // sample every 30th of the time left, within these bounds
+    private static final int CADENCE_DIVISOR = 30;
+    private static final long MIN_INTERVAL = 500;
+    private static final long MAX_INTERVAL = 10000;
 
-    private File mSDCardDirectory;
-
-    // State for tracking file size of recording.
-    private File mRecordingFile;
-    private long mMaxBytes;
-
-    // Rate at which the file grows
-    private int mBytesPerSecond;
-
-    // time at which number of free blocks last changed
-    private long mBlocksChangedTime;
-    // number of available blocks at that time
-    private long mLastBlocks;
-
-    // time at which the size of the file has last changed
-    private long mFileSizeChangedTime;
-    // size of the file at that time
-    private long mLastFileSize;
-
-    public RemainingTimeCalculator() {
-        mSDCardDirectory = SoundRecorder.getInternalStorageDirectory();
+    /*
+     * One result of the sampler, published as a whole.
+     */
+    private static class Estimate {
+        final long mSeconds;
+        // recording clock at the time of the estimate
+        final long mAt;
+        final int mLimit;
+
+        Estimate(long seconds, long at, int limit) {
+            mSeconds = seconds;
+            mAt = at;
+            mLimit = limit;
+        }
     }
 
-    public void chooseSDCard(boolean external) {
-        if (external) {
-            mSDCardDirectory = SoundRecorder.getExternalStorageDirectory();
-        } else {
-            mSDCardDirectory = SoundRecorder.getInternalStorageDirectory();
-        }
+    // where recordings are written, see StorageMigrator
+    private final File mDirectory;
+    // where they go once finished
+    private volatile File mTargetDirectory;
+    private volatile long mPendingBytes;
+    private volatile Estimate mEstimate;
+
+    // State for tracking file size of recording.
+    private volatile File mRecordingFile;
+    private volatile long mMaxBytes;
+
+    // nominal rate of the format, the average starts from it
+    private volatile int mNominalBytesPerSecond = 1;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // only touched on mThread
+    private Recorder mRecorder;
+    private boolean mRunning;
+    private double mBytesPerSecond = -1;
+    private long mLastMillis = -1;
+    private long mLastBytes;
+
+    public RemainingTimeCalculator(File directory) {
+        mDirectory = directory;
+        mThread = new HandlerThread("RemainingTime",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
     }
 
     /**
      * If called, the calculator will return the minimum of two estimates: how
      * long until we run out of disk space and how long until the file reaches
-     * the specified size.
+     * the specified size. The file estimate is only for display, the encoder
+     * stops the file at the limit itself.
      *
      * @param file     the file to watch
      * @param maxBytes the limit
@@ -111,65 +139,142 @@ class RemainingTimeCalculator {
     }
 
     /**
-     * Resets the interpolation.
+     * The directory the recording is moved to once finished, and what is
+     * still waiting to go there. The disk estimate is the lower of the two
+     * volumes then.
      */
-    public void reset() {
-        mCurrentLowerLimit = UNKNOWN_LIMIT;
-        mBlocksChangedTime = -1;
-        mFileSizeChangedTime = -1;
+    public void setTarget(File dir, long pendingBytes) {
+        mPendingBytes = pendingBytes;
+        mTargetDirectory = dir;
     }
 
     /**
-     * Returns how long (in seconds) we can continue recording.
+     * Starts or resumes sampling the recorder's output.
      */
-    public long timeRemaining() {
-        // Calculate how long we can record based on free disk space
-
-        StatFs fs = new StatFs(mSDCardDirectory.getAbsolutePath());
-        long blocks = fs.getAvailableBlocks();
-        long blockSize = fs.getBlockSize();
-        long now = System.currentTimeMillis();
+    public void start(final Recorder recorder) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mRecorder = recorder;
+                mRunning = true;
+                // the clock stood still while paused, start a new interval
+                mLastMillis = -1;
+                mHandler.removeCallbacks(mSample);
+                mSample.run();
+            }
+        });
+    }
 
-        if (mBlocksChangedTime == -1 || blocks != mLastBlocks) {
-            mBlocksChangedTime = now;
-            mLastBlocks = blocks;
-        }
+    /**
+     * Stops sampling, keeping the average for a resume.
+     */
+    public void stop() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mSample);
+            }
+        });
+    }
 
-        /*
-         * The calculation below always leaves one free block, since free space
-         * in the block we're currently writing to is not added. This last block
-         * might get nibbled when we close and flush the file, but we won't run
-         * out of disk.
-         */
+    /**
+     * Stops sampling and forgets the recording.
+     */
+    public void reset() {
+        mEstimate = null;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mSample);
+                mRecorder = null;
+                mBytesPerSecond = -1;
+                mLastMillis = -1;
+                mEstimate = null;
+            }
+        });
+    }
 
-        // at mBlocksChangedTime we had this much time
-        long result = mLastBlocks * blockSize / mBytesPerSecond;
-        // so now we have this much time
-        result -= (now - mBlocksChangedTime) / 1000;
+    public void release() {
+        reset();
+        mThread.quitSafely();
+    }
 
-        if (mRecordingFile == null) {
-            mCurrentLowerLimit = DISK_SPACE_LIMIT;
-            return result;
+    private final Runnable mSample = new Runnable() {
+        public void run() {
+            if (!mRunning)
+                return;
+            mHandler.postDelayed(this, sample());
         }
+    };
 
-        // If we have a recording file set, we calculate a second estimate
-        // based on how long it will take us to reach mMaxBytes.
-
-        mRecordingFile = new File(mRecordingFile.getAbsolutePath());
-        long fileSize = mRecordingFile.length();
-        if (mFileSizeChangedTime == -1 || fileSize != mLastFileSize) {
-            mFileSizeChangedTime = now;
-            mLastFileSize = fileSize;
+    /*
+     * Updates the average and the estimate, and returns when to look again.
+     */
+    private long sample() {
+        Recorder recorder = mRecorder;
+        long now = recorder.progressMillis();
+        long bytes = recorder.bytesWritten();
+        if (bytes < 0) {
+            File file = mRecordingFile;
+            if (file == null)
+                file = recorder.sampleFile();
+            bytes = file != null ? file.length() : 0;
         }
 
-        long result2 = (mMaxBytes - fileSize) / mBytesPerSecond;
-        result2 -= (now - mFileSizeChangedTime) / 1000;
-        result2 -= 1; // just for safety
+        if (mBytesPerSecond < 0)
+            mBytesPerSecond = mNominalBytesPerSecond;
+        // a new part after a rollover starts from zero again
+        if (mLastMillis >= 0 && now > mLastMillis && bytes >= mLastBytes) {
+            long elapsed = now - mLastMillis;
+            double rate = (bytes - mLastBytes) * 1000.0 / elapsed;
+            double alpha = 1 - Math.exp(-elapsed / EWMA_MILLIS);
+            mBytesPerSecond += alpha * (rate - mBytesPerSecond);
+        }
+        mLastMillis = now;
+        mLastBytes = bytes;
+        double share = Math.max(MIN_RATE_SHARE, recorder.speechFraction());
+        double rate = Math.max(1, Math.max(mBytesPerSecond,
+                mNominalBytesPerSecond * share));
 
-        mCurrentLowerLimit = result < result2 ? DISK_SPACE_LIMIT
-                : FILE_SIZE_LIMIT;
+        /*
+         * Always leaves one free block, since free space in the block we're
+         * currently writing to is not added. This last block might get
+         * nibbled when we close and flush the file, but we won't run out of
+         * disk.
+         */
+        StatFs fs = new StatFs(mDirectory.getAbsolutePath());
+        long free = Math.max(0, fs.getAvailableBytes() - fs.getBlockSizeLong());
+        File target = mTargetDirectory;
+        if (target != null && target.isDirectory())
+            free = Math.min(free, Math.max(0, target.getUsableSpace()
+                    - mPendingBytes));
+        long seconds = (long) (free / rate);
+        int limit = DISK_SPACE_LIMIT;
+
+        long maxBytes = mMaxBytes;
+        if (maxBytes > 0) {
+            long fileSeconds = (long) ((maxBytes - bytes) / rate);
+            if (fileSeconds <= seconds) {
+                seconds = fileSeconds;
+                limit = FILE_SIZE_LIMIT;
+            }
+        }
+        mEstimate = new Estimate(seconds, now, limit);
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, seconds * 1000
+                / CADENCE_DIVISOR));
+    }
 
-        return Math.min(result, result2);
+    /**
+     * Returns how long (in seconds) we can continue recording, from the last
+     * estimate. Only reads fields, fine on the UI thread.
+     *
+     * @param now the recording clock in milliseconds, which doesn't move
+     *            while paused or jump with the wall clock
+     */
+    public long timeRemaining(long now) {
+        Estimate estimate = mEstimate;
+        if (estimate == null)
+            return Long.MAX_VALUE;
+        return estimate.mSeconds - Math.max(0, now - estimate.mAt) / 1000;
     }
 
     /**
@@ -178,25 +283,17 @@ class RemainingTimeCalculator {
      * display the correct message to the user when we hit one of the limits.
      */
     public int currentLowerLimit() {
-        return mCurrentLowerLimit;
+        Estimate estimate = mEstimate;
+        return estimate != null ? estimate.mLimit : UNKNOWN_LIMIT;
     }
 
     /**
-     * Is there any point of trying to start recording?
-     */
-    public boolean diskSpaceAvailable() {
-        StatFs fs = new StatFs(mSDCardDirectory.getAbsolutePath());
-        // keep one free block
-        return fs.getAvailableBlocks() > 1;
-    }
-
-    /**
-     * Sets the bit rate used in the interpolation.
+     * Sets the bit rate the throughput average starts from.
      *
      * @param bitRate the bit rate to set in bits/sec.
      */
     public void setBitRate(int bitRate) {
-        mBytesPerSecond = bitRate / 8;
+        mNominalBytesPerSecond = Math.max(1, bitRate / 8);
     }
 }
 
@@ -207,16 +304,35 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
     static final String RECORDER_STATE_KEY = "recorder_state";
     static final String SAMPLE_INTERRUPTED_KEY = "sample_interrupted";
     static final String MAX_FILE_SIZE_KEY = "max_file_size";
+    static final String PREF_PRE_ROLL = "pre_roll";
+    static final int PRE_ROLL_SECONDS = 30;
+    static final String PREF_SKIP_SILENCE = "skip_silence";
+    static final String PREF_SPLIT = "split";
+    // when recordings are synced to the device, one of the SYNC_ choices
+    static final String PREF_SYNC = "sync";
+    static final int SYNC_SECOND = 0;
+    static final int SYNC_MEGABYTE = 1;
+    static final int SYNC_CLOSE = 2;
+    // the type picked last time, prewarmed for the next recording
+    static final String PREF_LAST_TYPE = "last_type";
+    // long recordings continue in a new file after an hour or 50MB
+    static final long SPLIT_MILLIS = 60 * 60 * 1000L;
+    static final long SPLIT_BYTES = 50 * 1024 * 1024L;
 
     private static final String ACTION_SOUNDRECORDER_PAUSE = "com.android.soundercorder.soundercorder.pause";
 
     static final String AUDIO_3GPP = "audio/3gpp";
     static final String AUDIO_AMR = "audio/amr";
+    static final String AUDIO_WAV = "audio/x-wav";
+    static final String AUDIO_FLAC = "audio/flac";
     static final String AUDIO_ANY = "audio/*";
     static final String ANY_ANY = "*/*";
 
     static final int BITRATE_AMR = 5900; // bits/sec
     static final int BITRATE_3GPP = 5900;
+    static final int BITRATE_WAV = PcmCapture.SAMPLE_RATE * 16;
+    // lossless speech comes to about half of WAV
+    static final int BITRATE_FLAC = BITRATE_WAV / 2;
     private static final int START_RECORDING_DIALOG_SHOW = 1;
 
     private static String EXTERNAL_SDCARD = "";
@@ -251,6 +367,27 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
     public Object mEmptyLock = new Object();
     long mMaxFileSize = -1; // can be specified in the intent
     RemainingTimeCalculator mRemainingTimeCalculator;
+    // once per failing stretch, not once per file and pass
+    private volatile boolean mMoveFailureShown;
+    private final StorageMigrator.OnMovedListener mOnMoved = new StorageMigrator.OnMovedListener() {
+        public void onMoved(File from, File to) {
+            mMoveFailureShown = false;
+        }
+
+        public void onMoveFailed(File staged, final File targetDir,
+                IOException e) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    if (mMoveFailureShown)
+                        return;
+                    mMoveFailureShown = true;
+                    Toast.makeText(SoundRecorder.this, getString(
+                            R.string.move_failed, targetDir.getPath()),
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    };
 
     String mTimerFormat;
     final Handler mHandler = new Handler();
@@ -334,12 +471,13 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             if (s != null) {
                 isRequestType = true;
             }
-            if (AUDIO_AMR.equals(s) || AUDIO_3GPP.equals(s)) {
+            if (AUDIO_AMR.equals(s) || AUDIO_3GPP.equals(s)
+                    || AUDIO_WAV.equals(s) || AUDIO_FLAC.equals(s)) {
                 mRequestedType = s;
             } else if (AUDIO_ANY.equals(s)) {
                 mRequestedType = AUDIO_AMR;
             } else if (s != null) {
-                // we only support amr and 3gpp formats right now
+                // we only support amr, 3gpp, wav and flac formats right now
                 setResult(RESULT_CANCELED);
                 finish();
                 return;
@@ -383,7 +521,14 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                 .setCancelable(true).create();
         mRecorder = new Recorder(this);
         mRecorder.setOnStateChangedListener(this);
-        mRemainingTimeCalculator = new RemainingTimeCalculator();
+        mRecorder.setPreRollSeconds(getPreferences(MODE_PRIVATE).getBoolean(
+                PREF_PRE_ROLL, false) ? PRE_ROLL_SECONDS : 0);
+        mRecorder.setSkipSilence(getPreferences(MODE_PRIVATE).getBoolean(
+                PREF_SKIP_SILENCE, false));
+        mRecorder.setSyncPolicy(syncPolicy(getPreferences(MODE_PRIVATE)
+                .getInt(PREF_SYNC, SYNC_MEGABYTE)));
+        mRemainingTimeCalculator = new RemainingTimeCalculator(
+                StorageMigrator.stagingDir(this));
 
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "SoundRecorder");
@@ -392,6 +537,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
 
         setResult(RESULT_CANCELED);
         registerExternalStorageListener();
+        StorageMigrator.get(this).addListener(mOnMoved);
         if (icycle != null) {
             Bundle recorderState = icycle.getBundle(RECORDER_STATE_KEY);
             if (recorderState != null) {
@@ -401,6 +547,9 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                 mMaxFileSize = recorderState.getLong(MAX_FILE_SIZE_KEY, -1);
             }
         }
+        // after restoreState, so a restored sample isn't recovered twice
+        RecordingRecovery.start(this);
+        WaveformBackfill.start(this, Recorder.sampleDir(SELECTED_PATH));
 
         updateUi();
     }
@@ -478,6 +627,8 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
         super.onResume();
         setActivityState(false);
         sdCardCheck();
+        mRecorder.arm();
+        prewarmRecorder();
         if (!haveEnoughStorage()) {
             if (mdialog != null) {
                 mdialog.show();
@@ -504,14 +655,6 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
         updateUi();
     }
 
-    private boolean isInExternalSDCard(String path) {
-        if (path == null) {
-            return false;
-        }
-
-        return isExternalStorageMounted() && path.startsWith(EXTERNAL_SDCARD);
-    }
-
     /**
      * * internal available space < 5% external availabel space < 50K return
      * false
@@ -520,14 +663,10 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
      */
     private boolean haveEnoughStorage() {
         boolean isEnough = true;
-        boolean isExternalUsed = isInExternalSDCard(SELECTED_PATH);
 
-        File savePath = null;
-        if (isExternalUsed) {
-            savePath = getExternalStorageDirectory();
-        } else {
-            savePath = getFilesDir();
-        }
+        // recordings are staged internally whatever the selected path, the
+        // recorder checks the target itself
+        File savePath = StorageMigrator.stagingDir(this).getParentFile();
 
         /*
          * if
@@ -667,13 +806,20 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             updateUi();
             if (mRecorder.state() == Recorder.IDLE_STATE)
                 mRecordButton.setImageResource(R.drawable.record);
-        } else if (!mRemainingTimeCalculator.diskSpaceAvailable()) {
-            mSampleInterrupted = true;
-            mErrorUiMessage = getResources()
-                    .getString(R.string.storage_is_full);
-            updateUi();
         } else {
             stopAudioPlayback();
+            if (!isRequestType) {
+                getPreferences(MODE_PRIVATE).edit()
+                        .putString(PREF_LAST_TYPE, mRequestedType).apply();
+            }
+            // a size limited request wants exactly one file
+            if (getPreferences(MODE_PRIVATE).getBoolean(PREF_SPLIT, false)
+                    && mMaxFileSize <= 0) {
+                mRecorder.setRollover(SPLIT_BYTES, SPLIT_MILLIS);
+            } else {
+                mRecorder.setRollover(0, 0);
+            }
+            mRecorder.setMaxBytes(mMaxFileSize > 0 ? mMaxFileSize : 0);
             if (AUDIO_AMR.equals(mRequestedType)) {
                 mRemainingTimeCalculator.setBitRate(BITRATE_AMR);
                 mRecorder.startRecording(MediaRecorder.OutputFormat.AMR_NB,
@@ -688,15 +834,43 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
 
                 openDisableKeyGuard();
 
+            } else if (AUDIO_WAV.equals(mRequestedType)) {
+                mRemainingTimeCalculator.setBitRate(BITRATE_WAV);
+                mRecorder.startRecording(Recorder.OUTPUT_FORMAT_WAV, ".wav",
+                        this, SELECTED_PATH);
+
+                openDisableKeyGuard();
+
+            } else if (AUDIO_FLAC.equals(mRequestedType)) {
+                mRemainingTimeCalculator.setBitRate(BITRATE_FLAC);
+                mRecorder.startRecording(Recorder.OUTPUT_FORMAT_FLAC, ".flac",
+                        this, SELECTED_PATH);
+
+                openDisableKeyGuard();
+
             } else {
                 throw new IllegalArgumentException(
                         "Invalid output file type requested");
             }
+        }
+    }
 
-            if (mMaxFileSize != -1 && mMaxFileSize != 0) {
-                mRemainingTimeCalculator.setFileSizeLimit(
-                        mRecorder.sampleFile(), mMaxFileSize);
-            }
+    /*
+     * Gets the type most likely recorded next ready while idle, so the tap
+     * only has to open the gate on the running capture.
+     */
+    private void prewarmRecorder() {
+        if (mRecorder.state() != Recorder.IDLE_STATE
+                || !isExternalStorageMounted() || !sdCard)
+            return;
+        String type = isRequestType ? mRequestedType : getPreferences(
+                MODE_PRIVATE).getString(PREF_LAST_TYPE, AUDIO_AMR);
+        if (AUDIO_AMR.equals(type)) {
+            mRecorder.prewarm(MediaRecorder.OutputFormat.AMR_NB, ".amr");
+        } else if (AUDIO_WAV.equals(type)) {
+            mRecorder.prewarm(Recorder.OUTPUT_FORMAT_WAV, ".wav");
+        } else if (AUDIO_FLAC.equals(type)) {
+            mRecorder.prewarm(Recorder.OUTPUT_FORMAT_FLAC, ".flac");
         }
     }
 
@@ -719,6 +893,10 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                         R.string.record_3gpp);
                 String recordamr = getResources()
                         .getString(R.string.record_amr);
+                String recordWav = getResources()
+                        .getString(R.string.record_wav);
+                String recordFlac = getResources()
+                        .getString(R.string.record_flac);
                 AlertDialog dialog = new AlertDialog.Builder(SoundRecorder.this)
                         .setOnCancelListener(
                                 new DialogInterface.OnCancelListener() {
@@ -729,7 +907,8 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                                                     .setImageResource(R.drawable.record);
                                     }
                                 })
-                        .setItems(new String[]{record3Gpp, recordamr},
+                        .setItems(new String[]{record3Gpp, recordamr, recordWav,
+                                        recordFlac},
                                 new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog,
                                                         int which) {
@@ -742,6 +921,13 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                                                 break;
                                             case 1:
                                                 m.obj = AUDIO_AMR;
+                                                break;
+                                            case 2:
+                                                m.obj = AUDIO_WAV;
+                                                break;
+                                            case 3:
+                                                m.obj = AUDIO_FLAC;
+                                                break;
                                             default:
                                                 m.obj = AUDIO_AMR;
                                         }
@@ -817,7 +1003,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                     Toast.LENGTH_SHORT).show();
         }
         mRecorder.mSampleFile = null;
-        mRecorder.mSampleLength = 0;
+        mRecorder.mSampleMillis = 0;
         updateUi();
     }
 
@@ -826,7 +1012,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                 Toast.LENGTH_SHORT).show();
 
         mRecorder.mSampleFile = null;
-        mRecorder.mSampleLength = 0;
+        mRecorder.mSampleMillis = 0;
         updateUi();
     }
 
@@ -906,6 +1092,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             mRecorder.stop();
             mRecordButton.setImageResource(R.drawable.record);
         }
+        mRecorder.disarm();
         super.onPause();
     }
 
@@ -934,6 +1121,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
      */
     @Override
     public void onDestroy() {
+        StorageMigrator.get(this).removeListener(mOnMoved);
         if (mSDCardMountEventReceiver != null) {
             unregisterReceiver(mSDCardMountEventReceiver);
             mSDCardMountEventReceiver = null;
@@ -941,6 +1129,8 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
         if (mdialog != null) {
             mdialog.dismiss();
         }
+        mRecorder.release();
+        mRemainingTimeCalculator.release();
         super.onDestroy();
     }
 
@@ -955,10 +1145,12 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                 public void onReceive(Context context, Intent intent) {
                     String action = intent.getAction();
                     if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
+                        // recordings are staged on internal flash, the
+                        // current one keeps going and moves once it's back
                         sdCard = false;
-                        mRecorder.delete();
-                        mRecordButton.setImageResource(R.drawable.record);
+                        updateUi();
                     } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
+                        StorageMigrator.get(context).migrate();
                         mSampleInterrupted = false;
                         sdCard = true;
                         mErrorUiMessage = null;
@@ -974,122 +1166,12 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
         }
     }
 
-    /*
-     * A simple utility to do a query into the databases.
-     */
-    private Cursor query(Uri uri, String[] projection, String selection,
-                         String[] selectionArgs, String sortOrder) {
-        try {
-            ContentResolver resolver = getContentResolver();
-            if (resolver == null) {
-                return null;
-            }
-            return resolver.query(uri, projection, selection, selectionArgs,
-                    sortOrder);
-        } catch (UnsupportedOperationException ex) {
-            return null;
-        }
-    }
-
-    /*
-     * Add the given audioId to the playlist with the given playlistId; and
-     * maintain the play_order in the playlist.
-     */
-    private void addToPlaylist(ContentResolver resolver, int audioId,
-                               long playlistId) {
-        String[] cols = new String[]{"count(*)"};
-        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                playlistId);
-        Cursor cur = resolver.query(uri, cols, null, null, null);
-        cur.moveToFirst();
-        final int base = cur.getInt(0);
-        cur.close();
-        ContentValues values = new ContentValues();
-        values.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                Integer.valueOf(base + audioId));
-        values.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioId);
-        resolver.insert(uri, values);
-    }
-
-    /*
-     * Obtain the id for the default play list from the audio_playlists table.
-     */
-    private int getPlaylistId(Resources res) {
-        Uri uri = MediaStore.Audio.Playlists.getContentUri("external");
-        final String[] ids = new String[]{MediaStore.Audio.Playlists._ID};
-        final String where = MediaStore.Audio.Playlists.NAME + "=?";
-        final String[] args = new String[]{res
-                .getString(R.string.audio_db_playlist_name)};
-        Cursor cursor = query(uri, ids, where, args, null);
-        if (cursor == null) {
-            Log.v(TAG, "query returns null");
-        }
-        int id = -1;
-        if (cursor != null) {
-            cursor.moveToFirst();
-            if (!cursor.isAfterLast()) {
-                id = cursor.getInt(0);
-            }
-        }
-        cursor.close();
-        return id;
-    }
-
-    /*
-     * Create a playlist with the given default playlist name, if no such
-     * playlist exists.
-     */
-    private Uri createPlaylist(Resources res, ContentResolver resolver) {
-        ContentValues cv = new ContentValues();
-        cv.put(MediaStore.Audio.Playlists.NAME,
-                res.getString(R.string.audio_db_playlist_name));
-        Uri uri = resolver.insert(
-                MediaStore.Audio.Playlists.getContentUri("external"), cv);
-        if (uri == null) {
-            new AlertDialog.Builder(this).setTitle(R.string.app_name)
-                    .setMessage(R.string.error_mediadb_new_record)
-                    .setPositiveButton(R.string.button_ok, null)
-                    .setCancelable(false).show();
-        }
-        return uri;
-    }
-
     /*
      * Adds file and returns content uri.
      */
     private Uri addToMediaDB(File file) {
-        if (file == null)
-            return null;
-
-        Resources res = getResources();
-        ContentValues cv = new ContentValues();
-        long current = System.currentTimeMillis();
-        long modDate = file.lastModified();
-        Date date = new Date(current);
-        SimpleDateFormat formatter = new SimpleDateFormat(
-                res.getString(R.string.audio_db_title_format));
-        String title = formatter.format(date);
-        long sampleLengthMillis = mRecorder.sampleLength() * 1000L;
-
-        // Lets label the recorded audio file as NON-MUSIC so that the file
-        // won't be displayed automatically, except for in the playlist.
-        cv.put(MediaStore.Audio.Media.IS_MUSIC, "1");
-
-        cv.put(MediaStore.Audio.Media.TITLE, title);
-        cv.put(MediaStore.Audio.Media.DATA, file.getAbsolutePath());
-        cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (current / 1000));
-        cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (modDate / 1000));
-        cv.put(MediaStore.Audio.Media.DURATION, sampleLengthMillis);
-        cv.put(MediaStore.Audio.Media.MIME_TYPE, mRequestedType);
-        cv.put(MediaStore.Audio.Media.ARTIST,
-                res.getString(R.string.audio_db_artist_name));
-        cv.put(MediaStore.Audio.Media.ALBUM,
-                res.getString(R.string.audio_db_album_name));
-        Log.d(TAG, "Inserting audio record: " + cv.toString());
-        ContentResolver resolver = getContentResolver();
-        Uri base = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        Log.d(TAG, "ContentURI: " + base);
-        Uri result = resolver.insert(base, cv);
+        Uri result = MediaDbHelper.insert(this, file,
+                mRecorder.sampleFileMillis(), mRequestedType);
         if (result == null) {
             new AlertDialog.Builder(this).setTitle(R.string.app_name)
                     .setMessage(R.string.error_mediadb_new_record)
@@ -1097,15 +1179,7 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                     .setCancelable(false).show();
             return null;
         }
-        if (getPlaylistId(res) == -1) {
-            createPlaylist(res, resolver);
-        }
-        int audioId = Integer.valueOf(result.getLastPathSegment());
-        addToPlaylist(resolver, audioId, getPlaylistId(res));
-
-        // Notify those applications such as Music listening to the
-        // scanner events that a recorded audio file just created.
-        sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, result));
+        mRecorder.sampleSaved();
         return result;
     }
 
@@ -1121,17 +1195,18 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                 || state == Recorder.PLAYING_STATE
                 || state == Recorder.SUSPENDED_STATE;
 
-        long time = ongoing ? mRecorder.progress() : mRecorder.sampleLength();
-        if (mRecorder.progress() > mRecorder.sampleLength()
-                && state == Recorder.PLAYING_STATE)
-            time = mRecorder.sampleLength();
+        long millis = ongoing ? mRecorder.progressMillis() : mRecorder
+                .sampleMillis();
+        if (state == Recorder.PLAYING_STATE)
+            millis = Math.min(millis, mRecorder.sampleMillis());
+        long time = millis / 1000;
         String timeStr = String.format(mTimerFormat, time / 60, time % 60);
         mTimerView.setText(timeStr);
 
         if (state == Recorder.PLAYING_STATE) {
-            if (mRecorder.sampleLength() != 0) {
-                mStateProgressBar.setProgress((int) (100 * time / mRecorder
-                        .sampleLength()));
+            if (mRecorder.sampleMillis() != 0) {
+                mStateProgressBar.setProgress((int) (100 * millis / mRecorder
+                        .sampleMillis()));
             } else {
                 mStateProgressBar.setProgress(mStateProgressBar.getMax());
             }
@@ -1149,12 +1224,26 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
      * If we've run out of time, stop the recording.
      */
     private void updateTimeRemaining() {
-        long t = mRemainingTimeCalculator.timeRemaining();
+        long t = mRemainingTimeCalculator.timeRemaining(mRecorder
+                .progressMillis());
+        int limit = mRemainingTimeCalculator.currentLowerLimit();
         // t = 5;
+        if (mRecorder.storageFull()) {
+            // the space reserved so far is used up
+            t = 0;
+            limit = RemainingTimeCalculator.DISK_SPACE_LIMIT;
+        } else if (mRecorder.sizeLimitReached()) {
+            // the last frame that fits is written
+            t = 0;
+            limit = RemainingTimeCalculator.FILE_SIZE_LIMIT;
+        } else if (limit == RemainingTimeCalculator.FILE_SIZE_LIMIT
+                || mRecorder.reservesSpace()) {
+            // only an estimate, keep going until the recorder is full
+            t = Math.max(1, t);
+        }
         if (t <= 0) {
             mSampleInterrupted = true;
 
-            int limit = mRemainingTimeCalculator.currentLowerLimit();
             switch (limit) {
                 case RemainingTimeCalculator.DISK_SPACE_LIMIT:
                     mErrorUiMessage = getResources().getString(
@@ -1324,9 +1413,20 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
      * Called when Recorder changed it's state.
      */
     public void onStateChanged(int state) {
-        if (state == Recorder.SUSPENDED_STATE || state == Recorder.IDLE_STATE) {
+        if (state == Recorder.SUSPENDED_STATE) {
+            mRemainingTimeCalculator.stop();
+        } else if (state == Recorder.IDLE_STATE) {
             mRemainingTimeCalculator.reset();
         }
+        // the recorder picks the file once the recording has started
+        if (state == Recorder.RECORDING_STATE) {
+            if (mMaxFileSize != -1 && mMaxFileSize != 0)
+                mRemainingTimeCalculator.setFileSizeLimit(
+                        mRecorder.sampleFile(), mMaxFileSize);
+            mRemainingTimeCalculator.setTarget(Recorder.sampleDir(SELECTED_PATH),
+                    StorageMigrator.get(this).pendingBytes());
+            mRemainingTimeCalculator.start(mRecorder);
+        }
 
         synchronized (mEmptyLock) {
             if (mIsPaused) {
@@ -1348,6 +1448,8 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
                         mWakeLock.release();
                         cancleDisableKeyGuard();
                     }
+                    if (state == Recorder.IDLE_STATE)
+                        prewarmRecorder();
                 }
             }
             updateUi();
@@ -1372,6 +1474,9 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             case Recorder.INTERNAL_ERROR:
                 message = res.getString(R.string.error_app_internal);
                 break;
+            case Recorder.STORAGE_FULL_ERROR:
+                message = res.getString(R.string.storage_is_full);
+                break;
         }
         if (message != null) {
             new AlertDialog.Builder(this).setTitle(R.string.app_name)
@@ -1389,8 +1494,6 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             Bundle bundle = null;
             if (data != null && (bundle = data.getExtras()) != null) {
                 SELECTED_PATH = bundle.getString("file");
-                mRemainingTimeCalculator
-                        .chooseSDCard(isInExternalSDCard(SELECTED_PATH));
             }
         }
     }
@@ -1403,6 +1506,51 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(R.id.menu_pre_roll).setChecked(
+                mRecorder.preRollSeconds() > 0);
+        menu.findItem(R.id.menu_skip_silence).setChecked(
+                mRecorder.skipSilence());
+        menu.findItem(R.id.menu_split).setChecked(getPreferences(MODE_PRIVATE)
+                .getBoolean(PREF_SPLIT, false));
+        switch (getPreferences(MODE_PRIVATE).getInt(PREF_SYNC,
+                SYNC_MEGABYTE)) {
+            case SYNC_SECOND:
+                menu.findItem(R.id.menu_sync_second).setChecked(true);
+                break;
+            case SYNC_CLOSE:
+                menu.findItem(R.id.menu_sync_close).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.menu_sync_megabyte).setChecked(true);
+                break;
+        }
+        return true;
+    }
+
+    /*
+     * Every second keeps a power loss to a second or two of audio, on close
+     * only saves the most battery.
+     */
+    static WriteBehindOutput.Policy syncPolicy(int choice) {
+        switch (choice) {
+            case SYNC_SECOND:
+                return WriteBehindOutput.Policy.everySeconds(1);
+            case SYNC_CLOSE:
+                return WriteBehindOutput.Policy.onClose();
+            default:
+                return WriteBehindOutput.Policy.everyBytes(1024 * 1024);
+        }
+    }
+
+    private void setSync(MenuItem item, int choice) {
+        item.setChecked(true);
+        getPreferences(MODE_PRIVATE).edit().putInt(PREF_SYNC, choice).apply();
+        mRecorder.setSyncPolicy(syncPolicy(choice));
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Intent intent = null;
@@ -1413,6 +1561,35 @@ public class SoundRecorder extends AppCompatActivity implements Button.OnClickLi
             case R.id.menu_set_save_path:
                 intent = new Intent(SoundRecorder.this, PathSelect.class);
                 break;
+            case R.id.menu_pre_roll:
+                boolean enabled = !item.isChecked();
+                item.setChecked(enabled);
+                getPreferences(MODE_PRIVATE).edit()
+                        .putBoolean(PREF_PRE_ROLL, enabled).apply();
+                mRecorder.setPreRollSeconds(enabled ? PRE_ROLL_SECONDS : 0);
+                prewarmRecorder();
+                return true;
+            case R.id.menu_skip_silence:
+                boolean skip = !item.isChecked();
+                item.setChecked(skip);
+                getPreferences(MODE_PRIVATE).edit()
+                        .putBoolean(PREF_SKIP_SILENCE, skip).apply();
+                mRecorder.setSkipSilence(skip);
+                return true;
+            case R.id.menu_split:
+                item.setChecked(!item.isChecked());
+                getPreferences(MODE_PRIVATE).edit()
+                        .putBoolean(PREF_SPLIT, item.isChecked()).apply();
+                return true;
+            case R.id.menu_sync_second:
+                setSync(item, SYNC_SECOND);
+                return true;
+            case R.id.menu_sync_megabyte:
+                setSync(item, SYNC_MEGABYTE);
+                return true;
+            case R.id.menu_sync_close:
+                setSync(item, SYNC_CLOSE);
+                return true;
             default:
                 break;
         }
@@ -0,0 +1,482 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Recordings are written to a staging directory on internal flash and moved
+ * to the directory the user picked once finished, so a slow or stalling SD
+ * card never holds up capture. The staging directory is the app's own one
+ * on the primary shared volume, so the media database and whoever gets a
+ * recording's uri can read it before it is moved. Every staged file has a
+ * small record naming its target; a pass renames each finished one there
+ * if it is on the same volume, otherwise copies it, throttled and resuming
+ * a partial copy, and verifies both sides by checksum. Then it moves the
+ * sidecars, points the media database at the new path and deletes the
+ * staged file. Files still in the {@link RecordingJournal} are left for a
+ * later pass.
+ */
+class StorageMigrator {
+	static final String TAG = "StorageMigrator";
+
+	private static final String SUFFIX = ".mig";
+	private static final int CHUNK_BYTES = 256 * 1024;
+	// copying and reading back, well below what a slow card takes
+	static final long BYTES_PER_SECOND = 4 * 1024 * 1024;
+	// how often a held pass looks again
+	private static final long HOLD_MILLIS = 1000;
+	// failed passes before a file's move is reported, running out of room
+	// is reported right away
+	static final int REPORT_AFTER_FAILURES = 3;
+
+	private static StorageMigrator sInstance;
+
+	public interface OnMovedListener {
+		/**
+		 * A staged recording is in place at its target. Called on the
+		 * migration thread before the staged file is deleted.
+		 */
+		public void onMoved(File from, File to);
+
+		/**
+		 * Moving a staged recording keeps failing, or its target is out of
+		 * room. It stays staged. Called on the migration thread.
+		 */
+		public void onMoveFailed(File staged, File targetDir, IOException e);
+	}
+
+	private final File mStagingDir;
+	private final File mRecordDir;
+	private final RecordingJournal mJournal;
+	private final long mBytesPerSecond;
+	private final ExecutorService mExecutor;
+	private final AtomicBoolean mPending = new AtomicBoolean();
+	private final List<OnMovedListener> mListeners = new CopyOnWriteArrayList<OnMovedListener>();
+	private volatile boolean mHeld;
+	// failed passes by staged file, migration thread only
+	private final HashMap<File, Integer> mFailures = new HashMap<File, Integer>();
+
+	StorageMigrator(File stagingDir, File recordDir, RecordingJournal journal,
+			long bytesPerSecond) {
+		mStagingDir = stagingDir;
+		mRecordDir = recordDir;
+		mJournal = journal;
+		mBytesPerSecond = bytesPerSecond;
+		if (!mRecordDir.isDirectory() && !mRecordDir.mkdirs())
+			Log.e(TAG, "can't create " + mRecordDir);
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, TAG);
+			}
+		});
+	}
+
+	/**
+	 * The migrator of this process, which keeps the media database in step.
+	 */
+	public static synchronized StorageMigrator get(Context context) {
+		if (sInstance == null) {
+			final Context app = context.getApplicationContext();
+			sInstance = new StorageMigrator(stagingDir(app), new File(
+					app.getFilesDir(), "migrate"), new RecordingJournal(
+					RecordingRecovery.journalDir(app)), BYTES_PER_SECOND);
+			sInstance.addListener(new OnMovedListener() {
+				public void onMoved(File from, File to) {
+					MediaDbHelper.move(app, from, to);
+				}
+
+				public void onMoveFailed(File staged, File targetDir,
+						IOException e) {
+				}
+			});
+		}
+		return sInstance;
+	}
+
+	/*
+	 * The first of the app's external directories is on the primary volume,
+	 * which is internal flash; the card's own would bring the card back into
+	 * capture. Without shared storage the recorder can't start anyway.
+	 */
+	static File stagingDir(Context context) {
+		File[] dirs = context.getExternalFilesDirs(null);
+		File base = dirs.length > 0 && dirs[0] != null ? dirs[0] : context
+				.getFilesDir();
+		return new File(base, "staging");
+	}
+
+	File stagingDir() {
+		return mStagingDir;
+	}
+
+	public void addListener(OnMovedListener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(OnMovedListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Pauses copying between chunks, e.g. while recording.
+	 */
+	public void hold(boolean held) {
+		mHeld = held;
+	}
+
+	/**
+	 * Records where a staged file goes once finished.
+	 */
+	public void assign(File staged, File targetDir) {
+		try {
+			writeRecord(staged, targetDir, null);
+		} catch (IOException e) {
+			// stays in staging until it is assigned again
+			Log.w(TAG, "can't record target of " + staged + ": " + e);
+		}
+	}
+
+	/**
+	 * Forgets where a staged file was to go, once it was deleted.
+	 */
+	public void unassign(File staged) {
+		recordFile(staged).delete();
+	}
+
+	/**
+	 * The directory a staged file goes to, or null if it isn't staged.
+	 */
+	public File targetOf(File staged) {
+		File[] record = readRecord(recordFile(staged));
+		return record != null ? record[0] : null;
+	}
+
+	/**
+	 * Bytes of finished recordings still waiting to be moved.
+	 */
+	public long pendingBytes() {
+		long bytes = 0;
+		File[] files = mRecordDir.listFiles();
+		if (files == null)
+			return 0;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.endsWith(SUFFIX))
+				bytes += new File(mStagingDir, name.substring(0, name.length()
+						- SUFFIX.length())).length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Free space where a target directory is, or Long.MAX_VALUE while it
+	 * can't be created, e.g. the card is out, and a move would just wait.
+	 */
+	static long usableSpace(File dir) {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return Long.MAX_VALUE;
+		return dir.getUsableSpace();
+	}
+
+	/**
+	 * Queues a pass over the staged files unless one is queued already.
+	 */
+	public void migrate() {
+		if (!mPending.compareAndSet(false, true))
+			return;
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				mPending.set(false);
+				migrateAll();
+			}
+		});
+	}
+
+	/*
+	 * One pass, on the migration thread. Whatever fails is tried again on
+	 * the next one.
+	 */
+	void migrateAll() {
+		File[] files = mRecordDir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.endsWith(SUFFIX))
+				continue;
+			File staged = new File(mStagingDir, name.substring(0,
+					name.length() - SUFFIX.length()));
+			File[] record = readRecord(f);
+			// renamed by a pass that was cut short, or deleted
+			boolean finish = record != null && record[1] != null
+					&& record[1].exists();
+			if (record == null || (!staged.exists() && !finish)) {
+				f.delete();
+				continue;
+			}
+			if (mJournal.isTracked(staged))
+				continue;
+			try {
+				move(staged, record[0], record[1]);
+				f.delete();
+				mFailures.remove(staged);
+			} catch (InterruptedIOException e) {
+				return;
+			} catch (IOException e) {
+				Log.w(TAG, "can't move " + staged + " to " + record[0] + ": "
+						+ e);
+				failed(staged, record[0], e);
+			}
+		}
+	}
+
+	private void failed(File staged, File dir, IOException e) {
+		Integer count = mFailures.get(staged);
+		count = count != null ? count + 1 : 1;
+		mFailures.put(staged, count);
+		if (count >= REPORT_AFTER_FAILURES
+				|| e instanceof Preallocator.NoSpaceException) {
+			for (OnMovedListener listener : mListeners)
+				listener.onMoveFailed(staged, dir, e);
+		}
+	}
+
+	/*
+	 * Renames the file when the target is on the same volume. Otherwise
+	 * copies to a hidden part file, which a previous pass may have started,
+	 * and renames that into place once its checksum matches. The final name
+	 * goes into the record first, so a pass cut short after either rename
+	 * picks up from there.
+	 */
+	private void move(File staged, File dir, File moved) throws IOException {
+		if (moved == null || !moved.exists()) {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("can't create " + dir);
+			File part = new File(dir, "." + staged.getName() + ".part");
+			if (!part.exists()) {
+				moved = freeName(dir, staged.getName());
+				writeRecord(staged, dir, moved);
+				if (staged.renameTo(moved)) {
+					finish(staged, moved);
+					return;
+				}
+			}
+			long length = staged.length();
+			long modified = staged.lastModified();
+			// the copy must not eat the room the card has left
+			if (usableSpace(dir) - part.length() < length
+					+ Preallocator.MIN_START_BYTES)
+				throw new Preallocator.NoSpaceException("no room for "
+						+ length + " bytes in " + dir);
+			copy(staged, part);
+			if (checksum(staged) != checksum(part)) {
+				part.delete();
+				throw new IOException("checksum mismatch");
+			}
+			if (staged.length() != length
+					|| staged.lastModified() != modified) {
+				part.delete();
+				throw new IOException("changed while copying");
+			}
+			moved = freeName(dir, staged.getName());
+			writeRecord(staged, dir, moved);
+			if (!part.renameTo(moved))
+				throw new IOException("can't rename " + part);
+		}
+		finish(staged, moved);
+	}
+
+	private void finish(File staged, File moved) {
+		moveSidecar(Waveform.sidecar(staged), Waveform.sidecar(moved));
+		moveSidecar(AmrIndex.sidecar(staged), AmrIndex.sidecar(moved));
+		moveSidecar(VoiceActivityDetector.indexFile(staged),
+				VoiceActivityDetector.indexFile(moved));
+		for (OnMovedListener listener : mListeners)
+			listener.onMoved(staged, moved);
+		staged.delete();
+		Log.i(TAG, "moved " + staged + " to " + moved);
+	}
+
+	private static File freeName(File dir, String name) {
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String suffix = dot > 0 ? name.substring(dot) : "";
+		File result = new File(dir, name);
+		for (int i = 1; result.exists(); i++)
+			result = new File(dir, base + "-" + i + suffix);
+		return result;
+	}
+
+	/*
+	 * Appends to what part holds already, less its last chunk which a
+	 * pulled card may have left torn, and syncs it.
+	 */
+	private void copy(File from, File part) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(from, "r");
+		try {
+			RandomAccessFile out = new RandomAccessFile(part, "rw");
+			try {
+				long length = in.length();
+				long pos = Math.max(0, Math.min(out.length(), length)
+						- CHUNK_BYTES);
+				if (pos > 0)
+					Log.i(TAG, "resuming " + part + " at " + pos);
+				out.setLength(pos);
+				FileChannel src = in.getChannel();
+				FileChannel dst = out.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+				long start = System.nanoTime();
+				long done = 0;
+				while (pos < length) {
+					buffer.clear();
+					int n = src.read(buffer, pos);
+					if (n < 0)
+						throw new IOException("short read at " + pos);
+					buffer.flip();
+					while (buffer.hasRemaining())
+						dst.write(buffer, pos + buffer.position());
+					pos += n;
+					done += n;
+					pace(start, done);
+				}
+				dst.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] b = new byte[CHUNK_BYTES];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			long start = System.nanoTime();
+			long done = 0;
+			int n;
+			while ((n = in.read(b)) > 0) {
+				crc.update(b, 0, n);
+				done += n;
+				pace(start, done);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/*
+	 * Sleeps until done bytes since start are within the rate, and for as
+	 * long as the migrator is held.
+	 */
+	private void pace(long start, long done) throws IOException {
+		try {
+			long ahead = done * 1000 / mBytesPerSecond
+					- (System.nanoTime() - start) / 1000000;
+			if (ahead > 0)
+				Thread.sleep(ahead);
+			while (mHeld)
+				Thread.sleep(HOLD_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("migration interrupted");
+		}
+	}
+
+	/*
+	 * Sidecars can be rebuilt, so one that won't move is only logged.
+	 */
+	private static void moveSidecar(File from, File to) {
+		if (!from.exists() || from.renameTo(to))
+			return;
+		try {
+			FileInputStream in = new FileInputStream(from);
+			try {
+				FileOutputStream out = new FileOutputStream(to);
+				try {
+					in.getChannel().transferTo(0, from.length(),
+							out.getChannel());
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			from.delete();
+		} catch (IOException e) {
+			Log.w(TAG, "can't move " + from + ": " + e);
+			to.delete();
+		}
+	}
+
+	private File recordFile(File staged) {
+		return new File(mRecordDir, staged.getName() + SUFFIX);
+	}
+
+	/*
+	 * The target directory and, once renamed into place, the moved file.
+	 * Written aside and renamed, so a record is never torn.
+	 */
+	private void writeRecord(File staged, File dir, File moved)
+			throws IOException {
+		File f = recordFile(staged);
+		File tmp = new File(mRecordDir, f.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeUTF(dir.getAbsolutePath());
+			out.writeUTF(moved != null ? moved.getAbsolutePath() : "");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("can't write " + f);
+		}
+	}
+
+	private static File[] readRecord(File f) {
+		if (!f.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(f)));
+			try {
+				File dir = new File(in.readUTF());
+				String moved = in.readUTF();
+				return new File[] { dir,
+						moved.length() > 0 ? new File(moved) : null };
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unreadable record " + f + ": " + e);
+			return null;
+		}
+	}
+}
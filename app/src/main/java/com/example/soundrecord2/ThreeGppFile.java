@@ -0,0 +1,852 @@
+package com.example.soundrecord2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal reader/writer for the single audio track 3GPP files MediaRecorder
+ * produces. Only the moov box is held in memory; sample data is never read,
+ * the {@link Builder} copies it between files with FileChannel.transferTo.
+ */
+class ThreeGppFile {
+	static final String TAG = "ThreeGppFile";
+
+	private static final int MAX_MOOV_BYTES = 64 * 1024 * 1024;
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+	final File mFile;
+	byte[] mFtyp;
+	Box mMoov;
+	// position and length of the mdat payload
+	long mMdatOffset = -1;
+	long mMdatLength;
+
+	int mMovieTimescale;
+	int mTimescale;
+	int[] mSampleSizes;
+	int[] mSampleDurations;
+	long[] mChunkOffsets;
+	int[] mChunkSamples;
+	// index of the first sample of every chunk
+	int[] mChunkFirstSample;
+
+	private ThreeGppFile(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Reads the box layout and sample tables of the given file. Throws an
+	 * IOException if the file is not a complete 3GPP audio file.
+	 */
+	public static ThreeGppFile parse(File file) throws IOException {
+		ThreeGppFile result = new ThreeGppFile(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			result.readTopLevel(raf);
+			if (result.mMoov == null)
+				throw new IOException("no moov box in " + file);
+			result.readSampleTables();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated sample table in " + file);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("bad sample table in " + file);
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Reads only the top level box layout, for files that may have no moov
+	 * yet, e.g. when MediaRecorder was killed mid recording.
+	 */
+	public static ThreeGppFile scan(File file) throws IOException {
+		ThreeGppFile result = new ThreeGppFile(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			result.readTopLevel(raf);
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
+	/**
+	 * A moov-only description of a mono 8kHz AMR-NB track, usable as the
+	 * {@link Builder} template for files that lost their own moov.
+	 */
+	public static ThreeGppFile amrNbTemplate() {
+		ThreeGppFile t = new ThreeGppFile(null);
+		t.mMovieTimescale = 1000;
+		t.mTimescale = PcmCapture.SAMPLE_RATE;
+
+		ByteBuffer ftyp = ByteBuffer.allocate(24);
+		ftyp.putInt(24);
+		putAscii(ftyp, "ftyp3gp4");
+		ftyp.putInt(0);
+		putAscii(ftyp, "isom3gp4");
+		t.mFtyp = ftyp.array();
+
+		ByteBuffer mvhd = ByteBuffer.allocate(100);
+		mvhd.putInt(12, t.mMovieTimescale);
+		mvhd.putInt(20, 0x00010000); // rate
+		mvhd.putShort(24, (short) 0x0100); // volume
+		putMatrix(mvhd, 36);
+		mvhd.putInt(96, 2); // next track id
+
+		ByteBuffer tkhd = ByteBuffer.allocate(84);
+		tkhd.putInt(0, 7); // enabled, in movie, in preview
+		tkhd.putInt(12, 1); // track id
+		tkhd.putShort(36, (short) 0x0100); // volume
+		putMatrix(tkhd, 40);
+
+		ByteBuffer mdhd = ByteBuffer.allocate(24);
+		mdhd.putInt(12, t.mTimescale);
+		mdhd.putShort(20, (short) 0x55C4); // "und"
+
+		ByteBuffer hdlr = ByteBuffer.allocate(25);
+		hdlr.position(8);
+		putAscii(hdlr, "soun"); // handler type, empty name
+
+		ByteBuffer dinf = ByteBuffer.allocate(28);
+		dinf.putInt(28);
+		putAscii(dinf, "dref");
+		dinf.putInt(0);
+		dinf.putInt(1);
+		dinf.putInt(12);
+		putAscii(dinf, "url ");
+		dinf.putInt(1); // media is in this file
+
+		ByteBuffer stsd = ByteBuffer.allocate(8 + 36 + 17);
+		stsd.putInt(4, 1);
+		stsd.position(8);
+		stsd.putInt(36 + 17);
+		putAscii(stsd, "samr");
+		stsd.position(stsd.position() + 6);
+		stsd.putShort((short) 1); // data reference index
+		stsd.position(stsd.position() + 8);
+		stsd.putShort((short) 2); // channel count, fixed by the spec
+		stsd.putShort((short) 16);
+		stsd.putInt(0);
+		stsd.putInt(t.mTimescale << 16);
+		stsd.putInt(17);
+		putAscii(stsd, "damr");
+		putAscii(stsd, "    "); // vendor
+		stsd.put((byte) 0); // decoder version
+		stsd.putShort((short) 0x81FF); // all modes
+		stsd.put((byte) 0); // mode change period
+		stsd.put((byte) 1); // frames per sample
+
+		List<Box> stbl = new ArrayList<Box>();
+		stbl.add(new Box("stsd", stsd.array()));
+		List<Box> minf = new ArrayList<Box>();
+		minf.add(new Box("smhd", new byte[8]));
+		minf.add(new Box("dinf", dinf.array()));
+		minf.add(new Box("stbl", stbl));
+		List<Box> mdia = new ArrayList<Box>();
+		mdia.add(new Box("mdhd", mdhd.array()));
+		mdia.add(new Box("hdlr", hdlr.array()));
+		mdia.add(new Box("minf", minf));
+		List<Box> trak = new ArrayList<Box>();
+		trak.add(new Box("tkhd", tkhd.array()));
+		trak.add(new Box("mdia", mdia));
+		List<Box> moov = new ArrayList<Box>();
+		moov.add(new Box("mvhd", mvhd.array()));
+		moov.add(new Box("trak", trak));
+		t.mMoov = new Box("moov", moov);
+		return t;
+	}
+
+	private static void putAscii(ByteBuffer b, String s) {
+		for (int i = 0; i < s.length(); i++)
+			b.put((byte) s.charAt(i));
+	}
+
+	// unity transformation matrix
+	private static void putMatrix(ByteBuffer b, int offset) {
+		b.putInt(offset, 0x00010000);
+		b.putInt(offset + 16, 0x00010000);
+		b.putInt(offset + 32, 0x40000000);
+	}
+
+	public int sampleCount() {
+		return mSampleSizes.length;
+	}
+
+	public long durationMillis() {
+		long total = 0;
+		for (int d : mSampleDurations)
+			total += d;
+		return total * 1000 / mTimescale;
+	}
+
+	/**
+	 * Position of the given sample in the file.
+	 */
+	public long sampleOffset(int sample) {
+		int chunk = chunkOf(sample);
+		long offset = mChunkOffsets[chunk];
+		for (int i = mChunkFirstSample[chunk]; i < sample; i++)
+			offset += mSampleSizes[i];
+		return offset;
+	}
+
+	/**
+	 * Index of the chunk holding the given sample.
+	 */
+	int chunkOf(int sample) {
+		int lo = 0;
+		int hi = mChunkFirstSample.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (mChunkFirstSample[mid] <= sample)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private void readTopLevel(RandomAccessFile raf) throws IOException {
+		long length = raf.length();
+		long pos = 0;
+		byte[] header = new byte[16];
+		while (pos + 8 <= length) {
+			raf.seek(pos);
+			raf.readFully(header, 0, 8);
+			ByteBuffer h = ByteBuffer.wrap(header);
+			long size = h.getInt() & 0xFFFFFFFFL;
+			String type = new String(header, 4, 4, "ISO-8859-1");
+			int headerSize = 8;
+			if (size == 1) {
+				raf.readFully(header, 8, 8);
+				size = h.getLong(8);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = length - pos;
+			}
+			if (size < headerSize || pos + size > length) {
+				// truncated tail, whatever we found so far is all there is
+				if ("mdat".equals(type)) {
+					mMdatOffset = pos + headerSize;
+					mMdatLength = length - mMdatOffset;
+				}
+				return;
+			}
+
+			if ("ftyp".equals(type)) {
+				mFtyp = new byte[(int) size];
+				raf.seek(pos);
+				raf.readFully(mFtyp);
+			} else if ("moov".equals(type)) {
+				if (size > MAX_MOOV_BYTES)
+					throw new IOException("moov too large: " + size);
+				byte[] payload = new byte[(int) (size - headerSize)];
+				raf.seek(pos + headerSize);
+				raf.readFully(payload);
+				mMoov = new Box("moov", Box.parseChildren(ByteBuffer
+						.wrap(payload)));
+			} else if ("mdat".equals(type)) {
+				mMdatOffset = pos + headerSize;
+				mMdatLength = size - headerSize;
+			}
+			pos += size;
+		}
+	}
+
+	private void readSampleTables() throws IOException {
+		Box mvhd = mMoov.find("mvhd");
+		Box trak = mMoov.find("trak");
+		Box mdia = trak != null ? trak.find("mdia") : null;
+		Box mdhd = mdia != null ? mdia.find("mdhd") : null;
+		Box minf = mdia != null ? mdia.find("minf") : null;
+		Box stbl = minf != null ? minf.find("stbl") : null;
+		if (mvhd == null || mdhd == null || stbl == null)
+			throw new IOException("incomplete moov in " + mFile);
+
+		mMovieTimescale = timescaleOf(mvhd);
+		mTimescale = timescaleOf(mdhd);
+		if (mMovieTimescale <= 0 || mTimescale <= 0)
+			throw new IOException("bad timescale in " + mFile);
+
+		// stsz
+		ByteBuffer stsz = payloadOf(stbl, "stsz");
+		stsz.getInt();
+		int constantSize = stsz.getInt();
+		int count = stsz.getInt();
+		mSampleSizes = new int[count];
+		for (int i = 0; i < count; i++)
+			mSampleSizes[i] = constantSize != 0 ? constantSize : stsz.getInt();
+
+		// stts
+		ByteBuffer stts = payloadOf(stbl, "stts");
+		stts.getInt();
+		int entries = stts.getInt();
+		mSampleDurations = new int[count];
+		int sample = 0;
+		for (int i = 0; i < entries; i++) {
+			int n = stts.getInt();
+			int delta = stts.getInt();
+			for (int j = 0; j < n && sample < count; j++)
+				mSampleDurations[sample++] = delta;
+		}
+		if (sample != count)
+			throw new IOException("stts/stsz mismatch in " + mFile);
+
+		// stco or co64
+		Box co64 = stbl.find("co64");
+		ByteBuffer co = co64 != null ? ByteBuffer.wrap(co64.mPayload)
+				: payloadOf(stbl, "stco");
+		co.getInt();
+		int chunks = co.getInt();
+		mChunkOffsets = new long[chunks];
+		for (int i = 0; i < chunks; i++)
+			mChunkOffsets[i] = co64 != null ? co.getLong()
+					: co.getInt() & 0xFFFFFFFFL;
+
+		// stsc
+		ByteBuffer stsc = payloadOf(stbl, "stsc");
+		stsc.getInt();
+		entries = stsc.getInt();
+		mChunkSamples = new int[chunks];
+		int[] first = new int[entries];
+		int[] perChunk = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			first[i] = stsc.getInt();
+			perChunk[i] = stsc.getInt();
+			stsc.getInt(); // sample description index
+		}
+		for (int i = 0; i < entries; i++) {
+			int end = i + 1 < entries ? first[i + 1] - 1 : chunks;
+			for (int c = first[i] - 1; c < end && c < chunks; c++)
+				mChunkSamples[c] = perChunk[i];
+		}
+
+		mChunkFirstSample = new int[chunks];
+		sample = 0;
+		for (int c = 0; c < chunks; c++) {
+			mChunkFirstSample[c] = sample;
+			sample += mChunkSamples[c];
+		}
+		if (sample != count)
+			throw new IOException("stsc/stsz mismatch in " + mFile);
+	}
+
+	private static ByteBuffer payloadOf(Box parent, String type)
+			throws IOException {
+		Box box = parent.find(type);
+		if (box == null)
+			throw new IOException("missing " + type);
+		return ByteBuffer.wrap(box.mPayload);
+	}
+
+	// mvhd and mdhd share the layout up to the duration
+	private static int timescaleOf(Box box) {
+		ByteBuffer b = ByteBuffer.wrap(box.mPayload);
+		int version = b.get(0);
+		return b.getInt(version == 1 ? 20 : 12);
+	}
+
+	private static byte[] withDuration(Box box, int durationOffsetV0,
+			int durationOffsetV1, long duration) {
+		byte[] payload = box.mPayload.clone();
+		ByteBuffer b = ByteBuffer.wrap(payload);
+		if (payload[0] == 1) {
+			b.putLong(durationOffsetV1, duration);
+		} else {
+			b.putInt(durationOffsetV0, (int) Math.min(duration, 0xFFFFFFFFL));
+		}
+		return payload;
+	}
+
+	/**
+	 * An ISO base media box. Containers we need to descend into are parsed
+	 * into children, everything else is kept as an opaque payload.
+	 */
+	static class Box {
+		final String mType;
+		byte[] mPayload;
+		List<Box> mChildren;
+
+		Box(String type, byte[] payload) {
+			mType = type;
+			mPayload = payload;
+		}
+
+		Box(String type, List<Box> children) {
+			mType = type;
+			mChildren = children;
+		}
+
+		static boolean isContainer(String type) {
+			return "moov".equals(type) || "trak".equals(type)
+					|| "mdia".equals(type) || "minf".equals(type)
+					|| "stbl".equals(type);
+		}
+
+		static List<Box> parseChildren(ByteBuffer buf) throws IOException {
+			List<Box> result = new ArrayList<Box>();
+			while (buf.remaining() >= 8) {
+				int start = buf.position();
+				long size = buf.getInt() & 0xFFFFFFFFL;
+				byte[] t = new byte[4];
+				buf.get(t);
+				String type = new String(t, "ISO-8859-1");
+				if (size == 1) {
+					size = buf.getLong();
+				} else if (size == 0) {
+					size = buf.limit() - start;
+				}
+				int headerSize = buf.position() - start;
+				if (size < headerSize || start + size > buf.limit())
+					throw new IOException("bad box " + type + " size " + size);
+				ByteBuffer body = buf.duplicate();
+				body.limit((int) (start + size));
+				if (isContainer(type)) {
+					result.add(new Box(type, parseChildren(body.slice())));
+				} else {
+					byte[] payload = new byte[(int) size - headerSize];
+					body.get(payload);
+					result.add(new Box(type, payload));
+				}
+				buf.position((int) (start + size));
+			}
+			return result;
+		}
+
+		Box find(String type) {
+			if (mChildren == null)
+				return null;
+			for (Box child : mChildren) {
+				if (child.mType.equals(type))
+					return child;
+			}
+			return null;
+		}
+
+		int size() {
+			int size = 8;
+			if (mPayload != null) {
+				size += mPayload.length;
+			} else {
+				for (Box child : mChildren)
+					size += child.size();
+			}
+			return size;
+		}
+
+		void write(ByteBuffer out) {
+			out.putInt(size());
+			for (int i = 0; i < 4; i++)
+				out.put((byte) mType.charAt(i));
+			if (mPayload != null) {
+				out.put(mPayload);
+			} else {
+				for (Box child : mChildren)
+					child.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Assembles a new file out of sample ranges of existing files. The new
+	 * moov is derived from a template file so the sample description is kept,
+	 * the sample data is copied chunk by chunk without passing through the
+	 * heap.
+	 */
+	static class Builder {
+		// copy in steps this large when someone is told about the progress
+		private static final long COPY_STEP = 4 << 20;
+
+		/**
+		 * Told about the sample data as writeTo copies it.
+		 */
+		interface CopyListener {
+			/**
+			 * Called after every step with the bytes it copied, throwing
+			 * stops the copy.
+			 */
+			void onCopied(long bytes) throws IOException;
+		}
+
+		private final ThreeGppFile mTemplate;
+		private final List<File> mSources = new ArrayList<File>();
+
+		private int[] mSizes = new int[1024];
+		private int[] mDurations = new int[1024];
+		private int mSampleCount;
+
+		private int[] mChunkSource = new int[64];
+		private long[] mChunkOffset = new long[64];
+		private long[] mChunkLength = new long[64];
+		private int[] mChunkSamples = new int[64];
+		private int mChunkCount;
+
+		// set while writing, in media and movie timescale units
+		private long mMediaDuration;
+		private long mMovieDuration;
+
+		Builder(ThreeGppFile template) {
+			mTemplate = template;
+		}
+
+		public int sampleCount() {
+			return mSampleCount;
+		}
+
+		public long durationMillis() {
+			return mediaDuration() * 1000 / mTemplate.mTimescale;
+		}
+
+		private long mediaDuration() {
+			long total = 0;
+			for (int i = 0; i < mSampleCount; i++)
+				total += mDurations[i];
+			return total;
+		}
+
+		/**
+		 * Appends count samples of src starting at first. Chunks only
+		 * partially covered are cut down to the covered samples.
+		 */
+		public void addSamples(ThreeGppFile src, int first, int count) {
+			if (count <= 0)
+				return;
+			int source = sourceIndex(src.mFile);
+			int end = first + count;
+			int sample = first;
+			while (sample < end) {
+				int chunk = src.chunkOf(sample);
+				int chunkEnd = src.mChunkFirstSample[chunk]
+						+ src.mChunkSamples[chunk];
+				int last = Math.min(end, chunkEnd);
+				long offset = src.sampleOffset(sample);
+				long length = 0;
+				for (int i = sample; i < last; i++) {
+					addSample(src.mSampleSizes[i], src.mSampleDurations[i]);
+					length += src.mSampleSizes[i];
+				}
+				addChunk(source, offset, length, last - sample);
+				sample = last;
+			}
+		}
+
+		/**
+		 * Appends a contiguous run of samples of the given sizes that all last
+		 * the same number of timescale units, as one chunk.
+		 */
+		public void addRun(File file, long offset, int[] sizes, int count,
+				int duration) {
+			if (count <= 0)
+				return;
+			long length = 0;
+			for (int i = 0; i < count; i++) {
+				addSample(sizes[i], duration);
+				length += sizes[i];
+			}
+			addChunk(sourceIndex(file), offset, length, count);
+		}
+
+		/**
+		 * Length of the sample data, which is what writeTo copies.
+		 */
+		public long dataLength() {
+			long length = 0;
+			for (int i = 0; i < mChunkCount; i++)
+				length += mChunkLength[i];
+			return length;
+		}
+
+		/**
+		 * Writes the assembled file and returns its length.
+		 */
+		public long writeTo(File out) throws IOException {
+			return writeTo(out, null);
+		}
+
+		/**
+		 * Same as writeTo(File), copying the sample data in steps the
+		 * listener hears about if there is one.
+		 */
+		public long writeTo(File out, CopyListener listener)
+				throws IOException {
+			long dataLength = dataLength();
+			int ftypLength = mTemplate.mFtyp != null ? mTemplate.mFtyp.length
+					: 0;
+			boolean largeMdat = dataLength + 8 > 0xFFFFFFFFL;
+			int mdatHeader = largeMdat ? 16 : 8;
+
+			// size the moov first, the chunk offsets depend on it
+			boolean co64 = ftypLength + dataLength + mdatHeader
+					+ estimateMoovSize() > 0xFFFFFFFFL;
+			Box offsets = new Box(co64 ? "co64" : "stco",
+					new byte[8 + mChunkCount * (co64 ? 8 : 4)]);
+			mMediaDuration = mediaDuration();
+			mMovieDuration = mMediaDuration * mTemplate.mMovieTimescale
+					/ mTemplate.mTimescale;
+			Box moov = rebuild(mTemplate.mMoov, offsets);
+			int moovSize = moov.size();
+
+			ByteBuffer table = ByteBuffer.wrap(offsets.mPayload);
+			table.putInt(0);
+			table.putInt(mChunkCount);
+			long position = ftypLength + moovSize + mdatHeader;
+			for (int i = 0; i < mChunkCount; i++) {
+				if (co64)
+					table.putLong(position);
+				else
+					table.putInt((int) position);
+				position += mChunkLength[i];
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(moovSize + mdatHeader);
+			moov.write(header);
+			if (largeMdat) {
+				header.putInt(1);
+				putType(header, "mdat");
+				header.putLong(dataLength + 16);
+			} else {
+				header.putInt((int) (dataLength + 8));
+				putType(header, "mdat");
+			}
+			header.flip();
+
+			FileOutputStream fos = new FileOutputStream(out);
+			FileChannel[] sources = new FileChannel[mSources.size()];
+			List<RandomAccessFile> opened = new ArrayList<RandomAccessFile>();
+			try {
+				FileChannel target = fos.getChannel();
+				if (mTemplate.mFtyp != null)
+					writeFully(target, ByteBuffer.wrap(mTemplate.mFtyp));
+				writeFully(target, header);
+
+				int i = 0;
+				while (i < mChunkCount) {
+					// coalesce chunks that are contiguous in the same source
+					int source = mChunkSource[i];
+					long offset = mChunkOffset[i];
+					long length = mChunkLength[i];
+					i++;
+					while (i < mChunkCount && mChunkSource[i] == source
+							&& mChunkOffset[i] == offset + length) {
+						length += mChunkLength[i];
+						i++;
+					}
+					if (sources[source] == null) {
+						RandomAccessFile raf = new RandomAccessFile(
+								mSources.get(source), "r");
+						opened.add(raf);
+						sources[source] = raf.getChannel();
+					}
+					if (listener == null) {
+						transferFully(sources[source], offset, length, target);
+						continue;
+					}
+					for (long done = 0; done < length; done += COPY_STEP) {
+						long n = Math.min(COPY_STEP, length - done);
+						transferFully(sources[source], offset + done, n,
+								target);
+						listener.onCopied(n);
+					}
+				}
+				target.force(false);
+				return target.position();
+			} finally {
+				for (RandomAccessFile raf : opened)
+					raf.close();
+				fos.close();
+			}
+		}
+
+		private int sourceIndex(File file) {
+			int index = mSources.indexOf(file);
+			if (index < 0) {
+				mSources.add(file);
+				index = mSources.size() - 1;
+			}
+			return index;
+		}
+
+		private void addSample(int size, int duration) {
+			if (mSampleCount == mSizes.length) {
+				int grown = mSizes.length * 2;
+				mSizes = Arrays.copyOf(mSizes, grown);
+				mDurations = Arrays.copyOf(mDurations, grown);
+			}
+			mSizes[mSampleCount] = size;
+			mDurations[mSampleCount] = duration;
+			mSampleCount++;
+		}
+
+		private void addChunk(int source, long offset, long length,
+				int samples) {
+			if (mChunkCount == mChunkSource.length) {
+				int grown = mChunkSource.length * 2;
+				mChunkSource = Arrays.copyOf(mChunkSource, grown);
+				mChunkOffset = Arrays.copyOf(mChunkOffset, grown);
+				mChunkLength = Arrays.copyOf(mChunkLength, grown);
+				mChunkSamples = Arrays.copyOf(mChunkSamples, grown);
+			}
+			mChunkSource[mChunkCount] = source;
+			mChunkOffset[mChunkCount] = offset;
+			mChunkLength[mChunkCount] = length;
+			mChunkSamples[mChunkCount] = samples;
+			mChunkCount++;
+		}
+
+		private long estimateMoovSize() {
+			return mTemplate.mMoov.size() + 16L * mSampleCount + 16L
+					* mChunkCount;
+		}
+
+		private Box rebuild(Box box, Box offsets) {
+			if (box.mChildren == null) {
+				if ("mvhd".equals(box.mType))
+					return new Box("mvhd", withDuration(box, 16, 24,
+							mMovieDuration));
+				if ("tkhd".equals(box.mType))
+					return new Box("tkhd", withDuration(box, 20, 28,
+							mMovieDuration));
+				if ("mdhd".equals(box.mType))
+					return new Box("mdhd", withDuration(box, 16, 24,
+							mMediaDuration));
+				return box;
+			}
+
+			boolean stbl = "stbl".equals(box.mType);
+			List<Box> children = new ArrayList<Box>();
+			for (Box child : box.mChildren) {
+				String type = child.mType;
+				// the edit list would refer to the old timeline
+				if ("edts".equals(type))
+					continue;
+				if (stbl && isSampleTable(type))
+					continue;
+				children.add(rebuild(child, offsets));
+			}
+			if (stbl) {
+				children.add(buildStts());
+				children.add(buildStsc());
+				children.add(buildStsz());
+				children.add(offsets);
+			}
+			return new Box(box.mType, children);
+		}
+
+		private static boolean isSampleTable(String type) {
+			return "stts".equals(type) || "stsz".equals(type)
+					|| "stz2".equals(type) || "stsc".equals(type)
+					|| "stco".equals(type) || "co64".equals(type)
+					|| "stss".equals(type) || "ctts".equals(type)
+					|| "sdtp".equals(type);
+		}
+
+		private Box buildStts() {
+			int entries = 0;
+			for (int i = 0; i < mSampleCount; i++) {
+				if (i == 0 || mDurations[i] != mDurations[i - 1])
+					entries++;
+			}
+			ByteBuffer b = ByteBuffer.allocate(8 + entries * 8);
+			b.putInt(0);
+			b.putInt(entries);
+			int i = 0;
+			while (i < mSampleCount) {
+				int run = 1;
+				while (i + run < mSampleCount
+						&& mDurations[i + run] == mDurations[i])
+					run++;
+				b.putInt(run);
+				b.putInt(mDurations[i]);
+				i += run;
+			}
+			return new Box("stts", b.array());
+		}
+
+		private Box buildStsc() {
+			int entries = 0;
+			for (int c = 0; c < mChunkCount; c++) {
+				if (c == 0 || mChunkSamples[c] != mChunkSamples[c - 1])
+					entries++;
+			}
+			ByteBuffer b = ByteBuffer.allocate(8 + entries * 12);
+			b.putInt(0);
+			b.putInt(entries);
+			for (int c = 0; c < mChunkCount; c++) {
+				if (c == 0 || mChunkSamples[c] != mChunkSamples[c - 1]) {
+					b.putInt(c + 1);
+					b.putInt(mChunkSamples[c]);
+					b.putInt(1);
+				}
+			}
+			return new Box("stsc", b.array());
+		}
+
+		private Box buildStsz() {
+			ByteBuffer b = ByteBuffer.allocate(12 + mSampleCount * 4);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(mSampleCount);
+			for (int i = 0; i < mSampleCount; i++)
+				b.putInt(mSizes[i]);
+			return new Box("stsz", b.array());
+		}
+
+		private static void putType(ByteBuffer b, String type) {
+			for (int i = 0; i < 4; i++)
+				b.put((byte) type.charAt(i));
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buf)
+			throws IOException {
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/**
+	 * FileChannel.transferTo may move fewer bytes than asked for, loop until
+	 * the whole range is copied. When it moves nothing short of the end, the
+	 * rest goes through a plain read and write.
+	 */
+	static void transferFully(FileChannel src, long position, long count,
+			FileChannel target) throws IOException {
+		while (count > 0) {
+			if (position >= src.size())
+				throw new EOFException("source truncated at " + position);
+			long n = src.transferTo(position, count, target);
+			if (n <= 0) {
+				copyFully(src, position, count, target);
+				return;
+			}
+			position += n;
+			count -= n;
+		}
+	}
+
+	private static void copyFully(FileChannel src, long position, long count,
+			FileChannel target) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count,
+				COPY_BUFFER_BYTES));
+		while (count > 0) {
+			buf.clear();
+			buf.limit((int) Math.min(count, buf.capacity()));
+			int n = src.read(buf, position);
+			if (n <= 0)
+				throw new EOFException("source truncated at " + position);
+			buf.flip();
+			writeFully(target, buf);
+			position += n;
+			count -= n;
+		}
+	}
+}
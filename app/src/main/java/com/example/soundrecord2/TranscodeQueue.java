@@ -0,0 +1,378 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Converts recordings to another format on a pool of background workers,
+ * one per core unless set otherwise. Every queued job is also a small file
+ * in the app's files directory, so work queued when the process dies is
+ * picked up again the next time the queue is used. The output is written
+ * to a hidden part file, renamed next to the source once complete and
+ * registered with the media database. Results of staged recordings are
+ * handed to the {@link StorageMigrator} along with them.
+ */
+class TranscodeQueue {
+	static final String TAG = "TranscodeQueue";
+
+	public static final int STATE_QUEUED = 0;
+	public static final int STATE_RUNNING = 1;
+	public static final int STATE_DONE = 2;
+	public static final int STATE_FAILED = 3;
+	public static final int STATE_CANCELLED = 4;
+
+	private static final String SUFFIX = ".job";
+	private static final int IDLE_SECONDS = 30;
+
+	private static TranscodeQueue sInstance;
+
+	public interface Listener {
+		/**
+		 * A job changed state or progress. Called on a worker thread.
+		 */
+		public void onJobChanged(Job job);
+	}
+
+	static class Job {
+		final long mId;
+		final File mSource;
+		// a RecordingScanner format
+		final int mFormat;
+		final File mJobFile;
+		volatile int mState = STATE_QUEUED;
+		volatile int mPercent;
+		volatile File mResult;
+		volatile boolean mCancelled;
+		Runnable mTask;
+
+		Job(long id, File source, int format, File jobFile) {
+			mId = id;
+			mSource = source;
+			mFormat = format;
+			mJobFile = jobFile;
+		}
+
+		boolean isActive() {
+			return mState == STATE_QUEUED || mState == STATE_RUNNING;
+		}
+	}
+
+	private final Context mContext;
+	private final File mDir;
+	private final ThreadPoolExecutor mExecutor;
+	private final Map<Long, Job> mJobs = new LinkedHashMap<Long, Job>();
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private long mLastId;
+
+	private TranscodeQueue(Context context) {
+		mContext = context.getApplicationContext();
+		mDir = new File(mContext.getFilesDir(), "transcode");
+		if (!mDir.isDirectory() && !mDir.mkdirs())
+			Log.e(TAG, "can't create " + mDir);
+		int workers = Runtime.getRuntime().availableProcessors();
+		mExecutor = new ThreadPoolExecutor(workers, workers, IDLE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, TAG);
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The queue of this process, restoring the jobs a dead one left.
+	 */
+	public static synchronized TranscodeQueue get(Context context) {
+		if (sInstance == null) {
+			sInstance = new TranscodeQueue(context);
+			sInstance.restore();
+		}
+		return sInstance;
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Queues a conversion of source to the given RecordingScanner format.
+	 */
+	public Job submit(File source, int format) {
+		Job job;
+		synchronized (this) {
+			long id = Math.max(System.currentTimeMillis(), mLastId + 1);
+			mLastId = id;
+			job = new Job(id, source, format, new File(mDir, id + SUFFIX));
+			mJobs.put(id, job);
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(
+							job.mJobFile)));
+			try {
+				out.writeUTF(source.getAbsolutePath());
+				out.writeInt(format);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// still runs, it just won't survive the process
+			Log.w(TAG, "can't persist job for " + source + ": " + e);
+		}
+		enqueue(job);
+		return job;
+	}
+
+	/**
+	 * Cancels the active jobs of the given source.
+	 */
+	public void cancel(File source) {
+		for (Job job : jobs()) {
+			if (job.mSource.equals(source) && job.isActive()) {
+				job.mCancelled = true;
+				if (mExecutor.remove(job.mTask))
+					finish(job, STATE_CANCELLED);
+			}
+		}
+	}
+
+	public synchronized List<Job> jobs() {
+		return new ArrayList<Job>(mJobs.values());
+	}
+
+	/**
+	 * The latest job for the given source, or null.
+	 */
+	public synchronized Job jobFor(File source) {
+		Job latest = null;
+		for (Job job : mJobs.values()) {
+			if (job.mSource.equals(source))
+				latest = job;
+		}
+		return latest;
+	}
+
+	private void restore() {
+		File[] files = mDir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!f.getName().endsWith(SUFFIX))
+				continue;
+			Job job = null;
+			try {
+				long id = Long.parseLong(f.getName().substring(0,
+						f.getName().length() - SUFFIX.length()));
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(f)));
+				try {
+					job = new Job(id, new File(in.readUTF()), in.readInt(),
+							f);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "dropping unreadable job " + f + ": " + e);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "dropping unreadable job " + f + ": " + e);
+			}
+			if (job == null || !job.mSource.exists()) {
+				f.delete();
+				continue;
+			}
+			Log.i(TAG, "resuming conversion of " + job.mSource);
+			synchronized (this) {
+				mJobs.put(job.mId, job);
+				mLastId = Math.max(mLastId, job.mId);
+			}
+			enqueue(job);
+		}
+	}
+
+	private void enqueue(final Job job) {
+		job.mTask = new Runnable() {
+			public void run() {
+				runJob(job);
+			}
+		};
+		mExecutor.execute(job.mTask);
+	}
+
+	private void runJob(Job job) {
+		if (job.mCancelled) {
+			finish(job, STATE_CANCELLED);
+			return;
+		}
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		job.mState = STATE_RUNNING;
+		notifyChanged(job);
+
+		File dir = job.mSource.getParentFile();
+		String name = job.mSource.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String suffix = suffixOf(job.mFormat);
+		File part = new File(dir, "." + base + suffix + ".part");
+		// the result of a staged recording follows it to its target
+		StorageMigrator migrator = StorageMigrator.get(mContext);
+		File target = migrator.targetOf(job.mSource);
+		try {
+			long millis = convert(job, part);
+			File result = new File(dir, base + suffix);
+			for (int i = 1; result.exists(); i++)
+				result = new File(dir, base + "-" + i + suffix);
+			if (!part.renameTo(result))
+				throw new IOException("can't rename " + part);
+			if (MediaDbHelper.insert(mContext, result, millis,
+					mimeTypeOf(job.mFormat)) == null)
+				Log.w(TAG, "media database refused " + result);
+			if (target != null) {
+				migrator.assign(result, target);
+				migrator.migrate();
+			}
+			job.mResult = result;
+			finish(job, STATE_DONE);
+		} catch (InterruptedIOException e) {
+			part.delete();
+			finish(job, STATE_CANCELLED);
+		} catch (IOException e) {
+			Log.w(TAG, "can't convert " + job.mSource + ": " + e);
+			part.delete();
+			finish(job, STATE_FAILED);
+		}
+	}
+
+	/*
+	 * Decodes the source into an encoder for the target format and returns
+	 * the duration written.
+	 */
+	private long convert(final Job job, File out) throws IOException {
+		final long total = RecordingScanner.scan(job.mSource).mDurationMillis;
+		PcmDecoder decoder = new PcmDecoder(job.mSource);
+		try {
+			int rate = decoder.sampleRate();
+			final PcmEncoder encoder = newEncoder(job.mFormat, rate);
+			encoder.open(out, rate);
+			final long[] samples = new long[1];
+			final int sampleRate = rate;
+			try {
+				decoder.decodeTo(new PcmEncoder() {
+					public void open(File file, int sampleRate) {
+					}
+
+					public void encode(short[] pcm, int count)
+							throws IOException {
+						if (job.mCancelled)
+							throw new InterruptedIOException("cancelled");
+						encoder.encode(pcm, count);
+						samples[0] += count;
+						int percent = total > 0 ? (int) Math.min(100,
+								samples[0] * 100000 / sampleRate / total) : 0;
+						if (percent != job.mPercent) {
+							job.mPercent = percent;
+							notifyChanged(job);
+						}
+					}
+
+					public long bytesWritten() {
+						return encoder.bytesWritten();
+					}
+
+					public long samplesWritten() {
+						return encoder.samplesWritten();
+					}
+
+					public void close() {
+					}
+				});
+			} finally {
+				encoder.close();
+			}
+			return samples[0] * 1000 / rate;
+		} finally {
+			decoder.release();
+		}
+	}
+
+	private static PcmEncoder newEncoder(int format, int sampleRate)
+			throws IOException {
+		switch (format) {
+		case RecordingScanner.FORMAT_WAV:
+			return new WavWriter();
+		case RecordingScanner.FORMAT_AMR:
+			if (sampleRate != PcmCapture.SAMPLE_RATE)
+				throw new IOException("AMR-NB needs "
+						+ PcmCapture.SAMPLE_RATE + "Hz, not " + sampleRate);
+			return new AmrNbEncoder();
+		case RecordingScanner.FORMAT_FLAC:
+			// frames are encoded in parallel on the shared pool
+			return FlacEncoder.offline();
+		default:
+			throw new IOException("can't encode format " + format);
+		}
+	}
+
+	static String suffixOf(int format) {
+		switch (format) {
+		case RecordingScanner.FORMAT_WAV:
+			return ".wav";
+		case RecordingScanner.FORMAT_FLAC:
+			return ".flac";
+		case RecordingScanner.FORMAT_3GPP:
+			return ".3gpp";
+		default:
+			return ".amr";
+		}
+	}
+
+	static String mimeTypeOf(int format) {
+		switch (format) {
+		case RecordingScanner.FORMAT_WAV:
+			return SoundRecorder.AUDIO_WAV;
+		case RecordingScanner.FORMAT_FLAC:
+			return SoundRecorder.AUDIO_FLAC;
+		case RecordingScanner.FORMAT_3GPP:
+			return SoundRecorder.AUDIO_3GPP;
+		default:
+			return SoundRecorder.AUDIO_AMR;
+		}
+	}
+
+	private void finish(Job job, int state) {
+		job.mState = state;
+		job.mJobFile.delete();
+		notifyChanged(job);
+	}
+
+	private void notifyChanged(Job job) {
+		for (Listener listener : mListeners)
+			listener.onJobChanged(job);
+	}
+}
@@ -12,21 +12,64 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
-public class VUMeter extends View {
+/**
+ * Needle meter for the recording level. It animates on Choreographer frames
+ * while there is something to show and goes quiet once the needle rests;
+ * frames in which the needle doesn't move to another table step don't
+ * redraw anything.
+ */
+public class VUMeter extends View implements Choreographer.FrameCallback {
+	static final String TAG = "VUMeter";
 	static final float PIVOT_RADIUS = 3.5f;
 	static final float PIVOT_Y_OFFSET = 10f;
 	static final float SHADOW_OFFSET = 2.0f;
-	static final float DROPOFF_STEP = 0.18f;
-	static final float SURGE_STEP = 0.35f;
-	static final long ANIMATION_INTERVAL = 70;
+	// how fast the needle falls back, in full scale deflections per second
+	static final float DROPOFF_RATE = 1.1f;
+	static final float MIN_ANGLE = (float) Math.PI / 8;
+	static final float MAX_ANGLE = (float) Math.PI * 7 / 8;
+	// needle positions, finer than a pixel at the tip
+	static final int ANGLE_STEPS = 512;
+	// draw timings are logged every this many frames
+	static final int STATS_FRAMES = 300;
+
+	private static final float[] SIN = new float[ANGLE_STEPS];
+	private static final float[] COS = new float[ANGLE_STEPS];
+
+	static {
+		for (int i = 0; i < ANGLE_STEPS; i++) {
+			double angle = MIN_ANGLE + (double) (MAX_ANGLE - MIN_ANGLE) * i
+					/ (ANGLE_STEPS - 1);
+			SIN[i] = (float) Math.sin(angle);
+			COS[i] = (float) Math.cos(angle);
+		}
+	}
 
 	Paint mPaint;
 	Paint mShadow;
-	float mCurrentAngle;
+	// needle deflection from 0 to 1
+	float mLevel;
+	// table step the needle was last drawn at
+	int mDrawnStep = -1;
+	boolean mFrameScheduled;
+	long mLastFrameNanos;
+
+	float mPivotX;
+	float mPivotY;
+	float mLength;
+	private final Rect mDirty = new Rect();
+	private final Rect mNeedle = new Rect();
+
+	int mFrames;
+	int mDraws;
+	long mDrawNanos;
+	long mWorstDrawNanos;
 
 	Recorder mRecorder;
 
@@ -52,7 +95,7 @@ public class VUMeter extends View {
 
 		mRecorder = null;
 
-		mCurrentAngle = 0;
+		mLevel = 0;
 	}
 
 	public void setRecorder(Recorder recorder) {
@@ -61,46 +104,126 @@ public class VUMeter extends View {
 	}
 
 	@Override
-	protected void onDraw(Canvas canvas) {
-		super.onDraw(canvas);
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		mPivotX = w / 2f;
+		mPivotY = h - PIVOT_RADIUS - PIVOT_Y_OFFSET;
+		mLength = h * 7 / 10f;
+		mDrawnStep = -1;
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (mFrameScheduled) {
+			Choreographer.getInstance().removeFrameCallback(this);
+			mFrameScheduled = false;
+		}
+	}
 
-		final float minAngle = (float) Math.PI / 8;
-		final float maxAngle = (float) Math.PI * 7 / 8;
+	private boolean recording() {
+		return mRecorder != null
+				&& mRecorder.state() == Recorder.RECORDING_STATE;
+	}
 
-		float angle = minAngle;
-		if (mRecorder != null)
-			angle += (float) (maxAngle - minAngle)
-					* mRecorder.getMaxAmplitude() / 32768;
+	private void scheduleFrame() {
+		if (mFrameScheduled)
+			return;
+		mFrameScheduled = true;
+		Choreographer.getInstance().postFrameCallback(this);
+	}
 
-		if (angle > mCurrentAngle)
-			mCurrentAngle = angle;
+	public void doFrame(long frameTimeNanos) {
+		mFrameScheduled = false;
+		mFrames++;
+		boolean recording = recording();
+		float target = recording ? LevelMeter.loudness(mRecorder.levels())
+				: 0f;
+		float seconds = mLastFrameNanos == 0 ? 0f
+				: (frameTimeNanos - mLastFrameNanos) / 1e9f;
+		mLastFrameNanos = frameTimeNanos;
+
+		if (target >= mLevel)
+			mLevel = target;
 		else
-			mCurrentAngle = Math.max(angle, mCurrentAngle - DROPOFF_STEP);
-
-		mCurrentAngle = Math.min(maxAngle, mCurrentAngle);
-
-		float w = getWidth();
-		float h = getHeight();
-		float pivotX = w / 2;
-		float pivotY = h - PIVOT_RADIUS - PIVOT_Y_OFFSET;
-		// float l = h*4/5;
-		float l = h * 7 / 10;
-		// reset mCurrentAngle
-		if (mRecorder.state() == Recorder.IDLE_STATE) {
-			mCurrentAngle = (float) Math.PI * 1 / 8;
+			mLevel = Math.max(target, mLevel - DROPOFF_RATE * seconds);
+		if (mRecorder != null && mRecorder.state() == Recorder.IDLE_STATE)
+			mLevel = 0;
+
+		int step = step(mLevel);
+		if (step != mDrawnStep)
+			invalidateNeedle(mDrawnStep, step);
+
+		if (recording || mLevel > 0) {
+			scheduleFrame();
+		} else {
+			mLastFrameNanos = 0;
 		}
-		float sin = (float) Math.sin(mCurrentAngle);
-		float cos = (float) Math.cos(mCurrentAngle);
-		float x0 = pivotX - l * cos;
-		float y0 = pivotY - l * sin;
-		canvas.drawLine(x0 + SHADOW_OFFSET, y0 + SHADOW_OFFSET, pivotX
-				+ SHADOW_OFFSET, pivotY + SHADOW_OFFSET, mShadow);
-		canvas.drawCircle(pivotX + SHADOW_OFFSET, pivotY + SHADOW_OFFSET,
-				PIVOT_RADIUS, mShadow);
-		canvas.drawLine(x0, y0, pivotX, pivotY, mPaint);
-		canvas.drawCircle(pivotX, pivotY, PIVOT_RADIUS, mPaint);
+	}
 
-		if (mRecorder != null && mRecorder.state() == Recorder.RECORDING_STATE)
-			postInvalidateDelayed(ANIMATION_INTERVAL);
+	private static int step(float level) {
+		return Math.round(level * (ANGLE_STEPS - 1));
+	}
+
+	/*
+	 * Invalidates the area of the needle at both steps, shadow included.
+	 * Software layers honour the rectangle, hardware rendering redraws the
+	 * view's content but still keeps the background.
+	 */
+	private void invalidateNeedle(int from, int to) {
+		if (from < 0) {
+			invalidate();
+			return;
+		}
+		needleBounds(from, mDirty);
+		needleBounds(to, mNeedle);
+		mDirty.union(mNeedle);
+		invalidate(mDirty.left, mDirty.top, mDirty.right, mDirty.bottom);
+	}
+
+	private void needleBounds(int step, Rect out) {
+		float x0 = mPivotX - mLength * COS[step];
+		float y0 = mPivotY - mLength * SIN[step];
+		float pad = PIVOT_RADIUS + 1;
+		out.set((int) Math.floor(Math.min(x0, mPivotX) - pad),
+				(int) Math.floor(Math.min(y0, mPivotY) - pad),
+				(int) Math.ceil(Math.max(x0, mPivotX) + pad + SHADOW_OFFSET),
+				(int) Math.ceil(Math.max(y0, mPivotY) + pad + SHADOW_OFFSET));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		long begin = System.nanoTime();
+		super.onDraw(canvas);
+
+		int step = step(mLevel);
+		mDrawnStep = step;
+		float x0 = mPivotX - mLength * COS[step];
+		float y0 = mPivotY - mLength * SIN[step];
+		canvas.drawLine(x0 + SHADOW_OFFSET, y0 + SHADOW_OFFSET, mPivotX
+				+ SHADOW_OFFSET, mPivotY + SHADOW_OFFSET, mShadow);
+		canvas.drawCircle(mPivotX + SHADOW_OFFSET, mPivotY + SHADOW_OFFSET,
+				PIVOT_RADIUS, mShadow);
+		canvas.drawLine(x0, y0, mPivotX, mPivotY, mPaint);
+		canvas.drawCircle(mPivotX, mPivotY, PIVOT_RADIUS, mPaint);
+
+		// an invalidate from outside, e.g. a state change, starts the
+		// animation
+		if (recording() || mLevel > 0)
+			scheduleFrame();
+
+		long took = System.nanoTime() - begin;
+		mDrawNanos += took;
+		if (took > mWorstDrawNanos)
+			mWorstDrawNanos = took;
+		if (++mDraws == STATS_FRAMES) {
+			Log.d(TAG, "drew " + mDraws + " of " + mFrames + " frames, avg "
+					+ (mDrawNanos / mDraws / 1000) + "us, worst "
+					+ (mWorstDrawNanos / 1000) + "us");
+			mDraws = 0;
+			mFrames = 0;
+			mDrawNanos = 0;
+			mWorstDrawNanos = 0;
+		}
 	}
 }
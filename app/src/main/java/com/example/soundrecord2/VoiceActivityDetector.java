@@ -0,0 +1,229 @@
+package com.example.soundrecord2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Encoder stage that passes speech on to the wrapped encoder and leaves out
+ * silence. Each block is classified by its energy against a running noise
+ * floor, with the zero crossing rate catching quiet unvoiced sounds, and a
+ * hangover keeps word endings and short pauses. The block before a speech
+ * onset is held back and written too, so onsets aren't clipped.
+ * <p>
+ * Silence is either dropped, shortening the recording, or handed to the
+ * encoder as a {@link SilenceSink} marker that keeps the timeline. The speech
+ * regions, in milliseconds of input, go to a sidecar index next to the
+ * recording.
+ */
+class VoiceActivityDetector implements PcmEncoder {
+	static final String TAG = "VoiceActivityDetector";
+
+	public static final int MODE_DROP = 0;
+	public static final int MODE_MARKER = 1;
+
+	// implemented by encoders that can store silence compactly
+	public interface SilenceSink {
+		public void encodeSilence(int samples) throws IOException;
+	}
+
+	// mean square, about -50dBFS; anything below is silence whatever the floor
+	private static final long MIN_ENERGY = 100 * 100;
+	// speech is 6dB above the floor, unvoiced speech 3dB with a high ZCR
+	private static final int SPEECH_RATIO = 4;
+	private static final int UNVOICED_RATIO = 2;
+	// crossings per 1000 samples, roughly 1.6kHz and up at 8kHz
+	private static final int UNVOICED_ZCR = 400;
+	// 8 blocks of 40ms
+	private static final int HANGOVER_BLOCKS = 8;
+
+	private final PcmEncoder mTarget;
+	private final SilenceSink mSink;
+	private final int mMode;
+	// copy of the last silent block, written if speech follows it
+	private final short[] mHeld = new short[PcmCapture.BLOCK_SAMPLES];
+	private int mHeldCount;
+
+	private DataOutputStream mIndex;
+	private int mSampleRate;
+	private volatile long mSamples;
+	private volatile long mSpeechSamples;
+	private long mNoiseFloor = -1;
+	private int mHangover;
+	private boolean mSpeech;
+	private long mSpeechStart;
+
+	/**
+	 * @param mode MODE_DROP or MODE_MARKER; marker falls back to drop if the
+	 *            target can't store silence
+	 */
+	VoiceActivityDetector(PcmEncoder target, int mode) {
+		mTarget = target;
+		mSink = target instanceof SilenceSink ? (SilenceSink) target : null;
+		mMode = mSink != null ? mode : MODE_DROP;
+	}
+
+	static File indexFile(File recording) {
+		return new File(recording.getParentFile(), "." + recording.getName()
+				+ ".vad");
+	}
+
+	public void open(File file, int sampleRate) throws IOException {
+		mSampleRate = sampleRate;
+		mSamples = 0;
+		mSpeechSamples = 0;
+		mNoiseFloor = -1;
+		mHangover = 0;
+		mSpeech = false;
+		mHeldCount = 0;
+		mTarget.open(file, sampleRate);
+		try {
+			mIndex = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(indexFile(file))));
+		} catch (IOException e) {
+			// the recording itself is still fine
+			Log.w(TAG, "no speech index for " + file + ": " + e);
+		}
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		long energy = 0;
+		int crossings = 0;
+		for (int i = 0; i < count; i++) {
+			int s = pcm[i];
+			energy += s * s;
+			if (i > 0 && (s ^ pcm[i - 1]) < 0)
+				crossings++;
+		}
+		if (count > 0) {
+			energy /= count;
+			crossings = crossings * 1000 / count;
+		}
+
+		boolean active = isSpeech(energy, crossings);
+		if (active) {
+			mHangover = HANGOVER_BLOCKS;
+		} else if (mHangover > 0) {
+			mHangover--;
+			active = true;
+		}
+		trackFloor(energy, active);
+
+		if (active) {
+			if (!mSpeech) {
+				mSpeech = true;
+				mSpeechStart = mSamples - mHeldCount;
+				if (mHeldCount > 0) {
+					mTarget.encode(mHeld, mHeldCount);
+					mSpeechSamples += mHeldCount;
+				}
+			}
+			mHeldCount = 0;
+			mTarget.encode(pcm, count);
+			mSpeechSamples += count;
+		} else {
+			if (mSpeech) {
+				mSpeech = false;
+				writeRegion(mSpeechStart, mSamples);
+			}
+			// silence is written one block late, in case speech follows
+			int n = Math.min(count, mHeld.length);
+			skip(mHeldCount + count - n);
+			System.arraycopy(pcm, count - n, mHeld, 0, n);
+			mHeldCount = n;
+		}
+		mSamples += count;
+	}
+
+	private void skip(int samples) throws IOException {
+		if (mMode == MODE_MARKER && samples > 0)
+			mSink.encodeSilence(samples);
+	}
+
+	private boolean isSpeech(long energy, int crossings) {
+		if (energy < MIN_ENERGY)
+			return false;
+		if (mNoiseFloor < 0)
+			// nothing to compare the first block with
+			return true;
+		if (energy > mNoiseFloor * SPEECH_RATIO)
+			return true;
+		return energy > mNoiseFloor * UNVOICED_RATIO
+				&& crossings > UNVOICED_ZCR;
+	}
+
+	/*
+	 * The floor follows quiet blocks quickly and creeps up slowly during
+	 * speech, so a rising background level is eventually accepted as noise.
+	 */
+	private void trackFloor(long energy, boolean active) {
+		if (mNoiseFloor < 0) {
+			mNoiseFloor = Math.max(energy, MIN_ENERGY / SPEECH_RATIO);
+		} else if (!active || energy < mNoiseFloor) {
+			mNoiseFloor += (energy - mNoiseFloor) / 8;
+		} else {
+			mNoiseFloor += (energy - mNoiseFloor) / 512;
+		}
+		if (mNoiseFloor < 1)
+			mNoiseFloor = 1;
+	}
+
+	private void writeRegion(long startSample, long endSample) {
+		if (mIndex == null)
+			return;
+		try {
+			mIndex.writeLong(startSample * 1000 / mSampleRate);
+			mIndex.writeLong(endSample * 1000 / mSampleRate);
+		} catch (IOException e) {
+			Log.w(TAG, "speech index write failed " + e);
+			closeIndex();
+		}
+	}
+
+	private void closeIndex() {
+		try {
+			mIndex.close();
+		} catch (IOException e) {
+			Log.w(TAG, "speech index close failed " + e);
+		}
+		mIndex = null;
+	}
+
+	/**
+	 * Fraction of the input kept as speech so far, 1 before any input.
+	 */
+	public float speechFraction() {
+		long samples = mSamples;
+		if (samples == 0)
+			return 1f;
+		return (float) mSpeechSamples / samples;
+	}
+
+	public long bytesWritten() {
+		return mTarget.bytesWritten();
+	}
+
+	public long samplesWritten() {
+		return mTarget.samplesWritten();
+	}
+
+	public void close() throws IOException {
+		if (mSpeech) {
+			mSpeech = false;
+			writeRegion(mSpeechStart, mSamples);
+		}
+		skip(mHeldCount);
+		mHeldCount = 0;
+		if (mIndex != null)
+			closeIndex();
+		mTarget.close();
+		if (mSamples > 0) {
+			Log.d(TAG, "kept " + (mSpeechSamples * 100 / mSamples)
+					+ "% of " + (mSamples * 1000 / mSampleRate) + "ms");
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Writes 16 bit mono PCM as a Broadcast Wave file. Samples go straight into a
+ * memory mapped window of the file that is moved on in large steps, so there
+ * is no write call per block. The RIFF and data sizes are patched in place
+ * about once a second, a crash leaves a file that plays up to that point.
+ * Given a size limit the data ends on the last whole sample that fits.
+ * Windows are mapped over space reserved by a {@link Preallocator} if asked
+ * to, a full disk then ends the data instead of faulting a mapped write.
+ * The windows and the header are synced as the
+ * {@link WriteBehindOutput.Policy} says.
+ * <p>
+ * Layout: RIFF header, bext chunk with the recording time, fmt chunk, data
+ * chunk.
+ */
+class WavWriter implements PcmEncoder, PcmEncoder.SizeLimited,
+		PcmEncoder.Durable {
+	static final String TAG = "WavWriter";
+
+	// 1MB, about a minute at 8kHz
+	static final int WINDOW_BYTES = 1 << 20;
+	private static final int BEXT_BYTES = 602;
+	// RIFF + bext + fmt + data chunk header
+	static final int HEADER_BYTES = 12 + 8 + BEXT_BYTES + 8 + 16 + 8;
+	static final int RIFF_SIZE_OFFSET = 4;
+	static final int SAMPLE_RATE_OFFSET = 12 + 8 + BEXT_BYTES + 8 + 4;
+	static final int DATA_SIZE_OFFSET = HEADER_BYTES - 4;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mHeader;
+	private MappedByteBuffer mWindow;
+	private ShortBuffer mSamples;
+	private long mWindowStart;
+	private long mDataBytes;
+	private long mPatchedBytes;
+	private int mPatchInterval;
+	private long mTimestamp;
+	private long mMaxBytes;
+	private boolean mPreallocate;
+	private Preallocator mPreallocator;
+	private volatile boolean mFull;
+	private volatile boolean mOutOfSpace;
+	private WriteBehindOutput.Policy mSyncPolicy = WriteBehindOutput.Policy
+			.onClose();
+	private WriteBehindOutput.Latencies mSyncs;
+	private long mSyncedBytes;
+	private long mLastSyncNanos;
+
+	/**
+	 * Origination time stored in the bext chunk, defaults to the time the
+	 * file is opened.
+	 */
+	public void setTimestamp(long millis) {
+		mTimestamp = millis;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	public void setSyncPolicy(WriteBehindOutput.Policy policy) {
+		mSyncPolicy = policy != null ? policy : WriteBehindOutput.Policy
+				.onClose();
+	}
+
+	/**
+	 * Not needed, the kernel writes the mapped windows back.
+	 */
+	public void setWriter(Executor writer) {
+	}
+
+	WriteBehindOutput.Latencies syncLatencies() {
+		return mSyncs;
+	}
+
+	public void setPreallocate(boolean preallocate) {
+		mPreallocate = preallocate;
+	}
+
+	public boolean isFull() {
+		return mFull;
+	}
+
+	public boolean isOutOfSpace() {
+		return mOutOfSpace;
+	}
+
+	public void open(File file, int sampleRate) throws IOException {
+		if (mTimestamp == 0)
+			mTimestamp = System.currentTimeMillis();
+		mFull = mMaxBytes > 0 && mMaxBytes < HEADER_BYTES + 2;
+		mOutOfSpace = false;
+		mPreallocator = null;
+		mWindow = null;
+		mSyncs = new WriteBehindOutput.Latencies();
+		mSyncedBytes = 0;
+		mLastSyncNanos = System.nanoTime();
+		mDataBytes = 0;
+		mPatchedBytes = 0;
+		mPatchInterval = sampleRate * 2;
+
+		mFile = new RandomAccessFile(file, "rw");
+		try {
+			mFile.setLength(0);
+			mChannel = mFile.getChannel();
+			ByteBuffer header = buildHeader(sampleRate);
+			ThreeGppFile.writeFully(mChannel, header);
+			mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_BYTES);
+			mHeader.order(ByteOrder.LITTLE_ENDIAN);
+			if (mPreallocate) {
+				mPreallocator = new Preallocator(mFile.getFD(), mChannel,
+						mMaxBytes);
+				mPreallocator.start(HEADER_BYTES);
+			}
+			mapWindow(HEADER_BYTES);
+		} catch (IOException e) {
+			mFile.close();
+			mFile = null;
+			throw e;
+		}
+	}
+
+	private ByteBuffer buildHeader(int sampleRate) {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		putAscii(b, "RIFF");
+		b.putInt(HEADER_BYTES - 8);
+		putAscii(b, "WAVE");
+
+		putAscii(b, "bext");
+		b.putInt(BEXT_BYTES);
+		int bext = b.position();
+		b.position(bext + 256); // description
+		putPadded(b, "SoundRecorder", 32); // originator
+		b.position(b.position() + 32); // originator reference
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(mTimestamp);
+		putAscii(b, String.format(Locale.US, "%04d-%02d-%02d",
+				c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+				c.get(Calendar.DAY_OF_MONTH)));
+		putAscii(b, String.format(Locale.US, "%02d:%02d:%02d",
+				c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE),
+				c.get(Calendar.SECOND)));
+		// time reference, samples since midnight
+		long midnight = (c.get(Calendar.HOUR_OF_DAY) * 3600L
+				+ c.get(Calendar.MINUTE) * 60 + c.get(Calendar.SECOND))
+				* 1000 + c.get(Calendar.MILLISECOND);
+		b.putLong(midnight * sampleRate / 1000);
+		b.putShort((short) 1); // version
+		b.position(bext + BEXT_BYTES); // UMID, loudness, reserved
+
+		putAscii(b, "fmt ");
+		b.putInt(16);
+		b.putShort((short) 1); // PCM
+		b.putShort((short) 1); // mono
+		b.putInt(sampleRate);
+		b.putInt(sampleRate * 2);
+		b.putShort((short) 2); // block align
+		b.putShort((short) 16);
+
+		putAscii(b, "data");
+		b.putInt(0);
+		b.flip();
+		return b;
+	}
+
+	private static void putAscii(ByteBuffer b, String s) {
+		for (int i = 0; i < s.length(); i++)
+			b.put((byte) s.charAt(i));
+	}
+
+	private static void putPadded(ByteBuffer b, String s, int length) {
+		int end = b.position() + length;
+		putAscii(b, s);
+		b.position(end);
+	}
+
+	/*
+	 * Maps the next window, which also grows the file to cover it. The window
+	 * stops short at the size limit or the end of the reserved space, false
+	 * if there is no room for another sample.
+	 */
+	private boolean mapWindow(long start) throws IOException {
+		// the old window can't be synced once it is gone
+		if (mWindow != null && mSyncPolicy.mMode
+				!= WriteBehindOutput.Policy.SYNC_ON_CLOSE)
+			sync();
+		long end = start + WINDOW_BYTES;
+		if (mMaxBytes > 0)
+			end = Math.min(end, mMaxBytes);
+		if (mPreallocator != null && !mPreallocator.ensure(end)) {
+			mOutOfSpace = true;
+			end = mPreallocator.reserved();
+		}
+		end = start + ((end - start) & ~1L);
+		if (end <= start)
+			return false;
+		mWindowStart = start;
+		mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, start,
+				end - start);
+		mWindow.order(ByteOrder.LITTLE_ENDIAN);
+		mSamples = mWindow.asShortBuffer();
+		return true;
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		if (mFull)
+			return;
+		if (mMaxBytes > 0) {
+			long room = (mMaxBytes - HEADER_BYTES - mDataBytes) / 2;
+			if (count > room) {
+				count = (int) room;
+				mFull = true;
+			}
+		}
+		int offset = 0;
+		while (offset < count) {
+			if (!mSamples.hasRemaining()
+					&& !mapWindow(mWindowStart + mWindow.capacity())) {
+				mFull = true;
+				break;
+			}
+			int n = Math.min(count - offset, mSamples.remaining());
+			mSamples.put(pcm, offset, n);
+			offset += n;
+			mDataBytes += n * 2;
+		}
+		if (mDataBytes - mPatchedBytes >= mPatchInterval)
+			patchSizes();
+		if (syncDue())
+			sync();
+	}
+
+	private boolean syncDue() {
+		switch (mSyncPolicy.mMode) {
+		case WriteBehindOutput.Policy.SYNC_INTERVAL:
+			return System.nanoTime() - mLastSyncNanos >= mSyncPolicy.mValue;
+		case WriteBehindOutput.Policy.SYNC_BYTES:
+			return mDataBytes - mSyncedBytes >= mSyncPolicy.mValue;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Writes back the window and the header with sizes that cover it.
+	 */
+	private void sync() {
+		patchSizes();
+		long begin = System.nanoTime();
+		mWindow.force();
+		mHeader.force();
+		mSyncs.add(System.nanoTime() - begin);
+		mSyncedBytes = mDataBytes;
+		mLastSyncNanos = System.nanoTime();
+	}
+
+	private void patchSizes() {
+		long riff = Math.min(HEADER_BYTES - 8 + mDataBytes, 0xFFFFFFFFL);
+		long data = Math.min(mDataBytes, 0xFFFFFFFFL - HEADER_BYTES);
+		mHeader.putInt(RIFF_SIZE_OFFSET, (int) riff);
+		mHeader.putInt(DATA_SIZE_OFFSET, (int) data);
+		mPatchedBytes = mDataBytes;
+	}
+
+	public long bytesWritten() {
+		return HEADER_BYTES + mDataBytes;
+	}
+
+	public long samplesWritten() {
+		return mDataBytes / 2;
+	}
+
+	public void close() throws IOException {
+		if (mFile == null)
+			return;
+		try {
+			patchSizes();
+			if (mWindow != null)
+				mWindow.force();
+			mHeader.force();
+			// drop the unused tail of the last window
+			mChannel.truncate(HEADER_BYTES + mDataBytes);
+			// earlier windows too, and the new length
+			long begin = System.nanoTime();
+			mChannel.force(true);
+			mSyncs.add(System.nanoTime() - begin);
+			Log.d(TAG, mSyncPolicy + ", syncs " + mSyncs);
+		} finally {
+			mFile.close();
+			mFile = null;
+			mChannel = null;
+			mHeader = null;
+			mWindow = null;
+			mSamples = null;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.example.soundrecord2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Min/max peaks of a recording at several zoom levels, kept in a hidden
+ * sidecar next to it so a waveform can be shown without decoding the audio.
+ * Level 0 has one pair per 20ms, every further level one pair per FACTOR
+ * pairs of the level below. A peak is the top 8 bits of a sample.
+ * <p>
+ * Level 0 is streamed to the file as the audio comes in. The coarser levels
+ * are built on close, each by reading back the one below, so memory use
+ * doesn't grow with the length of the recording. A sidecar whose header
+ * lists no levels was never closed and holds level 0 only.
+ * <p>
+ * Layout: magic, sample rate, samples per level 0 pair, factor, level count,
+ * offset and pair count of each level, then the levels.
+ */
+class Waveform implements PcmEncoder {
+	static final String TAG = "Waveform";
+
+	private static final int MAGIC = 0x57464D31; // "WFM1"
+	static final int FACTOR = 4;
+	static final int MAX_LEVELS = 8;
+	private static final int LEVELS_OFFSET = 20;
+	private static final int LEVEL_BYTES = 12;
+	static final int HEADER_BYTES = LEVELS_OFFSET + MAX_LEVELS * LEVEL_BYTES;
+	// a multiple of FACTOR pairs
+	private static final int BUFFER_BYTES = 8192;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private final ByteBuffer mOut = ByteBuffer.allocate(BUFFER_BYTES);
+	private long mWritePos;
+	private int mSampleRate;
+	private int mBaseSamples;
+	private int mMin;
+	private int mMax;
+	private int mInWindow;
+	private long mPairs;
+
+	static File sidecar(File recording) {
+		return new File(recording.getParentFile(), "." + recording.getName()
+				+ ".wfm");
+	}
+
+	/**
+	 * Starts the sidecar of the given recording.
+	 */
+	public void open(File recording, int sampleRate) throws IOException {
+		mSampleRate = sampleRate;
+		mBaseSamples = Math.max(1, sampleRate / 50);
+		mPairs = 0;
+		resetWindow();
+		mOut.clear();
+		mFile = new RandomAccessFile(sidecar(recording), "rw");
+		try {
+			mFile.setLength(0);
+			mChannel = mFile.getChannel();
+			writeHeader(null, null, 0);
+		} catch (IOException e) {
+			mFile.close();
+			mFile = null;
+			throw e;
+		}
+		mWritePos = HEADER_BYTES;
+	}
+
+	private void resetWindow() {
+		mMin = Integer.MAX_VALUE;
+		mMax = Integer.MIN_VALUE;
+		mInWindow = 0;
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			int s = pcm[i];
+			if (s < mMin)
+				mMin = s;
+			if (s > mMax)
+				mMax = s;
+			if (++mInWindow == mBaseSamples)
+				emit();
+		}
+	}
+
+	/**
+	 * Adds samples of digital silence without any to look at.
+	 */
+	public void encodeSilence(int samples) throws IOException {
+		while (samples > 0) {
+			int n = Math.min(samples, mBaseSamples - mInWindow);
+			if (mMin > 0)
+				mMin = 0;
+			if (mMax < 0)
+				mMax = 0;
+			mInWindow += n;
+			samples -= n;
+			if (mInWindow == mBaseSamples)
+				emit();
+		}
+	}
+
+	private void emit() throws IOException {
+		if (!mOut.hasRemaining())
+			flush();
+		mOut.put((byte) (mMin >> 8));
+		mOut.put((byte) (mMax >> 8));
+		mPairs++;
+		resetWindow();
+	}
+
+	private void flush() throws IOException {
+		mOut.flip();
+		while (mOut.hasRemaining())
+			mWritePos += mChannel.write(mOut, mWritePos);
+		mOut.clear();
+	}
+
+	public long bytesWritten() {
+		return HEADER_BYTES + mPairs * 2;
+	}
+
+	public long samplesWritten() {
+		return mPairs * mBaseSamples + mInWindow;
+	}
+
+	/**
+	 * Writes out level 0, builds the coarser levels from it and completes the
+	 * header.
+	 */
+	public void close() throws IOException {
+		if (mFile == null)
+			return;
+		try {
+			if (mInWindow > 0)
+				emit();
+			flush();
+			long[] offsets = new long[MAX_LEVELS];
+			int[] counts = new int[MAX_LEVELS];
+			offsets[0] = HEADER_BYTES;
+			counts[0] = (int) mPairs;
+			int levels = 1;
+			while (levels < MAX_LEVELS && counts[levels - 1] > 1) {
+				offsets[levels] = mWritePos;
+				counts[levels] = reduce(offsets[levels - 1], counts[levels - 1]);
+				levels++;
+			}
+			writeHeader(offsets, counts, levels);
+		} finally {
+			mFile.close();
+			mFile = null;
+			mChannel = null;
+		}
+	}
+
+	/*
+	 * Appends the level made from the given one, returns its pair count.
+	 */
+	private int reduce(long offset, int count) throws IOException {
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+		Fold fold = new Fold(FACTOR);
+		int pairs = 0;
+		long pos = offset;
+		long end = offset + count * 2L;
+		while (pos < end) {
+			in.clear();
+			in.limit((int) Math.min(BUFFER_BYTES, end - pos));
+			readFully(mChannel, in, pos);
+			pos += in.limit();
+			in.flip();
+			while (in.remaining() >= 2) {
+				if (fold.add(in.get(), in.get())) {
+					if (!mOut.hasRemaining())
+						flush();
+					fold.put(mOut);
+					pairs++;
+				}
+			}
+		}
+		if (fold.pending()) {
+			if (!mOut.hasRemaining())
+				flush();
+			fold.put(mOut);
+			pairs++;
+		}
+		flush();
+		return pairs;
+	}
+
+	private void writeHeader(long[] offsets, int[] counts, int levels)
+			throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+		b.putInt(MAGIC);
+		b.putInt(mSampleRate);
+		b.putInt(mBaseSamples);
+		b.putInt(FACTOR);
+		b.putInt(levels);
+		for (int i = 0; i < levels; i++) {
+			b.putLong(offsets[i]);
+			b.putInt(counts[i]);
+		}
+		b.clear();
+		while (b.hasRemaining())
+			mChannel.write(b, b.position());
+	}
+
+	/**
+	 * Peaks of the recording as min,max byte pairs, from the finest level
+	 * with no more than maxPairs of them. If every level has more, the
+	 * coarsest is folded down while it is read. Null if there is no usable
+	 * sidecar.
+	 */
+	static byte[] read(File recording, int maxPairs) {
+		File file = sidecar(recording);
+		if (!file.exists())
+			return null;
+		maxPairs = Math.max(1, maxPairs);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (raf.length() < HEADER_BYTES)
+					return null;
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				readFully(channel, header, 0);
+				if (header.getInt(0) != MAGIC)
+					return null;
+				int levels = header.getInt(16);
+				long offset;
+				long count;
+				if (levels <= 0) {
+					offset = HEADER_BYTES;
+					count = (raf.length() - HEADER_BYTES) / 2;
+				} else {
+					int level = 0;
+					while (level < levels - 1 && levelCount(header, level)
+							> maxPairs)
+						level++;
+					offset = header.getLong(LEVELS_OFFSET + level
+							* LEVEL_BYTES);
+					count = levelCount(header, level);
+				}
+				int factor = (int) Math.max(1, (count + maxPairs - 1)
+						/ maxPairs);
+				byte[] result = new byte[(int) ((count + factor - 1) / factor)
+						* 2];
+				ByteBuffer out = ByteBuffer.wrap(result);
+				Fold fold = new Fold(factor);
+				ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+				long pos = offset;
+				long end = offset + count * 2;
+				while (pos < end) {
+					in.clear();
+					in.limit((int) Math.min(BUFFER_BYTES, end - pos));
+					readFully(channel, in, pos);
+					pos += in.limit();
+					in.flip();
+					while (in.remaining() >= 2) {
+						if (fold.add(in.get(), in.get()))
+							fold.put(out);
+					}
+				}
+				if (fold.pending())
+					fold.put(out);
+				return result;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "can't read " + file + ": " + e);
+			return null;
+		}
+	}
+
+	private static int levelCount(ByteBuffer header, int level) {
+		return header.getInt(LEVELS_OFFSET + level * LEVEL_BYTES + 8);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf,
+			long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0)
+				throw new EOFException();
+		}
+	}
+
+	/*
+	 * Merges runs of pairs into one.
+	 */
+	private static class Fold {
+		private final int mFactor;
+		private int mMin;
+		private int mMax;
+		private int mCount;
+
+		Fold(int factor) {
+			mFactor = factor;
+			reset();
+		}
+
+		private void reset() {
+			mMin = Byte.MAX_VALUE;
+			mMax = Byte.MIN_VALUE;
+			mCount = 0;
+		}
+
+		/**
+		 * True once the run is complete and should be put.
+		 */
+		boolean add(byte min, byte max) {
+			if (min < mMin)
+				mMin = min;
+			if (max > mMax)
+				mMax = max;
+			return ++mCount == mFactor;
+		}
+
+		boolean pending() {
+			return mCount > 0;
+		}
+
+		void put(ByteBuffer out) {
+			out.put((byte) mMin);
+			out.put((byte) mMax);
+			reset();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Background pass that writes the {@link Waveform} sidecar of recordings
+ * that have none, or one older than the recording: MediaRecorder files,
+ * recovered files and whatever was recorded before sidecars existed. The
+ * audio is decoded one codec buffer at a time straight into the sidecar.
+ */
+class WaveformBackfill implements Runnable {
+	static final String TAG = "WaveformBackfill";
+
+	private static boolean sStarted;
+
+	private final File mDir;
+	private final RecordingJournal mJournal;
+
+	private WaveformBackfill(Context context, File dir) {
+		mDir = dir;
+		mJournal = new RecordingJournal(RecordingRecovery.journalDir(context));
+	}
+
+	/**
+	 * Starts the pass over the directory, once per process.
+	 */
+	public static synchronized void start(Context context, File dir) {
+		if (sStarted)
+			return;
+		sStarted = true;
+		Thread t = new Thread(new WaveformBackfill(context, dir), TAG);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public void run() {
+		File[] files = mDir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(".") || !(name.endsWith(".amr")
+					|| name.endsWith(".3gpp") || name.endsWith(".wav")
+					|| name.endsWith(".flac")))
+				continue;
+			// being recorded, or waiting for recovery
+			if (mJournal.isTracked(file))
+				continue;
+			File sidecar = Waveform.sidecar(file);
+			if (sidecar.exists()
+					&& sidecar.lastModified() >= file.lastModified())
+				continue;
+			build(file);
+		}
+	}
+
+	private static void build(File file) {
+		Waveform waveform = new Waveform();
+		PcmDecoder decoder = null;
+		try {
+			decoder = new PcmDecoder(file);
+			waveform.open(file, decoder.sampleRate());
+			try {
+				decoder.decodeTo(waveform);
+			} finally {
+				waveform.close();
+			}
+			Log.d(TAG, "built " + Waveform.sidecar(file));
+		} catch (IOException e) {
+			Log.w(TAG, "no waveform for " + file + ": " + e);
+			Waveform.sidecar(file).delete();
+		} finally {
+			if (decoder != null)
+				decoder.release();
+		}
+	}
+}
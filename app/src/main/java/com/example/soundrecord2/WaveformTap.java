@@ -0,0 +1,112 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Encoder stage that hands every block on unchanged and writes the
+ * {@link Waveform} sidecar of the file on the way. It sits right in front of
+ * the encoder, so the peaks follow the file's timeline, silence markers
+ * included. A sidecar that can't be written is dropped, the recording goes
+ * on.
+ */
+class WaveformTap implements PcmEncoder {
+	static final String TAG = "WaveformTap";
+
+	final PcmEncoder mTarget;
+	final Waveform mWaveform = new Waveform();
+	private File mFile;
+	boolean mFailed;
+
+	/**
+	 * Wraps the encoder. The result stores silence compactly exactly when
+	 * the encoder does, so a {@link VoiceActivityDetector} in front of it
+	 * picks the same mode.
+	 */
+	static WaveformTap wrap(PcmEncoder target) {
+		if (target instanceof VoiceActivityDetector.SilenceSink)
+			return new Marking(target);
+		return new WaveformTap(target);
+	}
+
+	private WaveformTap(PcmEncoder target) {
+		mTarget = target;
+	}
+
+	public void open(File file, int sampleRate) throws IOException {
+		mFile = file;
+		mFailed = false;
+		mTarget.open(file, sampleRate);
+		try {
+			mWaveform.open(file, sampleRate);
+		} catch (IOException e) {
+			Log.w(TAG, "no waveform for " + file + ": " + e);
+			mFailed = true;
+		}
+	}
+
+	public void encode(short[] pcm, int count) throws IOException {
+		mTarget.encode(pcm, count);
+		if (mFailed)
+			return;
+		try {
+			mWaveform.encode(pcm, count);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	void fail(IOException e) {
+		Log.w(TAG, "dropping waveform of " + mFile + ": " + e);
+		mFailed = true;
+		try {
+			mWaveform.close();
+		} catch (IOException ignored) {
+			// deleted anyway
+		}
+		Waveform.sidecar(mFile).delete();
+	}
+
+	public long bytesWritten() {
+		return mTarget.bytesWritten();
+	}
+
+	public long samplesWritten() {
+		return mTarget.samplesWritten();
+	}
+
+	public void close() throws IOException {
+		try {
+			mTarget.close();
+		} finally {
+			if (!mFailed) {
+				try {
+					mWaveform.close();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+
+	private static class Marking extends WaveformTap implements
+			VoiceActivityDetector.SilenceSink {
+		Marking(PcmEncoder target) {
+			super(target);
+		}
+
+		public void encodeSilence(int samples) throws IOException {
+			((VoiceActivityDetector.SilenceSink) mTarget)
+					.encodeSilence(samples);
+			if (mFailed)
+				return;
+			try {
+				mWaveform.encodeSilence(samples);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.soundrecord2;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.View;
+
+/**
+ * Thumbnail of a recording drawn from its {@link Waveform} sidecar, one
+ * min/max line per pixel column. The sidecar is read off the UI thread and
+ * the peaks are cached, so scrolling the list doesn't read them again. Draws
+ * nothing while a recording has no sidecar yet, e.g. before the backfill got
+ * to it.
+ */
+public class WaveformView extends View {
+	static final String TAG = "WaveformView";
+
+	private static final int CACHE_ENTRIES = 64;
+	private static final Executor sLoader = Executors
+			.newSingleThreadExecutor();
+	private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(
+			CACHE_ENTRIES);
+
+	private Paint mPaint;
+	private File mFile;
+	private byte[] mPeaks;
+	private float[] mLines;
+
+	public WaveformView(Context context) {
+		super(context);
+		init(context);
+	}
+
+	public WaveformView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init(context);
+	}
+
+	void init(Context context) {
+		mPaint = new Paint();
+		mPaint.setColor(Color.GRAY);
+		mPaint.setStrokeWidth(1);
+	}
+
+	/**
+	 * Shows the given recording, or nothing for null.
+	 */
+	public void setRecording(File file) {
+		if (file != null && file.equals(mFile))
+			return;
+		mFile = file;
+		setPeaks(null);
+		load();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (w != oldw) {
+			setPeaks(null);
+			load();
+		}
+	}
+
+	private void load() {
+		final File file = mFile;
+		final int width = getWidth();
+		if (file == null || width <= 0)
+			return;
+		final String key = file.getPath() + "/" + width;
+		byte[] cached = sCache.get(key);
+		if (cached != null) {
+			setPeaks(cached);
+			return;
+		}
+		sLoader.execute(new Runnable() {
+			public void run() {
+				final byte[] peaks = Waveform.read(file, width);
+				if (peaks == null)
+					return;
+				sCache.put(key, peaks);
+				post(new Runnable() {
+					public void run() {
+						// the row may have been reused for another recording
+						if (file.equals(mFile) && width == getWidth())
+							setPeaks(peaks);
+					}
+				});
+			}
+		});
+	}
+
+	private void setPeaks(byte[] peaks) {
+		mPeaks = peaks;
+		mLines = peaks == null ? null : new float[peaks.length * 2];
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		byte[] peaks = mPeaks;
+		if (peaks == null)
+			return;
+		int pairs = peaks.length / 2;
+		float mid = getHeight() / 2f;
+		float scale = getHeight() / 256f;
+		float step = (float) getWidth() / pairs;
+		for (int i = 0; i < pairs; i++) {
+			float x = i * step;
+			mLines[i * 4] = x;
+			mLines[i * 4 + 1] = mid - peaks[i * 2 + 1] * scale;
+			mLines[i * 4 + 2] = x;
+			// at least a pixel, so silence still shows as a line
+			mLines[i * 4 + 3] = mid - peaks[i * 2] * scale + 1;
+		}
+		canvas.drawLines(mLines, mPaint);
+	}
+}
@@ -0,0 +1,361 @@
+package com.example.soundrecord2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Buffered output for the encoders that write their own file. Data collects
+ * in large direct buffers that end on ALIGN_BYTES file offsets, full buffers
+ * are written by a writer thread behind the encoder, which only waits once
+ * all BUFFERS are in flight. The writer is a long-lived one of the caller,
+ * or a thread of the output's own. A buffer is handed off after
+ * HANDOFF_SECONDS at the latest, full or not, so a killed process loses no
+ * more than that. When the written data is synced to the device is up to
+ * the {@link Policy}. Write and sync latencies are counted and logged on
+ * close.
+ */
+class WriteBehindOutput {
+	static final String TAG = "WriteBehindOutput";
+
+	// 4 seconds of WAV, a minute of AMR
+	static final int BUFFER_BYTES = 64 * 1024;
+	// writes after the first start on file system block boundaries
+	static final int ALIGN_BYTES = 4096;
+	private static final int BUFFERS = 4;
+	// AMR fills a buffer in about 40 seconds
+	private static final long HANDOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * When written data is synced: only on close, after some seconds, or
+	 * after some bytes. This bounds the audio a power loss can take, data
+	 * reaches the kernel within HANDOFF_NANOS under every policy.
+	 */
+	static class Policy {
+		static final int SYNC_ON_CLOSE = 0;
+		static final int SYNC_INTERVAL = 1;
+		static final int SYNC_BYTES = 2;
+
+		final int mMode;
+		// nanoseconds or bytes
+		final long mValue;
+
+		private Policy(int mode, long value) {
+			mMode = mode;
+			mValue = value;
+		}
+
+		static Policy onClose() {
+			return new Policy(SYNC_ON_CLOSE, 0);
+		}
+
+		static Policy everySeconds(int seconds) {
+			return new Policy(SYNC_INTERVAL, TimeUnit.SECONDS.toNanos(
+					Math.max(1, seconds)));
+		}
+
+		static Policy everyBytes(long bytes) {
+			return new Policy(SYNC_BYTES, Math.max(1, bytes));
+		}
+
+		@Override
+		public String toString() {
+			switch (mMode) {
+			case SYNC_INTERVAL:
+				return "sync every " + TimeUnit.NANOSECONDS.toSeconds(mValue)
+						+ "s";
+			case SYNC_BYTES:
+				return "sync every " + mValue + " bytes";
+			default:
+				return "sync on close";
+			}
+		}
+	}
+
+	/**
+	 * Latencies of one kind of operation, percentiles over the most recent
+	 * SAMPLES of them.
+	 */
+	static class Latencies {
+		private static final int SAMPLES = 512;
+
+		private final long[] mNanos = new long[SAMPLES];
+		private long mCount;
+		private long mMax;
+
+		synchronized void add(long nanos) {
+			mNanos[(int) (mCount++ % SAMPLES)] = nanos;
+			mMax = Math.max(mMax, nanos);
+		}
+
+		synchronized long count() {
+			return mCount;
+		}
+
+		synchronized long maxNanos() {
+			return mMax;
+		}
+
+		/**
+		 * The given percentile in nanoseconds, 0 before the first sample.
+		 */
+		synchronized long percentile(int percent) {
+			int n = (int) Math.min(mCount, SAMPLES);
+			if (n == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(mNanos, n);
+			Arrays.sort(sorted);
+			return sorted[Math.min(n - 1, n * percent / 100)];
+		}
+
+		@Override
+		public synchronized String toString() {
+			return mCount + " x, p50 " + percentile(50) / 1000 + "us, p95 "
+					+ percentile(95) / 1000 + "us, p99 " + percentile(99)
+					/ 1000 + "us, max " + mMax / 1000 + "us";
+		}
+	}
+
+	private final FileChannel mChannel;
+	private final Policy mPolicy;
+	private final Executor mWriter;
+	// the writer if it was created for this output alone
+	private final ExecutorService mOwnWriter;
+	private final BlockingQueue<ByteBuffer> mFree = new ArrayBlockingQueue<ByteBuffer>(
+			BUFFERS);
+	private final Latencies mWrites = new Latencies();
+	private final Latencies mSyncs = new Latencies();
+	private volatile IOException mError;
+
+	// the buffer being filled and where it goes, caller's thread only
+	private ByteBuffer mBuffer;
+	private long mBufferStart;
+	private long mUnsynced;
+	private long mLastSyncNanos;
+	private long mLastHandOffNanos;
+
+	/**
+	 * Writes to channel from position on, on a thread of its own. The channel
+	 * is left open on close.
+	 */
+	WriteBehindOutput(FileChannel channel, long position, Policy policy) {
+		this(channel, position, policy, null);
+	}
+
+	/**
+	 * Writes to channel from position on, on the given writer, which must
+	 * run commands one at a time in order. The channel is left open on close.
+	 */
+	WriteBehindOutput(FileChannel channel, long position, Policy policy,
+			Executor writer) {
+		mChannel = channel;
+		mPolicy = policy != null ? policy : Policy.onClose();
+		for (int i = 0; i < BUFFERS; i++)
+			mFree.add(ByteBuffer.allocateDirect(BUFFER_BYTES));
+		if (writer == null) {
+			mOwnWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, TAG);
+				}
+			});
+			writer = mOwnWriter;
+		} else {
+			mOwnWriter = null;
+		}
+		mWriter = writer;
+		mBuffer = mFree.poll();
+		startBuffer(position);
+		mLastSyncNanos = System.nanoTime();
+		mLastHandOffNanos = mLastSyncNanos;
+	}
+
+	/*
+	 * The buffer ends on a block boundary, so the writes after it are
+	 * aligned.
+	 */
+	private void startBuffer(long position) {
+		mBufferStart = position;
+		mBuffer.clear();
+		mBuffer.limit(BUFFER_BYTES - (int) (position % ALIGN_BYTES));
+	}
+
+	/**
+	 * End of the data written so far.
+	 */
+	long position() {
+		return mBufferStart + mBuffer.position();
+	}
+
+	Latencies writeLatencies() {
+		return mWrites;
+	}
+
+	Latencies syncLatencies() {
+		return mSyncs;
+	}
+
+	/**
+	 * Appends the remaining bytes of src. Throws if an earlier write behind
+	 * failed.
+	 */
+	void write(ByteBuffer src) throws IOException {
+		checkError();
+		int limit = src.limit();
+		while (src.hasRemaining()) {
+			if (!mBuffer.hasRemaining())
+				handOff();
+			src.limit(src.position() + Math.min(src.remaining(),
+					mBuffer.remaining()));
+			mBuffer.put(src);
+			src.limit(limit);
+		}
+		if (System.nanoTime() - mLastHandOffNanos >= HANDOFF_NANOS)
+			handOff();
+	}
+
+	void write(byte[] b, int offset, int length) throws IOException {
+		write(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * Overwrites data already written, e.g. a header. Lands after everything
+	 * written before.
+	 */
+	void patch(long position, byte[] data) throws IOException {
+		checkError();
+		if (position + data.length > position())
+			throw new IOException("patch past the end");
+		// the part still in the buffer is changed in place
+		int queued = (int) Math.max(0, Math.min(data.length, mBufferStart
+				- position));
+		for (int i = queued; i < data.length; i++)
+			mBuffer.put((int) (position + i - mBufferStart), data[i]);
+		if (queued == 0)
+			return;
+		final ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOf(data, queued));
+		final long at = position;
+		mWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					writeFully(copy, at);
+				} catch (IOException e) {
+					mError = e;
+				}
+			}
+		});
+	}
+
+	/*
+	 * Queues the current buffer, with a sync after it if the policy says
+	 * one is due, and goes on with a free one.
+	 */
+	private void handOff() throws IOException {
+		final ByteBuffer buffer = mBuffer;
+		final long start = mBufferStart;
+		buffer.flip();
+		long end = start + buffer.remaining();
+		long now = System.nanoTime();
+		mLastHandOffNanos = now;
+		mUnsynced += buffer.remaining();
+		boolean sync = false;
+		if (mPolicy.mMode == Policy.SYNC_BYTES
+				&& mUnsynced >= mPolicy.mValue)
+			sync = true;
+		if (mPolicy.mMode == Policy.SYNC_INTERVAL && mUnsynced > 0
+				&& now - mLastSyncNanos >= mPolicy.mValue)
+			sync = true;
+		if (sync) {
+			mUnsynced = 0;
+			mLastSyncNanos = now;
+		}
+		final boolean force = sync;
+		mWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					if (buffer.hasRemaining()) {
+						long begin = System.nanoTime();
+						writeFully(buffer, start);
+						mWrites.add(System.nanoTime() - begin);
+					}
+					if (force)
+						force(false);
+				} catch (IOException e) {
+					mError = e;
+				}
+				mFree.add(buffer);
+			}
+		});
+		try {
+			mBuffer = mFree.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("waiting for a buffer");
+		}
+		startBuffer(end);
+	}
+
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining())
+			position += mChannel.write(buffer, position);
+	}
+
+	private void force(boolean metaData) throws IOException {
+		long begin = System.nanoTime();
+		mChannel.force(metaData);
+		mSyncs.add(System.nanoTime() - begin);
+	}
+
+	private void checkError() throws IOException {
+		IOException e = mError;
+		if (e != null)
+			throw e;
+	}
+
+	/**
+	 * Writes out the rest, cuts the file at length unless that is negative,
+	 * syncs and waits for all of it.
+	 */
+	void close(final long length) throws IOException {
+		final CountDownLatch done = new CountDownLatch(1);
+		try {
+			handOff();
+			mWriter.execute(new Runnable() {
+				public void run() {
+					try {
+						if (length >= 0 && mChannel.size() > length)
+							mChannel.truncate(length);
+						force(true);
+					} catch (IOException e) {
+						mError = e;
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			if (!done.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				mError = new IOException("writer stuck");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mError = new InterruptedIOException("closing");
+		} finally {
+			if (mOwnWriter != null)
+				mOwnWriter.shutdown();
+		}
+		Log.d(TAG, mPolicy + ", writes " + mWrites + ", syncs " + mSyncs);
+		checkError();
+	}
+}
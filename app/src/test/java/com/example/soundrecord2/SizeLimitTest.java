@@ -0,0 +1,187 @@
+package com.example.soundrecord2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes against many size limits and checks that every file is at or under
+ * its limit, ends on a whole frame, and leaves no room for the next one.
+ */
+public class SizeLimitTest {
+    // AMR modes, SID and NO_DATA
+    private static final int[] AMR_TYPES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 15 };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void amrEndsOnLastWholeFrame() throws IOException {
+        Random random = new Random(1);
+        byte[] frames = amrFrames(random, 400);
+        File file = mFolder.newFile("limit.amr");
+        int total = AmrFileWriter.AMR_MAGIC.length + frames.length;
+        for (int budget = AmrFileWriter.AMR_MAGIC.length; budget <= total + 40;
+                budget++) {
+            AmrFileWriter writer = new AmrFileWriter();
+            writer.setMaxBytes(budget);
+            writer.open(file);
+            // in buffers of a few frames, as the codec hands them out
+            int pos = 0;
+            while (pos < frames.length) {
+                int end = pos;
+                for (int n = 1 + random.nextInt(5); n > 0
+                        && end < frames.length; n--)
+                    end += AmrFileWriter.frameSize(frames[end]);
+                ByteBuffer buffer = ByteBuffer.wrap(frames, pos, end - pos);
+                writer.write(buffer);
+                assertFalse(buffer.hasRemaining());
+                pos = end;
+            }
+            long written = writer.bytesWritten();
+            writer.close();
+
+            byte[] out = Files.readAllBytes(file.toPath());
+            assertEquals(written, out.length);
+            assertTrue("over " + budget, out.length <= budget);
+            assertArrayEquals(AmrFileWriter.AMR_MAGIC,
+                    Arrays.copyOf(out, AmrFileWriter.AMR_MAGIC.length));
+            int length = out.length - AmrFileWriter.AMR_MAGIC.length;
+            assertArrayEquals(Arrays.copyOf(frames, length), Arrays
+                    .copyOfRange(out, AmrFileWriter.AMR_MAGIC.length,
+                            out.length));
+            if (length < frames.length) {
+                assertTrue(writer.isFull());
+                int next = AmrFileWriter.frameSize(frames[length]);
+                assertTrue("room left at " + budget,
+                        out.length + next > budget);
+            } else {
+                assertFalse(writer.isFull());
+            }
+        }
+    }
+
+    @Test
+    public void amrNoDataStopsAtLimit() throws IOException {
+        File file = mFolder.newFile("silence.amr");
+        for (int budget = AmrFileWriter.AMR_MAGIC.length; budget < 200;
+                budget += 7) {
+            AmrFileWriter writer = new AmrFileWriter();
+            writer.setMaxBytes(budget);
+            writer.open(file);
+            writer.writeNoData(300);
+            writer.close();
+            assertEquals(budget, file.length());
+            assertTrue(writer.isFull());
+        }
+    }
+
+    @Test
+    public void wavEndsOnLastWholeSample() throws IOException {
+        Random random = new Random(2);
+        short[] block = new short[PcmCapture.BLOCK_SAMPLES];
+        File file = mFolder.newFile("limit.wav");
+        int samples = 40 * block.length;
+        long total = WavWriter.HEADER_BYTES + samples * 2L;
+        for (long budget = WavWriter.HEADER_BYTES + 2; budget <= total + 500;
+                budget += 1 + random.nextInt(997)) {
+            WavWriter writer = new WavWriter();
+            writer.setMaxBytes(budget);
+            writer.open(file, PcmCapture.SAMPLE_RATE);
+            for (int i = 0; i < samples / block.length; i++) {
+                for (int j = 0; j < block.length; j++)
+                    block[j] = (short) random.nextInt();
+                writer.encode(block, block.length);
+            }
+            writer.close();
+            long expected = Math.min(total, budget - (budget
+                    - WavWriter.HEADER_BYTES) % 2);
+            assertEquals(expected, file.length());
+            assertEquals(expected < total, writer.isFull());
+        }
+    }
+
+    @Test
+    public void flacEndsOnLastWholeFrame() throws IOException {
+        Random random = new Random(3);
+        short[] block = new short[PcmCapture.BLOCK_SAMPLES];
+        int blocks = 10 * PcmCapture.SAMPLE_RATE / block.length;
+        File file = mFolder.newFile("limit.flac");
+        // where the frames of the whole recording end
+        long total = encodeFlac(file, 0, blocks);
+        int maxFrame = maxFrameSize(file);
+        for (long budget = FlacFile.HEADER_BYTES; budget <= total + 100;
+                budget += 1 + random.nextInt(maxFrame)) {
+            long length = encodeFlac(file, budget, blocks);
+            assertTrue("over " + budget, length <= budget);
+            FlacFile flac = FlacFile.read(file);
+            flac.walk(file);
+            assertEquals(length, flac.mEnd);
+            assertEquals(flac.mFrameSamples, flac.mTotalSamples);
+            if (length < total)
+                assertTrue("room left at " + budget,
+                        budget - length < maxFrame);
+        }
+    }
+
+    /*
+     * Random frames with valid headers, the payload is never looked at.
+     */
+    private static byte[] amrFrames(Random random, int count) {
+        ByteBuffer b = ByteBuffer.allocate(count * 32);
+        for (int i = 0; i < count; i++) {
+            int type = AMR_TYPES[random.nextInt(AMR_TYPES.length)];
+            b.put((byte) (type << 3 | 0x04));
+            for (int j = 1; j < AmrFileWriter.FRAME_SIZES[type]; j++)
+                b.put((byte) random.nextInt());
+        }
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    private static long encodeFlac(File file, long budget, int blocks)
+            throws IOException {
+        // the same tone every time, so every run has the same frames
+        short[] block = new short[PcmCapture.BLOCK_SAMPLES];
+        Random noise = new Random(4);
+        FlacEncoder encoder = new FlacEncoder();
+        encoder.setMaxBytes(budget);
+        encoder.open(file, PcmCapture.SAMPLE_RATE);
+        long n = 0;
+        for (int i = 0; i < blocks; i++) {
+            for (int j = 0; j < block.length; j++, n++)
+                block[j] = (short) (4000 * Math.sin(n * 0.07)
+                        + noise.nextGaussian() * 300);
+            encoder.encode(block, block.length);
+        }
+        encoder.close();
+        return file.length();
+    }
+
+    /*
+     * The largest frame size from STREAMINFO.
+     */
+    private static int maxFrameSize(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] b = new byte[3];
+            raf.seek(FlacFile.STREAMINFO_OFFSET + 7);
+            raf.readFully(b);
+            return (b[0] & 0xFF) << 16 | (b[1] & 0xFF) << 8 | (b[2] & 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+}
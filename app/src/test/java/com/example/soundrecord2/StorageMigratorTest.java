@@ -0,0 +1,169 @@
+package com.example.soundrecord2;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves staged files with {@link StorageMigrator} and checks what ends up in
+ * the target, including after a torn or corrupted earlier copy.
+ */
+public class StorageMigratorTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mStaging;
+    private File mTarget;
+    private RecordingJournal mJournal;
+    private StorageMigrator mMigrator;
+    private final List<File> mMoved = new ArrayList<File>();
+    private final List<File> mFailed = new ArrayList<File>();
+
+    @Before
+    public void setUp() throws IOException {
+        mStaging = mFolder.newFolder("staging");
+        mTarget = new File(mFolder.getRoot(), "card/recordings");
+        mJournal = new RecordingJournal(mFolder.newFolder("journal"));
+        mMigrator = new StorageMigrator(mStaging, mFolder.newFolder("migrate"),
+                mJournal, Long.MAX_VALUE / 1000);
+        mMigrator.addListener(new StorageMigrator.OnMovedListener() {
+            public void onMoved(File from, File to) {
+                mMoved.add(from);
+                mMoved.add(to);
+            }
+
+            public void onMoveFailed(File staged, File targetDir,
+                    IOException e) {
+                mFailed.add(staged);
+            }
+        });
+    }
+
+    @Test
+    public void movesFileAndSidecars() throws IOException {
+        File staged = new File(mStaging, "recording1.wav");
+        byte[] data = write(staged, 1000 * 1000, 1);
+        byte[] waveform = write(Waveform.sidecar(staged), 300, 2);
+        mMigrator.assign(staged, mTarget);
+        assertEquals(mTarget.getAbsoluteFile(), mMigrator.targetOf(staged));
+
+        mMigrator.migrateAll();
+        File moved = new File(mTarget, staged.getName());
+        assertArrayEquals(data, Files.readAllBytes(moved.toPath()));
+        assertArrayEquals(waveform, Files.readAllBytes(Waveform.sidecar(moved)
+                .toPath()));
+        assertFalse(staged.exists());
+        assertFalse(Waveform.sidecar(staged).exists());
+        assertNull(mMigrator.targetOf(staged));
+        assertEquals(Arrays.asList(staged, moved), mMoved);
+    }
+
+    @Test
+    public void resumesTornCopyAndRedoesBadOne() throws IOException {
+        File staged = new File(mStaging, "recording2.amr");
+        byte[] data = write(staged, 3 * 1000 * 1000, 3);
+        mMigrator.assign(staged, mTarget);
+        // an earlier pass got this far, the tail it left is garbage
+        File part = new File(mTarget, "." + staged.getName() + ".part");
+        assertTrue(mTarget.mkdirs());
+        byte[] torn = Arrays.copyOf(data, 2 * 1000 * 1000);
+        Arrays.fill(torn, torn.length - 1000, torn.length, (byte) 0);
+        Files.write(part.toPath(), torn);
+
+        mMigrator.migrateAll();
+        File moved = new File(mTarget, staged.getName());
+        assertArrayEquals(data, Files.readAllBytes(moved.toPath()));
+        assertFalse(part.exists());
+
+        // corrupted well before the resume point, only the checksum sees it
+        File other = new File(mStaging, "recording3.amr");
+        data = write(other, 3 * 1000 * 1000, 4);
+        mMigrator.assign(other, mTarget);
+        part = new File(mTarget, "." + other.getName() + ".part");
+        byte[] bad = Arrays.copyOf(data, 2 * 1000 * 1000);
+        bad[12345] ^= 1;
+        Files.write(part.toPath(), bad);
+
+        mMigrator.migrateAll();
+        moved = new File(mTarget, other.getName());
+        assertFalse(moved.exists());
+        assertFalse(part.exists());
+        assertTrue(other.exists());
+        mMigrator.migrateAll();
+        assertArrayEquals(data, Files.readAllBytes(moved.toPath()));
+        assertFalse(other.exists());
+        assertTrue(mFailed.isEmpty());
+    }
+
+    @Test
+    public void reportsMovesThatKeepFailing() throws IOException {
+        File staged = new File(mStaging, "recording5.amr");
+        write(staged, 5000, 7);
+        // a file where the target directory should be
+        assertTrue(mTarget.getParentFile().mkdirs());
+        write(mTarget, 1, 8);
+        mMigrator.assign(staged, mTarget);
+
+        for (int i = 1; i < StorageMigrator.REPORT_AFTER_FAILURES; i++)
+            mMigrator.migrateAll();
+        assertTrue(mFailed.isEmpty());
+        mMigrator.migrateAll();
+        assertEquals(Arrays.asList(staged), mFailed);
+        assertTrue(staged.exists());
+
+        assertTrue(mTarget.delete());
+        mMigrator.migrateAll();
+        assertFalse(staged.exists());
+    }
+
+    @Test
+    public void waitsForRecordingAndKeepsExistingFiles() throws IOException {
+        File staged = new File(mStaging, "recording4.flac");
+        byte[] data = write(staged, 5000, 5);
+        assertTrue(mTarget.mkdirs());
+        byte[] existing = write(new File(mTarget, staged.getName()), 100, 6);
+        mJournal.begin(staged, SoundRecorder.AUDIO_FLAC);
+        mMigrator.assign(staged, mTarget);
+
+        mMigrator.migrateAll();
+        assertTrue(staged.exists());
+        assertTrue(mMoved.isEmpty());
+
+        mJournal.end(staged);
+        mMigrator.migrateAll();
+        assertFalse(staged.exists());
+        assertArrayEquals(existing, Files.readAllBytes(new File(mTarget,
+                staged.getName()).toPath()));
+        assertArrayEquals(data, Files.readAllBytes(new File(mTarget,
+                "recording4-1.flac").toPath()));
+    }
+
+    private static byte[] write(File file, int length, long seed)
+            throws IOException {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.soundrecord2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes and patches through {@link WriteBehindOutput} and compares the file
+ * with the same operations done in memory, under each sync policy.
+ */
+public class WriteBehindOutputTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void sameBytesUnderEveryPolicy() throws IOException {
+        WriteBehindOutput.Policy[] policies = {
+                WriteBehindOutput.Policy.onClose(),
+                WriteBehindOutput.Policy.everyBytes(50 * 1000),
+                WriteBehindOutput.Policy.everySeconds(1) };
+        for (WriteBehindOutput.Policy policy : policies) {
+            WriteBehindOutput output = writeRandom(policy, 1 << 20);
+            if (policy.mMode == WriteBehindOutput.Policy.SYNC_BYTES)
+                assertTrue(output.syncLatencies().count() >= 10);
+            else if (policy.mMode == WriteBehindOutput.Policy.SYNC_ON_CLOSE)
+                assertEquals(1, output.syncLatencies().count());
+        }
+    }
+
+    @Test
+    public void buffersEndOnBlockBoundaries() throws IOException {
+        File file = mFolder.newFile("aligned");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // starts off a boundary, like after a header
+            WriteBehindOutput output = new WriteBehindOutput(
+                    raf.getChannel(), 42, null);
+            byte[] b = new byte[1000];
+            for (int i = 0; i < 300; i++)
+                output.write(b, 0, b.length);
+            output.close(-1);
+            assertEquals(42 + 300 * 1000, file.length());
+            // every write but the first and the last is whole buffers
+            assertEquals(300 * 1000 / WriteBehindOutput.BUFFER_BYTES + 1,
+                    output.writeLatencies().count());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void handsOffWithinASecond() throws Exception {
+        File file = mFolder.newFile("killed");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            WriteBehindOutput output = new WriteBehindOutput(
+                    raf.getChannel(), 0, WriteBehindOutput.Policy.onClose());
+            byte[] b = new byte[1000];
+            output.write(b, 0, b.length);
+            Thread.sleep(1100);
+            output.write(b, 0, 1);
+            // in the file without a close, as a killed process leaves it
+            long deadline = System.currentTimeMillis() + 2000;
+            while (file.length() < 1001
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1001, file.length());
+            assertEquals(0, output.syncLatencies().count());
+            output.close(-1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void sharesALongLivedWriter() throws IOException {
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            for (int n = 1; n <= 2; n++) {
+                File file = mFolder.newFile("shared" + n);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    WriteBehindOutput output = new WriteBehindOutput(
+                            raf.getChannel(), 0, null, writer);
+                    byte[] b = new byte[1000];
+                    for (int i = 0; i < 100 * n; i++)
+                        output.write(b, 0, b.length);
+                    output.close(-1);
+                    assertEquals(100 * n * 1000, file.length());
+                } finally {
+                    raf.close();
+                }
+            }
+            // closing an output leaves the writer to the next one
+            assertFalse(writer.isShutdown());
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    private WriteBehindOutput writeRandom(WriteBehindOutput.Policy policy,
+            int length) throws IOException {
+        Random random = new Random(policy.mMode);
+        byte[] expected = new byte[length];
+        random.nextBytes(expected);
+        byte[] patched = expected.clone();
+        File file = mFolder.newFile("out" + policy.mMode);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // leftovers past the end are cut on close
+            raf.setLength(length + 5000);
+            WriteBehindOutput output = new WriteBehindOutput(
+                    raf.getChannel(), 0, policy);
+            int pos = 0;
+            while (pos < length) {
+                int n = Math.min(length - pos, random.nextInt(3000));
+                output.write(ByteBuffer.wrap(expected, pos, n));
+                pos += n;
+                assertEquals(pos, output.position());
+                if (random.nextInt(20) == 0) {
+                    // a header patch, often still in the buffer
+                    int at = Math.max(0, pos - random.nextInt(100 * 1000));
+                    byte[] p = new byte[Math.min(pos - at, 1 + random
+                            .nextInt(40))];
+                    random.nextBytes(p);
+                    System.arraycopy(p, 0, patched, at, p.length);
+                    output.patch(at, p);
+                }
+            }
+            output.close(length);
+            assertArrayEquals(patched, Files.readAllBytes(file.toPath()));
+            return output;
+        } finally {
+            raf.close();
+        }
+    }
+}